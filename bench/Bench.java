@@ -0,0 +1,198 @@
+import com.quaxt.mcc.CompilationContext;
+import com.quaxt.mcc.CompileOptions;
+import com.quaxt.mcc.Lexer;
+import com.quaxt.mcc.RegisterAllocation;
+import com.quaxt.mcc.StringTable;
+import com.quaxt.mcc.TokenBuffer;
+import com.quaxt.mcc.TokenCursor;
+import com.quaxt.mcc.asm.Codegen;
+import com.quaxt.mcc.asm.FunctionAsm;
+import com.quaxt.mcc.parser.FlatAst;
+import com.quaxt.mcc.parser.Parser;
+import com.quaxt.mcc.parser.Program;
+import com.quaxt.mcc.preprocessor.Preprocessor;
+import com.quaxt.mcc.semantic.FlatSemanticAnalysis;
+import com.quaxt.mcc.semantic.FusedSemanticAnalysis;
+import com.quaxt.mcc.tacky.FunctionIr;
+import com.quaxt.mcc.tacky.IrGen;
+import com.quaxt.mcc.tacky.ProgramIr;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Times one stage of mcc on a file, in a single JVM so that the later runs
+ * are warm. Build mcc first, then run it from the top of the tree with
+ * <pre>
+ * java --enable-preview --source 21 -cp target/classes bench/Bench.java MODE FILE [RUNS [ALLOCATION...]]
+ * </pre>
+ * bench/gen.py writes suitable input files. The modes are
+ * <dl>
+ * <dt>lex</dt><dd>lex the whole file into a TokenBuffer, in MB/s</dd>
+ * <dt>heap</dt><dd>the heap a TokenBuffer holding the whole file retains,
+ * and what lexing allocates, into one and through a TokenCursor</dd>
+ * <dt>analyze</dt><dd>parsing and semantic analysis, into and on the record
+ * AST and the flat AST, and the heap each AST retains</dd>
+ * <dt>codegen</dt><dd>Codegen.generateProgramAssembly, from the TACKY
+ * IrGen makes for the file, once with each RegisterAllocation named,
+ * NONE by default</dd>
+ * </dl>
+ * The timing modes print the median of the second half of the runs, 10 by
+ * default.
+ */
+public class Bench {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: Bench MODE FILE [RUNS [ALLOCATION...]]");
+            System.exit(2);
+        }
+        Path file = Path.of(args[1]);
+        String source = Files.readString(file);
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        switch (args[0]) {
+            case "lex" -> {
+                TokenBuffer tokens = lex(source);
+                System.out.printf("%d tokens, %d distinct names%n", tokens.size(), tokens.names().size());
+                long ns = median(runs, () -> time(() -> lex(source)));
+                System.out.printf("lex: %.1f MB/s%n", source.length() / (ns / 1e3));
+            }
+            case "heap" -> {
+                long before = usedHeap();
+                long allocated = allocatedBytes();
+                TokenBuffer tokens = lex(source);
+                allocated = allocatedBytes() - allocated;
+                long retained = usedHeap() - before;
+                int count = tokens.size();
+                System.out.printf("%d tokens, %d distinct names%n", count, tokens.names().size());
+                System.out.printf("whole file: %.1f MB retained, %.1f MB allocated, %.1f bytes/token%n",
+                        retained / 1e6, allocated / 1e6, allocated / (double) count);
+                // a cursor drops the tokens it has consumed, so only the
+                // names it interns stay allocated
+                allocated = allocatedBytes();
+                TokenCursor cursor = new TokenCursor(new Lexer(source));
+                while (!cursor.isEmpty()) cursor.advance();
+                allocated = allocatedBytes() - allocated;
+                System.out.printf("through a cursor: %.1f MB allocated, %.1f bytes/token%n",
+                        allocated / 1e6, allocated / (double) count);
+            }
+            case "analyze" -> {
+                long before = usedHeap();
+                Program program = parse(file, source);
+                long recordsHeap = usedHeap() - before;
+                int declarations = program.declarations().size();
+                program = null;
+                before = usedHeap();
+                FlatAst ast = parseFlat(file, source);
+                long flatHeap = usedHeap() - before;
+                System.out.printf("%d declarations, %d flat nodes%n", declarations, ast.size());
+                ast = null;
+                System.out.printf("heap: records %.1f MB, flat %.1f MB%n", recordsHeap / 1e6, flatHeap / 1e6);
+                long recordsParse = median(runs, () -> time(() -> parse(file, source)));
+                long flatParse = median(runs, () -> time(() -> parseFlat(file, source)));
+                System.out.printf("parse: records %.1f ms, flat %.1f ms%n", recordsParse / 1e6, flatParse / 1e6);
+                long records = median(runs, () -> {
+                    Program p = parse(file, source);
+                    return time(() -> FusedSemanticAnalysis.analyzeProgram(context(file), p));
+                });
+                long flat = median(runs, () -> {
+                    FlatAst a = parseFlat(file, source);
+                    return time(() -> {
+                        CompilationContext ctx = context(file);
+                        FlatSemanticAnalysis.resolveProgram(ctx, a);
+                        FlatSemanticAnalysis.typeCheckProgram(ctx, a);
+                        FlatSemanticAnalysis.loopLabelProgram(ctx, a);
+                    });
+                });
+                System.out.printf("analyze: records %.1f ms, flat %.1f ms%n", records / 1e6, flat / 1e6);
+            }
+            case "codegen" -> {
+                CompilationContext first = context(file);
+                ProgramIr firstIr = tacky(first, file, source);
+                int instructions = 0;
+                for (var topLevel : firstIr.topLevels()) {
+                    if (topLevel instanceof FunctionIr f) instructions += f.instructions().size();
+                }
+                int asmInstructions = 0;
+                for (var topLevel : Codegen.generateProgramAssembly(first, firstIr).topLevelAsms()) {
+                    if (topLevel instanceof FunctionAsm f) asmInstructions += f.instructions().size();
+                }
+                System.out.printf("%d TACKY instructions, %d assembly instructions%n", instructions, asmInstructions);
+                String[] allocations = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[]{"NONE"};
+                for (String name : allocations) {
+                    RegisterAllocation allocation = RegisterAllocation.valueOf(name);
+                    long ns = median(runs, () -> {
+                        CompilationContext ctx = context(file, allocation);
+                        ProgramIr programIr = tacky(ctx, file, source);
+                        return time(() -> Codegen.generateProgramAssembly(ctx, programIr));
+                    });
+                    System.out.printf("codegen %s: %.1f ms%n", allocation, ns / 1e6);
+                }
+            }
+            default -> {
+                System.err.println("unknown mode " + args[0]);
+                System.exit(2);
+            }
+        }
+    }
+
+    private static TokenBuffer lex(String source) {
+        TokenBuffer tokens = new TokenBuffer(new StringTable());
+        Lexer lexer = new Lexer(source);
+        while (lexer.next(tokens)) {
+            // keep going
+        }
+        return tokens;
+    }
+
+    private static Program parse(Path file, String source) {
+        return Parser.parseProgram(new TokenCursor(new Lexer(new Preprocessor(file, source))), 1);
+    }
+
+    private static FlatAst parseFlat(Path file, String source) {
+        return Parser.parseFlatProgram(new TokenCursor(new Lexer(new Preprocessor(file, source))));
+    }
+
+    private static ProgramIr tacky(CompilationContext ctx, Path file, String source) {
+        return IrGen.programIr(ctx, FusedSemanticAnalysis.analyzeProgram(ctx, parse(file, source)));
+    }
+
+    private static CompilationContext context(Path file) {
+        return new CompilationContext(new CompileOptions(file));
+    }
+
+    private static CompilationContext context(Path file, RegisterAllocation allocation) {
+        return new CompilationContext(new CompileOptions(file, 1, false, allocation,
+                false, false, false, false, Set.of()));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 5; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static long time(Runnable task) {
+        long start = System.nanoTime();
+        task.run();
+        return System.nanoTime() - start;
+    }
+
+    // the median of the times the second half of runs of run return
+    private static long median(int runs, LongSupplier run) {
+        long[] times = new long[runs - runs / 2];
+        for (int i = 0; i < runs; i++) {
+            long time = run.getAsLong();
+            if (i >= runs / 2) times[i - runs / 2] = time;
+        }
+        Arrays.sort(times);
+        return times[times.length / 2];
+    }
+}
@@ -0,0 +1,117 @@
+#!/usr/bin/env python3
+"""Writes a generated C program to stdout, for timing mcc on large inputs.
+
+usage: bench/gen.py KIND N
+
+  functions N   N functions long fK(long a, double b), about 65 tokens each
+  commented N   the same functions with a line comment on most lines
+  statements N  one main with N arithmetic statements
+  scopes N      N global ints and a main with N/5 blocks nested five deep
+  branches N    one main with N statements mixing calls, ifs and loops
+  wide N        one main with N int variables that are all live at once
+
+The output only depends on KIND and N.
+"""
+import random
+import sys
+
+
+def functions(n):
+    for k in range(n):
+        print(f"long f{k}(long a, double b) {{")
+        print(f"  long x = a * {k}l + 3ul;")
+        print("  double y = b * 1.5e3 + (double) .25 + 2. ;")
+        print("  if (x >= 10 && y != 0.0 || !a) return x % 7 + (long) y;")
+        print("  while (a <= 100u) a = a + 1;")
+        print("  return a;")
+        print("}")
+    print("int main(void) {")
+    print(f"  return f{n - 1}(1, 2.0) % 256;" if n else "  return 0;")
+    print("}")
+
+
+def commented(n):
+    for k in range(n):
+        print(f"// function {k}")
+        print(f"long f{k}(long a, double b) {{ // line comment")
+        print(f"  long x{k} = a * {k}l + 3ul; // x{k}")
+        print("  double y = b * 1.5e3 + .25 + 2. ;")
+        print(f"  if (x{k} >= 10 && y != 0.0 || !a) return x{k} % 7 + (long) y; // early exit")
+        print("  while (a <= 100u) a = a + 1;")
+        print("  return a;")
+        print("}")
+    print("int main(void) {")
+    print(f"  return f{n - 1}(1, 2.0) % 256;" if n else "  return 0;")
+    print("}")
+
+
+def statements(n):
+    r = random.Random(n)
+    print("int main(void) {")
+    print("    int a = 1; int b = 2; int c = 3; long d = 4; long e = 5; "
+          "double x = 1.5; double y = 2.5; unsigned int u = 7;")
+    forms = [
+        lambda i: f"a = (b + c) * a - {i};",
+        lambda i: f"d = (e - d) * {r.randrange(13)} + a;",
+        lambda i: f"x = x * y + {r.randrange(7)}.0;",
+        lambda i: "c = (a < b) + (d > e) + u;",
+        lambda i: f"b = b / 5 + c % {r.randrange(1, 13)};",
+    ]
+    for i in range(n):
+        print("    " + forms[i % len(forms)](i))
+    print("    return a + b;")
+    print("}")
+
+
+def scopes(n):
+    for k in range(n):
+        print(f"int g{k};")
+    print("int main(void) {")
+    print(" int acc = 0;")
+    for k in range(n // 5):
+        print(f" {{ {{ {{ {{ {{ int x = g{k}; acc = acc + x; }}}}}}}}}}")
+    print(" return acc;")
+    print("}")
+
+
+def branches(n):
+    r = random.Random(n)
+    print("int h(int a, int b) { return a * 3 + b; }")
+    print("long g(long x, double y) { return x + (long) y; }")
+    print("int main(void) {")
+    print("    int a = 1;")
+    print("    int b = 2;")
+    print("    long c = 3;")
+    print("    double d = 1.5;")
+    print("    long s = 0;")
+    for _ in range(n):
+        kind = r.randrange(4)
+        if kind == 0:
+            print(f"    c = g(c % 10000, d); d = d * 0.5 + {r.randrange(10)}.0;")
+        elif kind == 1:
+            print(f"    if (a > b) {{ a = a - b + {r.randrange(6)}; }} else {{ b = h(b, a) % 1000; }}")
+        elif kind == 2:
+            print(f"    s = (s + a * {r.randrange(10)} + b - c) % 100003; a = (a + {r.randrange(12)}) % 777;")
+        else:
+            print(f"    for (int i = 0; i < {r.randrange(6)}; i = i + 1) {{ c = c + i * a; s = s + c % 97; }}")
+    print("    return (int) (s % 256);")
+    print("}")
+
+
+def wide(n):
+    print("int main(void) {")
+    for k in range(n):
+        print(f"int v{k} = {k % 7} + {k % 5};")
+    print("int s = 0;")
+    for k in range(n):
+        print(f"s = s + v{k};")
+    print("return s % 256;")
+    print("}")
+
+
+KINDS = {"functions": functions, "commented": commented, "statements": statements, "scopes": scopes,
+         "branches": branches, "wide": wide}
+
+if len(sys.argv) != 3 or sys.argv[1] not in KINDS:
+    sys.exit(__doc__)
+KINDS[sys.argv[1]](int(sys.argv[2]))
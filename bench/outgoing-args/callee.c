@@ -0,0 +1,3 @@
+long h(int a, double b, int c, int d, double e, int f, int g, int i, int j, long k) {
+    return (a ^ j) + c + d + f + g + i + (long)(b + e) + (k & 1);
+}
@@ -0,0 +1,9 @@
+long h(int a, double b, int c, int d, double e, int f, int g, int i, int j, long k);
+int main(void) {
+    long s = 0;
+    double x = 0.5;
+    for (int n = 0; n < 100000000; n = n + 1) {
+        s = s + h(n, x, 2, 3, x, 5, 6, 7, n, s);
+    }
+    return (int)(s % 256);
+}
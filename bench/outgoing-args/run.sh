@@ -0,0 +1,40 @@
+#!/bin/bash
+# Times a loop of 1e8 calls from code mcc compiles to a gcc -O2 function
+# taking 10 mixed arguments, the last two of which go on the stack. The
+# caller is compiled once for each set of flags, the builds are run in
+# turn 15 times and the min and median time of each is printed.
+#
+# usage: bench/outgoing-args/run.sh ["flags" ...]
+#   MCC is the compiler to time, by default the mcc script at the top of
+#   the tree (which needs mvn package).
+dir=$(cd "${BASH_SOURCE%/*}" && pwd)
+mcc=${MCC:-$dir/../../mcc}
+if [ $# = 0 ]; then
+    set -- "" -maccumulate-outgoing-args -O2 "-O2 -maccumulate-outgoing-args" \
+        "-O2 -fomit-frame-pointer" "-O2 -fomit-frame-pointer -maccumulate-outgoing-args"
+fi
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+gcc -O2 -c "$dir/callee.c" -o "$work/callee.o" || exit 1
+cp "$dir/caller.c" "$work/caller.c"
+n=0
+for flags in "$@"; do
+    # flags is split into words on purpose
+    "$mcc" -c $flags "$work/caller.c" || exit 1
+    gcc "$work/caller.o" "$work/callee.o" -o "$work/run$n" || exit 1
+    n=$((n + 1))
+done
+for _ in $(seq 15); do
+    for i in $(seq 0 $((n - 1))); do
+        start=$(date +%s%N)
+        "$work/run$i"
+        echo $((($(date +%s%N) - start) / 1000000)) >> "$work/times$i"
+    done
+done
+i=0
+for flags in "$@"; do
+    sort -n "$work/times$i" | awk -v flags="mcc $flags" '
+        { t[NR] = $1 }
+        END { printf "%-50s min %.3f  median %.3f\n", flags, t[1] / 1000, t[int((NR + 1) / 2)] / 1000 }'
+    i=$((i + 1))
+done
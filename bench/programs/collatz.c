@@ -0,0 +1,14 @@
+long collatz(long n) {
+    long steps = 0;
+    while (n != 1) {
+        if (n % 2 == 0) n = n / 2;
+        else n = 3 * n + 1;
+        steps = steps + 1;
+    }
+    return steps;
+}
+int main(void) {
+    long total = 0;
+    for (long i = 1; i < 1500000; i = i + 1) total = total + collatz(i);
+    return (int) (total % 256);
+}
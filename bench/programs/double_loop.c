@@ -0,0 +1,12 @@
+double step(double x, double y) { return x * 0.999 + y * 0.001; }
+int main(void) {
+    double x = 1.0;
+    double y = 2.0;
+    long k = 0;
+    for (long i = 0; i < 30000000; i = i + 1) {
+        x = step(x, y);
+        y = y * 1.0000001 + x * 0.0000001;
+        k = k + (long) (x * 3.0) % 7;
+    }
+    return (int) (k % 256);
+}
@@ -0,0 +1,11 @@
+int step(int x, int y) { return x * 31 + y; }
+int main(void) {
+    int a = 1; int b = 2; int c = 3; int d = 4;
+    for (int i = 0; i < 100000000; i = i + 1) {
+        a = step(a, i);
+        b = step(b, a);
+        c = step(c, b);
+        d = step(d, c);
+    }
+    return (a + b + c + d) % 256;
+}
@@ -0,0 +1,32 @@
+#!/bin/bash
+# Compiles each program in bench/programs with mcc, once for each set of
+# flags, and prints the best of three run times in seconds.
+#
+# usage: bench/runtime.sh ["flags" ...]
+#   e.g. bench/runtime.sh "" -O1 -O2
+#   MCC is the compiler to time, by default the mcc script at the top of
+#   the tree (which needs mvn package).
+bench=$(cd "${BASH_SOURCE%/*}" && pwd)
+mcc=${MCC:-$bench/../mcc}
+[ $# = 0 ] && set -- "" -O1 -O2
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+for src in "$bench"/programs/*.c; do
+    name=$(basename "$src" .c)
+    cp "$src" "$work/$name.c"
+    line=$name
+    for flags in "$@"; do
+        rm -f "$work/$name"
+        # flags is split into words on purpose
+        "$mcc" $flags "$work/$name.c" >/dev/null || exit 1
+        best=
+        for _ in 1 2 3; do
+            start=$(date +%s%N)
+            "$work/$name" >/dev/null
+            ms=$((($(date +%s%N) - start) / 1000000))
+            if [ -z "$best" ] || [ $ms -lt $best ]; then best=$ms; fi
+        done
+        line="$line  [$flags] $((best / 1000)).$(printf %03d $((best % 1000)))"
+    done
+    echo "$line"
+done
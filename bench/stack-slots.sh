@@ -0,0 +1,25 @@
+#!/bin/bash
+# Prints, for each file, the bytes of stack slots its functions use
+# summed over them, with and without sharing, as mcc -stats reports them:
+# first with only -fshare-stack-slots, so every pseudo is on the stack,
+# then with -O2, where only spilled pseudos are.
+#
+# usage: bench/stack-slots.sh FILE...
+#   MCC is the compiler to use, by default the mcc script at the top of
+#   the tree (which needs mvn package).
+bench=$(cd "${BASH_SOURCE%/*}" && pwd)
+mcc=${MCC:-$bench/../mcc}
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+# the sums of the shared and unshared sizes mcc -stats gives with flags
+slots() {
+    # flags is split into words on purpose
+    "$mcc" -S -stats $2 "$1" 2>&1 >/dev/null |
+        awk '/stack slot sharing/ { shared += $(NF - 7); unshared += $(NF - 2) }
+             END { printf "%d -> %d", unshared, shared }'
+}
+for src in "$@"; do
+    name=$(basename "$src" .c)
+    cp "$src" "$work/$name.c"
+    echo "$name  -fshare-stack-slots: $(slots "$work/$name.c" -fshare-stack-slots)  -O2: $(slots "$work/$name.c" -O2)"
+done
@@ -0,0 +1,126 @@
+package com.quaxt.mcc;
+
+import com.quaxt.mcc.asm.StaticConstant;
+import com.quaxt.mcc.asm.SymTabEntryAsm;
+import com.quaxt.mcc.semantic.Type;
+import com.quaxt.mcc.tacky.LabelIr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static com.quaxt.mcc.IdentifierAttributes.LocalAttr.LOCAL_ATTR;
+
+/**
+ * The options and state of compiling one translation unit: the symbol
+ * tables, the counters behind temporary names and labels and the pool of
+ * double constants. Each pass gets it from its caller, so compilations on
+ * different threads share nothing. A context is not itself thread safe.
+ */
+public final class CompilationContext {
+    private final CompileOptions options;
+    private final SymbolTable symbolTable = new SymbolTable();
+    // indexed by symbol id
+    private SymTabEntryAsm[] backendSymbolTable = new SymTabEntryAsm[0];
+    private final HashMap<Double, StaticConstant> constantTable = new HashMap<>();
+    private long tempCount;
+    // labels are numbered by id like symbols; a label's name is ".L" + its
+    // prefix + its number, or just the prefix if the number is -1
+    private String[] labelPrefixes = new String[256];
+    private long[] labelNumbers = new long[256];
+    private int labelIds;
+    private long labelCount;
+    // the id of the start label of each loop, by loop label
+    private final HashMap<String, Integer> loopLabels = new HashMap<>();
+
+    public CompilationContext(CompileOptions options) {
+        this.options = options;
+    }
+
+    public CompileOptions options() {
+        return options;
+    }
+
+    public SymbolTable symbolTable() {
+        return symbolTable;
+    }
+
+    public SymTabEntryAsm backendSymbol(int id) {
+        return id < backendSymbolTable.length ? backendSymbolTable[id] : null;
+    }
+
+    public void putBackendSymbol(int id, SymTabEntryAsm entry) {
+        if (id >= backendSymbolTable.length) {
+            backendSymbolTable = Arrays.copyOf(backendSymbolTable, Math.max(id + 1, symbolTable.size()));
+        }
+        backendSymbolTable[id] = entry;
+    }
+
+    public HashMap<Double, StaticConstant> constantTable() {
+        return constantTable;
+    }
+
+    public String makeTemporary(String prefix) {
+        return prefix + tempCount++;
+    }
+
+    /**
+     * Add a temporary of the given type to the symbol table and return its
+     * id. Its name is prefix followed by the next temporary number.
+     */
+    public int newTemporary(String prefix, Type type) {
+        return symbolTable.addTemporary(prefix, tempCount++, new SymbolTableEntry(type, LOCAL_ATTR));
+    }
+
+    /**
+     * Reserve count temporary numbers and return the first.
+     */
+    public long reserveTemporaries(long count) {
+        long first = tempCount;
+        tempCount += count;
+        return first;
+    }
+
+    public LabelIr newLabel(String prefix) {
+        return new LabelIr(addLabel(prefix, labelCount++));
+    }
+
+    /**
+     * The id of the start label of the loop labelled label. Its continue and
+     * break labels have the next two ids.
+     */
+    public int loopLabel(String label) {
+        Integer id = loopLabels.get(label);
+        if (id == null) {
+            id = addLabel("start_" + label, -1);
+            addLabel("continue_" + label, -1);
+            addLabel("break_" + label, -1);
+            loopLabels.put(label, id);
+        }
+        return id;
+    }
+
+    /**
+     * Print, if the options ask for stats, that pass did count of what to
+     * function.
+     */
+    public void report(String function, String pass, long count, String what) {
+        if (options.stats()) {
+            System.err.println(function + ": " + pass + ": " + count + " " + what);
+        }
+    }
+
+    public String labelName(int id) {
+        long number = labelNumbers[id];
+        return number < 0 ? labelPrefixes[id] : ".L" + labelPrefixes[id] + number;
+    }
+
+    private int addLabel(String prefix, long number) {
+        if (labelIds == labelPrefixes.length) {
+            labelPrefixes = Arrays.copyOf(labelPrefixes, labelIds * 2);
+            labelNumbers = Arrays.copyOf(labelNumbers, labelIds * 2);
+        }
+        labelPrefixes[labelIds] = prefix;
+        labelNumbers[labelIds] = number;
+        return labelIds++;
+    }
+}
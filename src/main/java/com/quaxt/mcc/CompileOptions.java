@@ -0,0 +1,32 @@
+package com.quaxt.mcc;
+
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Options for {@link Mcc#compile}. sourceFile names the translation unit;
+ * quoted #includes are looked up relative to it. With stats, the
+ * optimisations print what they did to each function on standard error.
+ * With omitFramePointer, functions address their stack slots relative to
+ * %rsp and leaf functions with small frames keep them in the red zone.
+ * With shareStackSlots, pseudos that are never live at once share a slot.
+ * With accumulateOutgoingArgs, stack arguments are stored with movs into
+ * an area at the bottom of the frame instead of being pushed.
+ * optimizations are the passes run on TACKY.
+ */
+public record CompileOptions(Path sourceFile, int parseThreads, boolean flatAst,
+                             RegisterAllocation registerAllocation, boolean stats,
+                             boolean omitFramePointer, boolean shareStackSlots,
+                             boolean accumulateOutgoingArgs, Set<Optimization> optimizations) {
+    public CompileOptions {
+        if (parseThreads < 1) {
+            throw new IllegalArgumentException("parseThreads must be at least 1");
+        }
+        optimizations = optimizations.isEmpty() ? Set.of() : EnumSet.copyOf(optimizations);
+    }
+
+    public CompileOptions(Path sourceFile) {
+        this(sourceFile, 1, false, RegisterAllocation.NONE, false, false, false, false, Set.of());
+    }
+}
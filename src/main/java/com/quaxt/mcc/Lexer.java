@@ -1,83 +1,321 @@
 package com.quaxt.mcc;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 
 import static com.quaxt.mcc.ArithmeticOperator.*;
 import static com.quaxt.mcc.CmpOperator.*;
 import static com.quaxt.mcc.TokenType.*;
 
+/**
+ * Single pass lexer. Every character is classified once through
+ * {@link #CHAR_CLASS} and the token is then recognised by a hand written DFA,
+ * so there is no backtracking and no regex matching per source position.
+ * <p>
+ * The lexer either works on a whole source string or pulls characters from
+ * a {@link Reader} in chunks as tokens are requested with
+ * {@link #next(TokenBuffer)}, so only the text of the current token and one
+ * chunk of lookahead are held in memory. Tokens are appended to a
+ * {@link TokenBuffer}; the only allocation is for the text of identifiers
+ * and literals that haven't been seen before.
+ */
 public class Lexer {
-    static Pattern WHITESPACE = Pattern.compile("\\s+");
-    static final Token[] TOKEN_TYPES_TO_MATCH =
-            new Token[]{IDENTIFIER, OPEN_PAREN, CLOSE_PAREN, OPEN_BRACE,
-                    DOUBLE_LITERAL,
-                    UNSIGNED_LONG_LITERAL, UNSIGNED_INT_LITERAL,
-                    CLOSE_BRACE, LONG_LITERAL, INT_LITERAL, SEMICOLON,
-                    SINGLE_LINE_COMMENT, MULTILINE_COMMENT, DECREMENT,
-                    INCREMENT, BITWISE_NOT, SUB, ADD, IMUL, DIVIDE, BITWISE_XOR, REMAINDER,
-                    AND, OR, EQUALS, NOT_EQUALS, LESS_THAN_OR_EQUAL,
-                    GREATER_THAN_OR_EQUAL, LESS_THAN, GREATER_THAN, NOT,
-                    BECOMES, QUESTION_MARK, COLON, COMMA};
-
-    public static List<Token> lex(String src) {
-        Matcher matcher = IDENTIFIER.regex.matcher(src);
-        List<Token> tokens = new ArrayList<>();
-        outer:
-        for (int i = 0; i < src.length(); ) {
-            matcher.usePattern(WHITESPACE);
-            matcher.region(i, src.length());
-            if (matcher.lookingAt()) {
-                int end = matcher.end();
-                matcher.region(end, src.length());
-                i = end;
-                if (i == src.length()) {
-                    break;
+    // character classes, only ASCII is valid outside of comments
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte LETTER = 2; // [a-zA-Z_]
+    private static final byte DIGIT = 3;
+    private static final byte DOT = 4;
+    private static final byte PUNCTUATION = 5;
+
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    private record Keyword(String text, TokenType type) {
+    }
+
+    // keywords indexed by their first letter
+    private static final Keyword[][] KEYWORDS = new Keyword[26][0];
+
+    static {
+        for (char c : " \t\n\u000B\f\r".toCharArray()) CHAR_CLASS[c] = SPACE;
+        for (char c = 'a'; c <= 'z'; c++) CHAR_CLASS[c] = LETTER;
+        for (char c = 'A'; c <= 'Z'; c++) CHAR_CLASS[c] = LETTER;
+        CHAR_CLASS['_'] = LETTER;
+        for (char c = '0'; c <= '9'; c++) CHAR_CLASS[c] = DIGIT;
+        CHAR_CLASS['.'] = DOT;
+        for (char c : "(){};~?:,*%^-+/&|=!<>".toCharArray())
+            CHAR_CLASS[c] = PUNCTUATION;
+
+        TokenType[] keywords = {BREAK, CONTINUE, DO, DOUBLE, ELSE, EXTERN, FOR,
+                IF, INT, LONG, RETURN, SIGNED, STATIC, UNSIGNED, VOID, WHILE};
+        for (TokenType type : keywords) {
+            String text = type.name().toLowerCase();
+            Keyword[] bucket = KEYWORDS[text.charAt(0) - 'a'];
+            Keyword[] newBucket = new Keyword[bucket.length + 1];
+            System.arraycopy(bucket, 0, newBucket, 0, bucket.length);
+            newBucket[bucket.length] = new Keyword(text, type);
+            KEYWORDS[text.charAt(0) - 'a'] = newBucket;
+        }
+    }
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Reader in;
+    private char[] buf;
+    // buf[pos] is the first character not yet lexed, buf[limit] is the first
+    // character not yet read from in
+    private int pos;
+    private int limit;
+    private boolean eof;
+    // offset in the whole input of buf[0]
+    private int base;
+
+    public Lexer(Reader in) {
+        this.in = in;
+        this.buf = new char[CHUNK_SIZE];
+    }
+
+    public Lexer(String src) {
+        this.in = null;
+        this.buf = src.toCharArray();
+        this.limit = buf.length;
+        this.eof = true;
+    }
+
+    /**
+     * Lex the next token and append it to tokens. Returns false at the end of
+     * the input.
+     */
+    public boolean next(TokenBuffer tokens) {
+        while (true) {
+            if (pos >= limit && !available(pos)) return false;
+            if (pos >= CHUNK_SIZE && in != null) compact();
+            char c = buf[pos];
+            switch (charClass(c)) {
+                case SPACE -> pos++;
+                case LETTER -> {
+                    int end = pos + 1;
+                    while (isWordChar(charAt(end))) end++;
+                    lexIdentifierOrKeyword(tokens, end);
+                    return true;
+                }
+                case DIGIT, DOT -> {
+                    lexNumber(tokens);
+                    return true;
+                }
+                case PUNCTUATION -> {
+                    if (lexPunctuation(tokens)) return true;
+                }
+                default -> throw cantHandle(pos);
+            }
+        }
+    }
+
+    /**
+     * Discard the characters that have already been lexed. Only called
+     * between tokens so that indexes held while lexing a token stay valid.
+     */
+    private void compact() {
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        base += pos;
+        pos = 0;
+    }
+
+    /**
+     * Make sure buf[i] has been read, reading more input (and growing the
+     * buffer if necessary) if it hasn't. Returns false if the input ends
+     * before i.
+     */
+    private boolean available(int i) {
+        while (i >= limit) {
+            if (eof) return false;
+            if (limit == buf.length) {
+                char[] newBuf = new char[buf.length * 2];
+                System.arraycopy(buf, 0, newBuf, 0, limit);
+                buf = newBuf;
+            }
+            try {
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n < 0) eof = true;
+                else limit += n;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns buf[i], or 0 (which is never part of a token) at the end of the
+     * input.
+     */
+    private char charAt(int i) {
+        return i < limit || available(i) ? buf[i] : 0;
+    }
+
+    private static byte charClass(char c) {
+        return c < 128 ? CHAR_CLASS[c] : OTHER;
+    }
+
+    private static boolean isWordChar(char c) {
+        byte cc = charClass(c);
+        return cc == LETTER || cc == DIGIT;
+    }
+
+    private boolean isDigit(int i) {
+        return charClass(charAt(i)) == DIGIT;
+    }
+
+    private void lexIdentifierOrKeyword(TokenBuffer tokens, int end) {
+        int start = pos;
+        int len = end - start;
+        pos = end;
+        char first = buf[start];
+        if (first >= 'a' && first <= 'z') {
+            outer:
+            for (Keyword keyword : KEYWORDS[first - 'a']) {
+                String text = keyword.text();
+                if (text.length() != len) continue;
+                for (int i = 1; i < len; i++) {
+                    if (buf[start + i] != text.charAt(i)) continue outer;
                 }
+                tokens.add(keyword.type(), base + start, len, -1);
+                return;
+            }
+        }
+        addWithValue(tokens, IDENTIFIER, start, len);
+    }
+
+    private void addWithValue(TokenBuffer tokens, TokenType type, int start, int len) {
+        tokens.add(type, base + start, len, tokens.names().intern(buf, start, len));
+    }
+
+    /**
+     * Lex an integer or floating point literal starting at {@code pos}.
+     * Like the grammar in the book a literal must not be immediately followed
+     * by a word character or a '.'.
+     */
+    private void lexNumber(TokenBuffer tokens) {
+        int start = pos;
+        int i = start;
+        while (isDigit(i)) i++;
+        boolean isDouble = false;
+        if (charAt(i) == '.') {
+            if (i == start && !isDigit(i + 1)) throw cantHandle(start);
+            isDouble = true;
+            i++;
+            while (isDigit(i)) i++;
+        }
+        if (charAt(i) == 'e' || charAt(i) == 'E') {
+            int exponent = i + 1;
+            if (charAt(exponent) == '+' || charAt(exponent) == '-')
+                exponent++;
+            if (isDigit(exponent)) {
+                isDouble = true;
+                i = exponent;
+                while (isDigit(i)) i++;
+            }
+        }
+        TokenType type = DOUBLE_LITERAL;
+        if (!isDouble) {
+            boolean unsigned = false;
+            boolean isLong = false;
+            for (int suffixLength = 0; suffixLength < 2; suffixLength++) {
+                char c = charAt(i);
+                if ((c == 'u' || c == 'U') && !unsigned) unsigned = true;
+                else if ((c == 'l' || c == 'L') && !isLong) isLong = true;
+                else break;
+                i++;
             }
-            for (Token tokenType : TOKEN_TYPES_TO_MATCH) {
-                matcher.usePattern(tokenType.regex());
-                if (matcher.lookingAt()) {
-                    int end = matcher.end(tokenType.group());
-                    if (tokenType != TokenType.SINGLE_LINE_COMMENT && tokenType != TokenType.MULTILINE_COMMENT) {
-                        if (tokenType == IDENTIFIER || tokenType == TokenType.DOUBLE_LITERAL ||
-                                tokenType == TokenType.INT_LITERAL || tokenType == LONG_LITERAL
-                                || tokenType == UNSIGNED_INT_LITERAL || tokenType == UNSIGNED_LONG_LITERAL) {
-                            int start = matcher.start();
-                            String value = src.substring(start, end);
-                            Token token = switch (value) {
-                                case "break" -> TokenType.BREAK;
-                                case "continue" -> TokenType.CONTINUE;
-                                case "do" -> TokenType.DO;
-                                case "double" -> TokenType.DOUBLE;
-                                case "else" -> TokenType.ELSE;
-                                case "extern" -> TokenType.EXTERN;
-                                case "for" -> TokenType.FOR;
-                                case "if" -> TokenType.IF;
-                                case "int" -> TokenType.INT;
-                                case "long" -> TokenType.LONG;
-                                case "return" -> TokenType.RETURN;
-                                case "signed" -> TokenType.SIGNED;
-                                case "static" -> TokenType.STATIC;
-                                case "unsigned" -> TokenType.UNSIGNED;
-                                case "void" -> TokenType.VOID;
-                                case "while" -> TokenType.WHILE;
-                                default -> new TokenWithValue(tokenType, value);
-                            };
-                            tokens.add(token);
-                        } else {
-                            tokens.add(tokenType);
-                        }
-                    }
-
-                    i = end;
-                    continue outer;
+            type = unsigned ? (isLong ? UNSIGNED_LONG_LITERAL : UNSIGNED_INT_LITERAL)
+                    : isLong ? LONG_LITERAL : INT_LITERAL;
+        }
+        char next = charAt(i);
+        if (isWordChar(next) || next == '.') {
+            throw cantHandle(start);
+        }
+        pos = i;
+        addWithValue(tokens, type, start, i - start);
+    }
+
+    /**
+     * Lex an operator or punctuator at {@code pos}. Returns false if a
+     * comment was skipped instead.
+     */
+    private boolean lexPunctuation(TokenBuffer tokens) {
+        char c = buf[pos];
+        char next = charAt(pos + 1);
+        if (c == '/' && next == '/') {
+            skipSingleLineComment();
+            return false;
+        }
+        if (c == '/' && next == '*') {
+            skipMultilineComment();
+            return false;
+        }
+        Token token = switch (c) {
+            case '(' -> OPEN_PAREN;
+            case ')' -> CLOSE_PAREN;
+            case '{' -> OPEN_BRACE;
+            case '}' -> CLOSE_BRACE;
+            case ';' -> SEMICOLON;
+            case '~' -> BITWISE_NOT;
+            case '?' -> QUESTION_MARK;
+            case ':' -> COLON;
+            case ',' -> COMMA;
+            case '*' -> IMUL;
+            case '%' -> REMAINDER;
+            case '^' -> BITWISE_XOR;
+            case '/' -> DIVIDE;
+            case '-' -> next == '-' ? DECREMENT : SUB;
+            case '+' -> next == '+' ? INCREMENT : ADD;
+            case '=' -> next == '=' ? EQUALS : BECOMES;
+            case '!' -> next == '=' ? NOT_EQUALS : NOT;
+            case '<' -> next == '=' ? LESS_THAN_OR_EQUAL : LESS_THAN;
+            case '>' -> next == '=' ? GREATER_THAN_OR_EQUAL : GREATER_THAN;
+            case '&' -> next == '&' ? AND : null;
+            case '|' -> next == '|' ? OR : null;
+            default -> null;
+        };
+        if (token == null) throw cantHandle(pos);
+        int len = switch (token) {
+            case DECREMENT, INCREMENT, EQUALS, NOT_EQUALS, LESS_THAN_OR_EQUAL,
+                 GREATER_THAN_OR_EQUAL, AND, OR -> 2;
+            default -> 1;
+        };
+        tokens.add(token, base + pos, len, -1);
+        pos += len;
+        return true;
+    }
+
+    private void skipSingleLineComment() {
+        int i = pos + 2;
+        while (available(i)) {
+            switch (buf[i]) {
+                case '\n', '\r', '\u0085', '\u2028', '\u2029' -> {
+                    pos = i;
+                    return;
                 }
+                default -> i++;
             }
-            throw new IllegalArgumentException("can't handle token at " + src.substring(i));
         }
-        return tokens;
+        pos = i;
+    }
+
+    private void skipMultilineComment() {
+        // a comment ends at the first */ after the opening /*
+        for (int i = pos + 2; available(i + 1); i++) {
+            if (buf[i] == '*' && buf[i + 1] == '/') {
+                pos = i + 2;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("unterminated comment at " + new String(buf, pos, limit - pos));
+    }
+
+    private IllegalArgumentException cantHandle(int i) {
+        return new IllegalArgumentException("can't handle token at " + new String(buf, i, limit - i));
     }
 }
@@ -2,38 +2,52 @@ package com.quaxt.mcc;
 
 import com.quaxt.mcc.asm.Codegen;
 import com.quaxt.mcc.asm.ProgramAsm;
+import com.quaxt.mcc.optimizer.Optimizer;
+import com.quaxt.mcc.parser.FlatAst;
 import com.quaxt.mcc.parser.Parser;
 import com.quaxt.mcc.parser.Program;
-import com.quaxt.mcc.semantic.SemanticAnalysis;
+import com.quaxt.mcc.preprocessor.Preprocessor;
+import com.quaxt.mcc.semantic.FlatSemanticAnalysis;
+import com.quaxt.mcc.semantic.FusedSemanticAnalysis;
+import com.quaxt.mcc.tacky.FlatIrGen;
 import com.quaxt.mcc.tacky.IrGen;
 import com.quaxt.mcc.tacky.ProgramIr;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 public class Mcc {
 
-    public static final HashMap<String, SymbolTableEntry> SYMBOL_TABLE = new HashMap<>(){
-        @Override
-        public SymbolTableEntry put(String key, SymbolTableEntry value) {
-            return super.put(key, value);
-        }
-    };
-
-    public static final AtomicLong TEMP_COUNT = new AtomicLong(0L);
+    enum Mode {PREPROCESS, LEX, PARSE, VALIDATE, CODEGEN, COMPILE, TACKY, ASSEMBLE}
 
-    public static String makeTemporary(String prefix) {
-        return prefix + TEMP_COUNT.getAndIncrement();
-    }
-
-    enum Mode {LEX, PARSE, VALIDATE, CODEGEN, COMPILE, TACKY, ASSEMBLE}
+    private static final String USAGE = """
+            usage: mcc [options] file.c
+              -E, --lex, --parse, --validate, --tacky, --codegen, -S, -c
+                                   stop after that stage; by default link file
+              -no-integrated-cpp   preprocess with gcc -E through a file
+              -pipe                preprocess with gcc -E through a pipe, so
+                                   implies -no-integrated-cpp
+              -flat-ast            parse into a flat AST and analyse that;
+                                   parses on one thread
+              -parse-threads=N     parse top level declarations on N threads
+              -O, -O1, -O2         allocate registers (by whichever of the
+                                   two is faster for each function, by
+                                   linear scan, by graph colouring) and
+                                   turn on every optimisation below
+              -ffold-constants, -feliminate-unreachable-code,
+              -fpropagate-copies, -feliminate-dead-stores
+              -fshare-stack-slots, -fomit-frame-pointer,
+              -maccumulate-outgoing-args
+              -stats               print statistics about the compilation
+              -lLIB                link with LIB
+            """;
 
     public static int preprocess(Path cFile, Path iFile) throws IOException, InterruptedException {
         ProcessBuilder pb =
@@ -41,6 +55,25 @@ public class Mcc {
         return pb.start().waitFor();
     }
 
+    /**
+     * Start gcc -E writing the preprocessed source to a pipe instead of an
+     * intermediate file, so that it can be lexed and parsed while the
+     * preprocessor is still running.
+     */
+    public static Process startPreprocessor(Path cFile) throws IOException {
+        ProcessBuilder pb =
+                new ProcessBuilder("gcc", "-E", "-P", cFile.toString())
+                        .redirectError(ProcessBuilder.Redirect.INHERIT);
+        return pb.start();
+    }
+
+    private static void waitForPreprocessor(Process preprocessor) throws InterruptedException {
+        int preprocessExitCode = preprocessor.waitFor();
+        if (preprocessExitCode != 0) {
+            System.exit(preprocessExitCode);
+        }
+    }
+
     private static int assembleAndLink(Path asmFile, String bareFileName, boolean doNotCompile, List<String> libs) throws InterruptedException, IOException {
         List<String> gccArgs = new ArrayList<>(Arrays.asList("gcc", asmFile.toString()));
         if (doNotCompile) {
@@ -53,15 +86,67 @@ public class Mcc {
         return pb.start().waitFor();
     }
 
+    /**
+     * Compile source, the contents of options.sourceFile(), to assembly.
+     * Everything a compilation needs is local to the call, so this may be
+     * called from several threads at once.
+     */
+    public static String compile(String source, CompileOptions options) {
+        CompilationContext ctx = new CompilationContext(options);
+        TokenCursor tokens = new TokenCursor(new Lexer(new Preprocessor(options.sourceFile(), source)));
+        FlatAst ast = options.flatAst() ? Parser.parseFlatProgram(tokens) : null;
+        Program program = ast == null ? Parser.parseProgram(tokens, options.parseThreads()) : null;
+        if (!tokens.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected token " + tokens.current());
+        }
+        ProgramIr programIr = ast != null ? programIr(ctx, ast, Mode.COMPILE) : programIr(ctx, program, Mode.COMPILE);
+        StringWriter out = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(out)) {
+            Codegen.generateProgramAssembly(ctx, programIr).emitAsm(ctx, pw);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Run semantic analysis, TACKY generation and the TACKY optimisations
+     * that the options ask for, or only semantic analysis if mode is
+     * VALIDATE, in which case null is returned.
+     */
+    private static ProgramIr programIr(CompilationContext ctx, Program program, Mode mode) {
+        program = FusedSemanticAnalysis.analyzeProgram(ctx, program);
+        return mode == Mode.VALIDATE ? null : Optimizer.optimize(ctx, IrGen.programIr(ctx, program));
+    }
+
+    /**
+     * The same, on a flat AST.
+     */
+    private static ProgramIr programIr(CompilationContext ctx, FlatAst ast, Mode mode) {
+        FlatSemanticAnalysis.resolveProgram(ctx, ast);
+        FlatSemanticAnalysis.typeCheckProgram(ctx, ast);
+        FlatSemanticAnalysis.loopLabelProgram(ctx, ast);
+        return mode == Mode.VALIDATE ? null : Optimizer.optimize(ctx, FlatIrGen.programIr(ctx, ast));
+    }
+
     public static void main(String[] args0) throws Exception {
         ArrayList<String> args = Arrays.stream(args0)
                 .collect(Collectors.toCollection(ArrayList::new));
         Mode mode = Mode.ASSEMBLE;
         boolean doNotCompile = false;
+        boolean pipe = false;
+        boolean integratedPreprocessor = true;
+        boolean flatAst = false;
+        RegisterAllocation registerAllocation = RegisterAllocation.NONE;
+        boolean stats = false;
+        boolean omitFramePointer = false;
+        boolean shareStackSlots = false;
+        boolean accumulateOutgoingArgs = false;
+        EnumSet<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+        int parseThreads = 1;
         List<String> libs = new ArrayList<>();
         for (int i = args.size() - 1; i >= 0; i--) {
             String arg = args.get(i);
             Mode newMode = switch (arg) {
+                case "-E" -> Mode.PREPROCESS;
                 case "--lex" -> Mode.LEX;
                 case "--parse" -> Mode.PARSE;
                 case "--validate" -> Mode.VALIDATE;
@@ -73,10 +158,83 @@ public class Mcc {
                     args.remove(i);
                     yield null;
                 }
+                case "-pipe" -> {
+                    pipe = true;
+                    integratedPreprocessor = false;
+                    args.remove(i);
+                    yield null;
+                }
+                case "-no-integrated-cpp" -> {
+                    integratedPreprocessor = false;
+                    args.remove(i);
+                    yield null;
+                }
+                case "-flat-ast" -> {
+                    flatAst = true;
+                    args.remove(i);
+                    yield null;
+                }
+                case "-fomit-frame-pointer" -> {
+                    omitFramePointer = true;
+                    args.remove(i);
+                    yield null;
+                }
+                case "-fshare-stack-slots" -> {
+                    shareStackSlots = true;
+                    args.remove(i);
+                    yield null;
+                }
+                case "-maccumulate-outgoing-args" -> {
+                    accumulateOutgoingArgs = true;
+                    args.remove(i);
+                    yield null;
+                }
+                case "-ffold-constants" -> {
+                    optimizations.add(Optimization.FOLD_CONSTANTS);
+                    args.remove(i);
+                    yield null;
+                }
+                case "-feliminate-unreachable-code" -> {
+                    optimizations.add(Optimization.ELIMINATE_UNREACHABLE_CODE);
+                    args.remove(i);
+                    yield null;
+                }
+                case "-fpropagate-copies" -> {
+                    optimizations.add(Optimization.PROPAGATE_COPIES);
+                    args.remove(i);
+                    yield null;
+                }
+                case "-feliminate-dead-stores" -> {
+                    optimizations.add(Optimization.ELIMINATE_DEAD_STORES);
+                    args.remove(i);
+                    yield null;
+                }
+                case "-stats" -> {
+                    stats = true;
+                    args.remove(i);
+                    yield null;
+                }
+                case "-O", "-O1", "-O2" -> {
+                    registerAllocation = switch (arg) {
+                        case "-O1" -> RegisterAllocation.LINEAR_SCAN;
+                        case "-O2" -> RegisterAllocation.GRAPH_COLOURING;
+                        default -> RegisterAllocation.BY_SIZE;
+                    };
+                    shareStackSlots = true;
+                    optimizations.addAll(EnumSet.allOf(Optimization.class));
+                    args.remove(i);
+                    yield null;
+                }
                 default -> {
                     if (arg.startsWith("-l")) {
                         libs.addFirst(arg);
                         args.remove(i);
+                    } else if (arg.startsWith("-parse-threads=")) {
+                        parseThreads = Integer.parseInt(arg.substring("-parse-threads=".length()));
+                        if (parseThreads < 1) {
+                            throw new IllegalArgumentException("-parse-threads must be at least 1");
+                        }
+                        args.remove(i);
                     }
                     yield null;
                 }
@@ -86,48 +244,71 @@ public class Mcc {
                 args.remove(i);
             }
         }
-        Path srcFile = Path.of(args.getFirst());
-        if (args.size() > 1) {
-            System.err.println("unrecognized argument: " + args.get(1));
+        if (args.size() != 1) {
+            if (args.size() > 1) System.err.println("unrecognized argument: " + args.get(1));
+            System.err.print(USAGE);
             System.exit(-1);
         }
+        Path srcFile = Path.of(args.getFirst());
         String bareFileName = removeEnding(srcFile.getFileName().toString());
-        Path intermediateFile = srcFile.resolveSibling(bareFileName + ".i");
+        Reader source;
+        Process preprocessor = null;
+        if (integratedPreprocessor) {
+            source = new Preprocessor(srcFile);
+        } else if (pipe) {
+            preprocessor = startPreprocessor(srcFile);
+            source = new InputStreamReader(preprocessor.getInputStream(), StandardCharsets.UTF_8);
+        } else {
+            Path intermediateFile = srcFile.resolveSibling(bareFileName + ".i");
 
-        int preprocessExitCode = preprocess(srcFile, intermediateFile);
-        if (preprocessExitCode != 0) {
-            System.exit(preprocessExitCode);
+            int preprocessExitCode = preprocess(srcFile, intermediateFile);
+            if (preprocessExitCode != 0) {
+                System.exit(preprocessExitCode);
+            }
+            source = new StringReader(Files.readString(intermediateFile));
+            Files.delete(intermediateFile);
+        }
+        if (mode == Mode.PREPROCESS) {
+            Writer w = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            source.transferTo(w);
+            w.flush();
+            if (preprocessor != null) {
+                waitForPreprocessor(preprocessor);
+            }
+            return;
         }
-        List<Token> l = Lexer.lex(Files.readString(intermediateFile));
-        Files.delete(intermediateFile);
+        TokenCursor tokens = new TokenCursor(new Lexer(source));
         if (mode == Mode.LEX) {
+            while (!tokens.isEmpty()) tokens.advance();
+            if (preprocessor != null) {
+                waitForPreprocessor(preprocessor);
+            }
             return;
         }
-        Program program = Parser.parseProgram(l);
-        if (!l.isEmpty()) {
-            throw new IllegalArgumentException("Unexpected token " + l.getFirst());
+        FlatAst ast = flatAst ? Parser.parseFlatProgram(tokens) : null;
+        Program program = ast == null ? Parser.parseProgram(tokens, parseThreads) : null;
+        if (!tokens.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected token " + tokens.current());
+        }
+        if (preprocessor != null) {
+            waitForPreprocessor(preprocessor);
         }
         if (mode == Mode.PARSE) {
             return;
         }
 
-        program = SemanticAnalysis.resolveProgram(program);
-        SemanticAnalysis.typeCheckProgram(program);
-        program = SemanticAnalysis.loopLabelProgram(program);
-        if (mode == Mode.VALIDATE) {
-            return;
-        }
-        ProgramIr programIr = IrGen.programIr(program);
-        if (mode == Mode.TACKY) {
+        CompilationContext ctx = new CompilationContext(new CompileOptions(srcFile, parseThreads, flatAst, registerAllocation, stats, omitFramePointer, shareStackSlots, accumulateOutgoingArgs, optimizations));
+        ProgramIr programIr = ast != null ? programIr(ctx, ast, mode) : programIr(ctx, program, mode);
+        if (mode == Mode.VALIDATE || mode == Mode.TACKY) {
             return;
         }
-        ProgramAsm programAsm = Codegen.generateProgramAssembly(programIr);
+        ProgramAsm programAsm = Codegen.generateProgramAssembly(ctx, programIr);
         if (mode == Mode.CODEGEN) {
             return;
         }
         Path asmFile = srcFile.resolveSibling(bareFileName + ".s");
         try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(asmFile))) {
-            programAsm.emitAsm(pw);
+            programAsm.emitAsm(ctx, pw);
             pw.flush();
         }
 
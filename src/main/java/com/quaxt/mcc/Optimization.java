@@ -0,0 +1,12 @@
+package com.quaxt.mcc;
+
+/**
+ * The optimisations that can be run on TACKY before instruction
+ * selection.
+ */
+public enum Optimization {
+    FOLD_CONSTANTS,
+    ELIMINATE_UNREACHABLE_CODE,
+    PROPAGATE_COPIES,
+    ELIMINATE_DEAD_STORES
+}
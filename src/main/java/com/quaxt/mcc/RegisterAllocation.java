@@ -0,0 +1,11 @@
+package com.quaxt.mcc;
+
+/**
+ * How the backend keeps pseudos in registers: not at all, by linear scan,
+ * by graph colouring, or by graph colouring for all but the functions
+ * whose interference graph is so large and dense that linear scan is
+ * faster.
+ */
+public enum RegisterAllocation {
+    NONE, LINEAR_SCAN, GRAPH_COLOURING, BY_SIZE
+}
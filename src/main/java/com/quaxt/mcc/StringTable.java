@@ -0,0 +1,75 @@
+package com.quaxt.mcc;
+
+/**
+ * Interns the text of identifiers and literals as the lexer finds them, so
+ * each distinct name is allocated once and tokens refer to it by a dense int
+ * id. Looking up a name that has already been seen allocates nothing.
+ */
+public final class StringTable {
+    private String[] strings = new String[256];
+    private int[] hashes = new int[256];
+    private int size;
+    // open addressing hash table of id + 1, 0 means empty
+    private int[] slots = new int[512];
+
+    public int intern(char[] buf, int start, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf[start + i];
+        }
+        int mask = slots.length - 1;
+        for (int slot = (h ^ (h >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                id = add(new String(buf, start, len), h);
+                slots[slot] = id + 1;
+                if (size * 2 > slots.length) rehash();
+                return id;
+            }
+            if (hashes[id] == h && regionEquals(strings[id], buf, start, len)) {
+                return id;
+            }
+        }
+    }
+
+    public String get(int id) {
+        return strings[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean regionEquals(String s, char[] buf, int start, int len) {
+        if (s.length() != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != buf[start + i]) return false;
+        }
+        return true;
+    }
+
+    private int add(String s, int hash) {
+        if (size == strings.length) {
+            String[] newStrings = new String[size * 2];
+            System.arraycopy(strings, 0, newStrings, 0, size);
+            strings = newStrings;
+            int[] newHashes = new int[size * 2];
+            System.arraycopy(hashes, 0, newHashes, 0, size);
+            hashes = newHashes;
+        }
+        strings[size] = s;
+        hashes[size] = hash;
+        return size++;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int h = hashes[id];
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.quaxt.mcc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Every variable, temporary and function of a translation unit, numbered
+ * with dense int ids so that the passes after semantic analysis can refer
+ * to a symbol by id and find its entry by indexing an array. Source names
+ * are interned once; a temporary is never looked up by name, so its name
+ * is only built if something asks for it.
+ */
+public final class SymbolTable {
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    // the name, or for a temporary whose name has not been built yet its prefix
+    private String[] names = new String[256];
+    // the temporary number to append to names[id], -1 once appended
+    private long[] numbers = new long[256];
+    private SymbolTableEntry[] entries = new SymbolTableEntry[256];
+    private int size;
+
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        int newId = add(name, -1, null);
+        ids.put(name, newId);
+        return newId;
+    }
+
+    public int addTemporary(String prefix, long number, SymbolTableEntry entry) {
+        return add(prefix, number, entry);
+    }
+
+    public String name(int id) {
+        if (numbers[id] >= 0) {
+            names[id] = names[id] + numbers[id];
+            numbers[id] = -1;
+        }
+        return names[id];
+    }
+
+    public SymbolTableEntry get(int id) {
+        return entries[id];
+    }
+
+    public SymbolTableEntry get(String name) {
+        Integer id = ids.get(name);
+        return id == null ? null : entries[id];
+    }
+
+    public void put(String name, SymbolTableEntry entry) {
+        int id = intern(name);
+        entries[id] = entry;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int add(String name, long number, SymbolTableEntry entry) {
+        if (size == names.length) {
+            int newLength = size * 2;
+            names = Arrays.copyOf(names, newLength);
+            numbers = Arrays.copyOf(numbers, newLength);
+            entries = Arrays.copyOf(entries, newLength);
+        }
+        names[size] = name;
+        numbers[size] = number;
+        entries[size] = entry;
+        return size++;
+    }
+}
@@ -0,0 +1,108 @@
+package com.quaxt.mcc;
+
+/**
+ * Tokens packed into parallel int arrays instead of one object per token.
+ * For each token we store its kind (an index into {@link #KINDS}), its
+ * offset and length in the source, and for identifiers and literals the id
+ * of its text in a {@link StringTable} (-1 for other tokens).
+ */
+public final class TokenBuffer {
+    private static final int ARITHMETIC_BASE = TokenType.values().length;
+    private static final int CMP_BASE = ARITHMETIC_BASE + ArithmeticOperator.values().length;
+    private static final Token[] KINDS = new Token[CMP_BASE + CmpOperator.values().length];
+
+    static {
+        for (TokenType t : TokenType.values()) KINDS[kindOf(t)] = t;
+        for (ArithmeticOperator t : ArithmeticOperator.values()) KINDS[kindOf(t)] = t;
+        for (CmpOperator t : CmpOperator.values()) KINDS[kindOf(t)] = t;
+    }
+
+    public static int kindOf(Token t) {
+        return switch (t) {
+            case TokenType type -> type.ordinal();
+            case ArithmeticOperator op -> ARITHMETIC_BASE + op.ordinal();
+            case CmpOperator op -> CMP_BASE + op.ordinal();
+            case TokenWithValue(Token type, String _) -> kindOf(type);
+        };
+    }
+
+    private final StringTable names;
+    private int[] kinds = new int[1024];
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private int[] values = new int[1024];
+    private int size;
+
+    public TokenBuffer(StringTable names) {
+        this.names = names;
+    }
+
+    public void add(Token kind, int offset, int length, int value) {
+        if (size == kinds.length) {
+            kinds = grow(kinds);
+            offsets = grow(offsets);
+            lengths = grow(lengths);
+            values = grow(values);
+        }
+        kinds[size] = kindOf(kind);
+        offsets[size] = offset;
+        lengths[size] = length;
+        values[size] = value;
+        size++;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /**
+     * Drop the first n tokens, the token that was at index n is now at 0.
+     */
+    public void discard(int n) {
+        int remaining = size - n;
+        System.arraycopy(kinds, n, kinds, 0, remaining);
+        System.arraycopy(offsets, n, offsets, 0, remaining);
+        System.arraycopy(lengths, n, lengths, 0, remaining);
+        System.arraycopy(values, n, values, 0, remaining);
+        size = remaining;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public StringTable names() {
+        return names;
+    }
+
+    /**
+     * The kind of token i: an operator or keyword, or for identifiers and
+     * literals one of IDENTIFIER, INT_LITERAL, ...
+     */
+    public Token kind(int i) {
+        return KINDS[kinds[i]];
+    }
+
+    public String value(int i) {
+        int v = values[i];
+        return v < 0 ? null : names.get(v);
+    }
+
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * Token i as an object, only needed for error messages.
+     */
+    public Token token(int i) {
+        Token kind = kind(i);
+        return values[i] < 0 ? kind : new TokenWithValue(kind, value(i));
+    }
+}
@@ -0,0 +1,171 @@
+package com.quaxt.mcc;
+
+import java.util.NoSuchElementException;
+
+/**
+ * The parser's view of the token stream. Tokens are lexed into a
+ * {@link TokenBuffer} only when the parser looks at them, and tokens that
+ * have been consumed are dropped from the buffer from time to time, so the
+ * buffer stays small even for very large inputs.
+ * <p>
+ * All operations are O(1) (amortized), in particular advancing never shifts
+ * the remaining tokens the way removeFirst on an ArrayList does. For
+ * backtracking the parser can {@link #mark()} a position and later either
+ * {@link #reset(int)} to it or {@link #release(int)} it. Tokens after the
+ * oldest live mark are kept until it is released.
+ * <p>
+ * A cursor can also be a {@link #slice(int, int)} of another one, sharing its
+ * buffer. Slices don't lex or discard anything, so several of them can be
+ * used by different threads at the same time.
+ */
+public final class TokenCursor {
+    private static final int DISCARD_THRESHOLD = 4096;
+
+    private final Lexer lexer;
+    private final TokenBuffer buffer;
+    // buffer index of the end of a slice
+    private final int end;
+    private int pos;
+    // number of tokens dropped from the front of buffer, so discarded + pos
+    // is the index of the current token in the whole stream
+    private int discarded;
+    // live marks, innermost last
+    private int[] marks = new int[8];
+    private int markCount;
+
+    public TokenCursor(Lexer lexer) {
+        this.lexer = lexer;
+        this.buffer = new TokenBuffer(new StringTable());
+        this.end = Integer.MAX_VALUE;
+    }
+
+    private TokenCursor(TokenBuffer buffer, int start, int end) {
+        this.lexer = null;
+        this.buffer = buffer;
+        this.pos = start;
+        this.end = end;
+    }
+
+    /**
+     * Lex until buffer index i exists, returns false if the input ends first.
+     */
+    private boolean fill(int i) {
+        if (lexer == null) return i < end;
+        while (i >= buffer.size()) {
+            if (!lexer.next(buffer)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Lex the rest of the input, returning the number of tokens left.
+     */
+    public int lexAll() {
+        if (lexer != null) {
+            while (lexer.next(buffer)) {
+                // keep going
+            }
+        }
+        return Math.min(end, buffer.size()) - pos;
+    }
+
+    /**
+     * The kind of the token n tokens after the current one, null if the
+     * input ends first.
+     */
+    public Token peek(int n) {
+        return fill(pos + n) ? buffer.kind(pos + n) : null;
+    }
+
+    /**
+     * A cursor over the tokens from n1 to n2 tokens after the current one,
+     * which must already have been lexed.
+     */
+    public TokenCursor slice(int n1, int n2) {
+        if (pos + n2 > buffer.size()) throw new IllegalArgumentException("slice end " + n2 + " has not been lexed");
+        return new TokenCursor(buffer, pos + n1, pos + n2);
+    }
+
+    public boolean isEmpty() {
+        return !fill(pos);
+    }
+
+    /**
+     * The kind of the current token.
+     */
+    public Token peek() {
+        if (!fill(pos)) throw new NoSuchElementException();
+        return buffer.kind(pos);
+    }
+
+    /**
+     * The text of the current token if it is an identifier or literal.
+     */
+    public String value() {
+        if (!fill(pos)) throw new NoSuchElementException();
+        return buffer.value(pos);
+    }
+
+    /**
+     * Consume the current token, returning its kind.
+     */
+    public Token advance() {
+        Token t = peek();
+        pos++;
+        if (pos >= DISCARD_THRESHOLD && markCount == 0 && lexer != null) {
+            buffer.discard(pos);
+            discarded += pos;
+            pos = 0;
+        }
+        return t;
+    }
+
+    /**
+     * Consume n tokens, which must already have been lexed.
+     */
+    public void advance(int n) {
+        if (pos + n > Math.min(end, buffer.size())) throw new NoSuchElementException();
+        pos += n;
+    }
+
+    /**
+     * Remember the current position so that the parser can come back to it.
+     * Every mark must be passed to either {@link #reset(int)} or
+     * {@link #release(int)}, innermost first.
+     */
+    public int mark() {
+        if (markCount == marks.length) {
+            int[] newMarks = new int[markCount * 2];
+            System.arraycopy(marks, 0, newMarks, 0, markCount);
+            marks = newMarks;
+        }
+        int mark = discarded + pos;
+        marks[markCount++] = mark;
+        return mark;
+    }
+
+    /**
+     * Go back to a position returned by {@link #mark()} and release it.
+     */
+    public void reset(int mark) {
+        release(mark);
+        pos = mark - discarded;
+    }
+
+    /**
+     * Forget a mark without moving the cursor.
+     */
+    public void release(int mark) {
+        if (markCount == 0 || marks[markCount - 1] != mark) {
+            throw new IllegalStateException("mark " + mark + " is not the innermost live mark");
+        }
+        markCount--;
+    }
+
+    /**
+     * The current token as an object, for error messages.
+     */
+    public Token current() {
+        return fill(pos) ? buffer.token(pos) : null;
+    }
+}
@@ -1,4 +1,4 @@
 package com.quaxt.mcc.asm;
 
-public record Call(String name) implements Instruction {
+public record Call(int id) implements Instruction {
 }
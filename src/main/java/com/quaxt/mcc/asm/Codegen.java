@@ -8,41 +8,51 @@ import com.quaxt.mcc.tacky.*;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import static com.quaxt.mcc.ArithmeticOperator.*;
 import static com.quaxt.mcc.CmpOperator.EQUALS;
 import static com.quaxt.mcc.CmpOperator.NOT_EQUALS;
-import static com.quaxt.mcc.Mcc.SYMBOL_TABLE;
 import static com.quaxt.mcc.asm.DoubleReg.*;
 import static com.quaxt.mcc.asm.Nullary.RET;
 import static com.quaxt.mcc.asm.Reg.*;
 import static com.quaxt.mcc.asm.TypeAsm.*;
-import static com.quaxt.mcc.tacky.IrGen.newLabel;
 
 public class Codegen {
-    static HashMap<Double, StaticConstant> CONSTANT_TABLE = new HashMap<>();
-    private static final Data NEGATIVE_ZERO;
-    private static final Data UPPER_BOUND;
-
     private static String toHexString(double d) {
         return Double.toHexString(d).replaceAll("-", "_");
     }
 
     private static final Imm UPPER_BOUND_LONG_IMMEDIATE = new Imm(1L << 63);
 
-    static {
+    private final CompilationContext ctx;
+    private final Data negativeZero;
+    private final Data upperBound;
+    // stack offsets of pseudo registers by symbol id, valid where
+    // stackSlotOwners holds the number of the function being allocated
+    private int[] stackSlots = new int[0];
+    private int[] stackSlotOwners = new int[0];
+    private int functionNumber;
+
+    private Codegen(CompilationContext ctx) {
+        this.ctx = ctx;
         double negative_zero = -0.0;
         // can't just call resolve constant because 16-byte alignment
-        CONSTANT_TABLE.put(negative_zero, new StaticConstant("c." + toHexString(negative_zero), 16, new DoubleInit(negative_zero)));
-        NEGATIVE_ZERO = resolveConstant(-0.0d);
-        UPPER_BOUND = resolveConstant(0x1.0p63);
+        String label = "c." + toHexString(negative_zero);
+        ctx.constantTable().put(negative_zero, new StaticConstant(label, 16, new DoubleInit(negative_zero)));
+        negativeZero = new Data(ctx.symbolTable().intern(label));
+        upperBound = resolveConstant(0x1.0p63);
     }
 
-    public static ProgramAsm generateProgramAssembly(ProgramIr programIr) {
+    public static ProgramAsm generateProgramAssembly(CompilationContext ctx, ProgramIr programIr) {
+        Codegen codegen = new Codegen(ctx);
+        boolean allocateRegisters = ctx.options().registerAllocation() != RegisterAllocation.NONE;
+        RegisterAllocator registerAllocator = allocateRegisters || ctx.options().shareStackSlots()
+                ? new RegisterAllocator(ctx) : null;
         ArrayList<TopLevelAsm> topLevels = new ArrayList<>();
         for (TopLevel topLevel : programIr.topLevels()) {
             switch (topLevel) {
-                case FunctionIr f -> topLevels.add(generateAssembly(f));
+                case FunctionIr f -> topLevels.add(codegen.generateAssembly(f));
 
                 case StaticVariable(String name, boolean global, Type t,
                                     StaticInit init) -> {
@@ -54,29 +64,34 @@ public class Codegen {
                 }
             }
         }
-        topLevels.addAll(CONSTANT_TABLE.values());
-        generateBackendSymbolTable();
+        topLevels.addAll(ctx.constantTable().values());
+        codegen.generateBackendSymbolTable();
 
-        for (TopLevelAsm topLevelAsm : topLevels) {
-            if (topLevelAsm instanceof FunctionAsm functionAsm) {
+        for (int i = 0; i < topLevels.size(); i++) {
+            if (topLevels.get(i) instanceof FunctionAsm functionAsm) {
 
                 List<Instruction> instructionAsms = functionAsm.instructions();
-                AtomicInteger offset = replacePseudoRegisters(instructionAsms);
-                fixUpInstructions(offset, instructionAsms);
+                List<Reg> calleeSaved = allocateRegisters
+                        ? registerAllocator.allocate(functionAsm.name(), instructionAsms) : List.of();
+                int firstOffset = ctx.options().shareStackSlots()
+                        ? registerAllocator.shareStackSlots(functionAsm.name(), instructionAsms) : -8;
+                AtomicInteger offset = codegen.replacePseudoRegisters(instructionAsms, firstOffset);
+                topLevels.set(i, new FunctionAsm(functionAsm.name(), functionAsm.global(),
+                        fixUpInstructions(offset, calleeSaved, instructionAsms, ctx.options().omitFramePointer())));
             }
         }
 
         return new ProgramAsm(topLevels);
     }
 
-    public static Map<String, SymTabEntryAsm> BACKEND_SYMBOL_TABLE = new HashMap<>();
-
-    private static void generateBackendSymbolTable() {
-        for (Map.Entry<String, SymbolTableEntry> e : SYMBOL_TABLE.entrySet()) {
-            SymbolTableEntry v = e.getValue();
+    private void generateBackendSymbolTable() {
+        SymbolTable symbolTable = ctx.symbolTable();
+        for (int id = 0; id < symbolTable.size(); id++) {
+            SymbolTableEntry v = symbolTable.get(id);
+            if (v == null) continue;
             IdentifierAttributes attrs = v.attrs();
 
-            BACKEND_SYMBOL_TABLE.put(e.getKey(), switch (attrs) {
+            ctx.putBackendSymbol(id, switch (attrs) {
                 case FunAttributes(boolean defined, boolean _) ->
                         new FunEntry(defined);
                 case IdentifierAttributes.LocalAttr _ ->
@@ -85,8 +100,8 @@ public class Codegen {
                         new ObjEntry(toTypeAsm(v.type()), true, false);
             });
         }
-        for (StaticConstant v : CONSTANT_TABLE.values()) {
-            BACKEND_SYMBOL_TABLE.put(v.label(), new ObjEntry(DOUBLE, true, true));
+        for (StaticConstant v : ctx.constantTable().values()) {
+            ctx.putBackendSymbol(symbolTable.intern(v.label()), new ObjEntry(DOUBLE, true, true));
         }
     }
 
@@ -100,191 +115,308 @@ public class Codegen {
         } : op1;
     }
 
-    private static AtomicInteger replacePseudoRegisters(List<Instruction> instructions) {
-        AtomicInteger offset = new AtomicInteger(-8);
-        Map<String, Integer> varTable = new HashMap<>();
+    private AtomicInteger replacePseudoRegisters(List<Instruction> instructions, int firstOffset) {
+        AtomicInteger offset = new AtomicInteger(firstOffset);
+        functionNumber++;
+        int symbolCount = ctx.symbolTable().size();
+        if (stackSlots.length < symbolCount) {
+            stackSlots = new int[symbolCount];
+            stackSlotOwners = new int[symbolCount];
+        }
+        Function<Operand, Operand> dePseudo = operand -> dePseudo(operand, offset);
         for (int i = 0; i < instructions.size(); i++) {
-            Instruction oldInst = instructions.get(i);
-            Instruction newInst = switch (oldInst) {
-                case Nullary _, Cdq _, Jump _,
-                     JmpCC _,
-                     LabelIr _, Call _ -> oldInst;
-                case Mov(TypeAsm typeAsm, Operand src, Operand dst) ->
-                        new Mov(typeAsm, dePseudo(src, varTable, offset), dePseudo(dst, varTable, offset));
-                case Unary(UnaryOperator op, TypeAsm typeAsm,
-                           Operand operand) ->
-                        new Unary(op, typeAsm, dePseudo(operand, varTable, offset));
-                case Binary(ArithmeticOperator op, TypeAsm typeAsm, Operand src,
-                            Operand dst) ->
-                        new Binary(op, typeAsm, dePseudo(src, varTable, offset), dePseudo(dst, varTable, offset));
-
-                case Cmp(TypeAsm typeAsm, Operand subtrahend,
-                         Operand minuend) ->
-                        new Cmp(typeAsm, dePseudo(subtrahend, varTable, offset),
-                                dePseudo(minuend, varTable, offset));
-                case SetCC(
-                        CmpOperator cmpOperator,
-                        boolean signed,
-                        Operand operand
-                ) -> new SetCC(cmpOperator, signed,
-                        dePseudo(operand, varTable, offset));
-                case Push(Operand operand) ->
-                        new Push(dePseudo(operand, varTable, offset));
-                case Movsx(Operand src, Operand dst) ->
-                        new Movsx(dePseudo(src, varTable, offset),
-                                dePseudo(dst, varTable, offset));
-                case MovZeroExtend(Operand src, Operand dst) ->
-                        new MovZeroExtend(dePseudo(src, varTable, offset),
-                                dePseudo(dst, varTable, offset));
-                case Cvttsd2si(TypeAsm dstType, Operand src, Operand dst) ->
-                        new Cvttsd2si(dstType, dePseudo(src, varTable, offset),
-                                dePseudo(dst, varTable, offset));
-                case Cvtsi2sd(TypeAsm dstType, Operand src, Operand dst) ->
-                        new Cvtsi2sd(dstType, dePseudo(src, varTable, offset),
-                                dePseudo(dst, varTable, offset));
-            };
-            instructions.set(i, newInst);
+            instructions.set(i, mapOperands(instructions.get(i), dePseudo));
         }
         return offset;
     }
 
-    private static void fixUpInstructions(AtomicInteger offset, List<Instruction> instructions) {
+    /**
+     * Return in with each of its operands replaced by f applied to it, or in
+     * itself if it has no operands.
+     */
+    static Instruction mapOperands(Instruction in, Function<Operand, Operand> f) {
+        return switch (in) {
+            case Nullary _, Cdq _, Jump _,
+                 JmpCC _, Pop _,
+                 LabelIr _, Call _ -> in;
+            case Mov(TypeAsm typeAsm, Operand src, Operand dst) ->
+                    new Mov(typeAsm, f.apply(src), f.apply(dst));
+            case Unary(UnaryOperator op, TypeAsm typeAsm,
+                       Operand operand) ->
+                    new Unary(op, typeAsm, f.apply(operand));
+            case Binary(ArithmeticOperator op, TypeAsm typeAsm, Operand src,
+                        Operand dst) ->
+                    new Binary(op, typeAsm, f.apply(src), f.apply(dst));
+            case Cmp(TypeAsm typeAsm, Operand subtrahend,
+                     Operand minuend) ->
+                    new Cmp(typeAsm, f.apply(subtrahend), f.apply(minuend));
+            case SetCC(
+                    CmpOperator cmpOperator,
+                    boolean signed,
+                    Operand operand
+            ) -> new SetCC(cmpOperator, signed, f.apply(operand));
+            case Push(Operand operand) -> new Push(f.apply(operand));
+            case Movsx(Operand src, Operand dst) ->
+                    new Movsx(f.apply(src), f.apply(dst));
+            case MovZeroExtend(Operand src, Operand dst) ->
+                    new MovZeroExtend(f.apply(src), f.apply(dst));
+            case Cvttsd2si(TypeAsm dstType, Operand src, Operand dst) ->
+                    new Cvttsd2si(dstType, f.apply(src), f.apply(dst));
+            case Cvtsi2sd(TypeAsm dstType, Operand src, Operand dst) ->
+                    new Cvtsi2sd(dstType, f.apply(src), f.apply(dst));
+        };
+    }
+
+    /**
+     * Add the prologue and epilogues and fix the instructions that x86 does
+     * not allow. The locals are below %rbp, whose slots start at -8 - size,
+     * and the callee-saved registers are pushed below them.
+     * <p>
+     * Without a frame pointer nothing is pushed in %rbp's place and the
+     * locals move up 16 bytes, so that they start just below the return
+     * address, and the stack slots are rebased on %rsp. A leaf function
+     * whose locals and saved registers fit in the red zone, the 128 bytes
+     * below %rsp that a signal handler must not touch, does not move %rsp
+     * at all and saves registers with movs.
+     * <p>
+     * The stack arguments that codegenFunCall stores at %rsp-relative
+     * offsets, rather than pushes, go in an area below the saved registers
+     * that is big enough for the call with the most of them.
+     */
+    private static List<Instruction> fixUpInstructions(AtomicInteger offset, List<Reg> calleeSaved,
+                                                       List<Instruction> instructions, boolean omitFramePointer) {
         // Fix up instructions
         int stackSize = -offset.get();
-        // round up to next multiple of 16 (makes it easier to maintain
-        // alignment during function calls
-        int remainder = stackSize % 16;
-        if (remainder != 0) {
-            stackSize += (16 - remainder);
+        int saved = 8 * calleeSaved.size();
+        boolean redZone = false;
+        if (!omitFramePointer) {
+            // round up so that the stack frame, with the callee-saved
+            // registers pushed below it, is a multiple of 16 (makes it easier
+            // to maintain alignment during function calls
+            int remainder = (stackSize + saved) % 16;
+            if (remainder != 0) {
+                stackSize += (16 - remainder);
+            }
+        } else {
+            // the locals, rounded up to whole quadwords for the saved
+            // registers, and then so that %rsp, which was 8 off a multiple
+            // of 16 on entry, is a multiple of 16 below the saved registers
+            stackSize = (stackSize - 8 + 7) & ~7;
+            redZone = stackSize + saved <= 128 && instructions.stream().noneMatch(in -> in instanceof Call);
+            if (!redZone && (stackSize + saved) % 16 == 0) stackSize += 8;
         }
-        instructions.addFirst(new Binary(SUB, QUADWORD, new Imm(stackSize), SP));
-        // Fix illegal MOV, iDiV, ADD, SUB, IMUL instructions
-        for (int i = instructions.size() - 1; i >= 0; i--) {
-            Instruction oldInst = instructions.get(i);
-            switch (oldInst) {
-                case MovZeroExtend(Operand src, Operand dst) -> {
-                    if (dst instanceof Reg) {
-                        instructions.set(i, new Mov(LONGWORD, src, dst));
-                    } else {
-                        instructions.set(i, new Mov(LONGWORD, src, dstReg(QUADWORD)));
-                        instructions.add(i + 1, new Mov(QUADWORD, dstReg(QUADWORD), dst));
-                    }
-                }
-                case Unary(UnaryOperator op, TypeAsm typeAsm,
-                           Operand operand) -> {
-                    if ((op == UnaryOperator.IDIV || op == UnaryOperator.DIV)
-                            && operand instanceof Imm) {
-                        instructions.set(i, new Mov(typeAsm, operand, srcReg(typeAsm)));
-                        instructions.add(i + 1, new Unary(op, typeAsm, srcReg(typeAsm)));
-                    }
-                }
-                case Mov(TypeAsm typeAsm, Operand src, Operand dst) -> {
-                    if (isRam(src) && isRam(dst)) {
-                        instructions.set(i, new Mov(typeAsm, src, srcReg(typeAsm)));
-                        instructions.add(i + 1, new Mov(typeAsm, srcReg(typeAsm), dst));
-                    } else if (isRam(dst) && typeAsm == QUADWORD && src instanceof Imm imm && imm.isAwkward()) {
-                        instructions.set(i, new Mov(typeAsm, src, srcReg(typeAsm)));
-                        instructions.add(i + 1, new Mov(typeAsm, srcReg(typeAsm), dst));
-                    }
+        // Fix illegal MOV, iDiV, ADD, SUB, IMUL instructions, writing the
+        // result to a new list so that each instruction is copied once
+        List<Instruction> out = new ArrayList<>(instructions.size() + instructions.size() / 2 + 1);
+        if (!omitFramePointer) {
+            out.add(new Push(BP));
+            out.add(new Mov(QUADWORD, SP, BP));
+            fixUpInstruction(new Binary(SUB, QUADWORD, new Imm(stackSize), SP), out);
+        } else if (!redZone && stackSize != 0) {
+            out.add(new Binary(SUB, QUADWORD, new Imm(stackSize), SP));
+        }
+        // red zone save slots are below the locals, at %rbp-relative offsets
+        // that rebaseOnStackPointer will move up 16 like the locals'
+        int saveSlots = -stackSize - 16;
+        for (int i = 0; i < calleeSaved.size(); i++) {
+            Reg r = calleeSaved.get(i);
+            out.add(redZone ? new Mov(QUADWORD, r, new Stack(saveSlots - 8 * i)) : new Push(r));
+        }
+        int outgoing = (outgoingArgumentBytes(instructions) + 15) & ~15;
+        if (outgoing != 0) out.add(new Binary(SUB, QUADWORD, new Imm(outgoing), SP));
+        for (Instruction instruction : instructions) {
+            if (instruction == RET) {
+                if (outgoing != 0) out.add(new Binary(ADD, QUADWORD, new Imm(outgoing), SP));
+                for (int i = calleeSaved.size() - 1; i >= 0; i--) {
+                    Reg r = calleeSaved.get(i);
+                    out.add(redZone ? new Mov(QUADWORD, new Stack(saveSlots - 8 * i), r) : new Pop(r));
                 }
-                case Push(Operand operand) -> {
-                    if (operand instanceof Imm imm && imm.isAwkward()) {
-                        instructions.set(i, new Mov(QUADWORD, operand, srcReg(QUADWORD)));
-                        instructions.add(i + 1, new Push(srcReg(QUADWORD)));
-                    }
+                if (!omitFramePointer) {
+                    out.add(new Mov(QUADWORD, BP, SP));
+                    out.add(new Pop(BP));
+                } else if (!redZone && stackSize != 0) {
+                    out.add(new Binary(ADD, QUADWORD, new Imm(stackSize), SP));
                 }
-                case Binary(
-                        ArithmeticOperator op, TypeAsm typeAsm, Operand src,
-                        Operand dst
-                ) -> {
-                    if (src instanceof Imm imm && imm.isAwkward()) {
-                        instructions.set(i, new Mov(typeAsm, src, srcReg(typeAsm)));
-                        instructions.add(i + 1, new Binary(op, typeAsm, srcReg(typeAsm), dst));
-                        i = i + 2; // will be i+1 at start of next iteration -> want to catch conditions below
-                    } else {
-                        switch (op) {
-                            case ADD, SUB -> {
-                                if (isRam(src) && isRam(dst)) {
-                                    instructions.set(i, new Mov(typeAsm, src, srcReg(typeAsm)));
-                                    instructions.add(i + 1, new Binary(op, typeAsm, srcReg(typeAsm), dst));
-                                }
-
-                            }
-                            case IMUL, DOUBLE_SUB, DOUBLE_ADD, DOUBLE_MUL,
-                                 DOUBLE_DIVIDE, BITWISE_XOR -> {
-                                if (isRam(dst)) {
-                                    instructions.set(i, new Mov(typeAsm, dst, dstReg(typeAsm)));
-                                    instructions.add(i + 1, new Binary(op, typeAsm, src, dstReg(typeAsm)));
-                                    instructions.add(i + 2, new Mov(typeAsm, dstReg(typeAsm), dst));
-                                }
-                            }
+            }
+            fixUpInstruction(instruction, out);
+        }
+        if (omitFramePointer) rebaseOnStackPointer(out, redZone ? 0 : stackSize + saved + outgoing);
+        return out;
+    }
 
-                        }
-                    }
+    private static int outgoingArgumentBytes(List<Instruction> instructions) {
+        int bytes = 0;
+        for (Instruction in : instructions) {
+            if (in instanceof Mov(_, _, Stack(int offset, Reg base)) && base == SP) {
+                bytes = Math.max(bytes, offset + 8);
+            }
+        }
+        return bytes;
+    }
 
+    /**
+     * Replace each %rbp-relative stack slot by the %rsp-relative one, given
+     * that the return address is at 0(%rsp) on entry. A local at offset o
+     * is at 8 + o bytes from there and an argument, at o >= 16, at o - 8.
+     * %rsp is followed through the pushes and adjustments after entry; code
+     * after a ret is reached by a jump from inside the function body, where
+     * %rsp is frameSize below where it was on entry.
+     */
+    private static void rebaseOnStackPointer(List<Instruction> instructions, int frameSize) {
+        int[] depth = {0};
+        Function<Operand, Operand> rebase = o -> o instanceof Stack(int offset, Reg r) && r == BP
+                ? new Stack((offset < 0 ? offset + 16 : offset) - 8 + depth[0], SP) : o;
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction in = instructions.get(i);
+            // a push's memory operand is read before %rsp moves
+            instructions.set(i, mapOperands(in, rebase));
+            switch (in) {
+                case Push _ -> depth[0] += 8;
+                case Pop _ -> depth[0] -= 8;
+                case Binary(ArithmeticOperator op, _, Imm(long bytes), Reg r) when r == SP ->
+                        depth[0] += op == SUB ? (int) bytes : op == ADD ? (int) -bytes : 0;
+                case Nullary.RET -> depth[0] = frameSize;
+                default -> {
                 }
+            }
+        }
+    }
 
-                case Cmp(TypeAsm typeAsm, Operand src, Operand dst) -> {
-                    if (typeAsm == DOUBLE && !(dst instanceof DoubleReg)) {
-                        instructions.set(i, new Mov(typeAsm, dst, dstReg(typeAsm)));
-                        instructions.add(i + 1, new Cmp(typeAsm, src, dstReg(typeAsm)));
-                    } else if (isRam(src) && isRam(dst)) {
-                        instructions.set(i, new Mov(typeAsm, src, srcReg(typeAsm)));
-                        instructions.add(i + 1, new Cmp(typeAsm, srcReg(typeAsm), dst));
-                    } else if (dst instanceof Imm) {
-                        if (src instanceof Imm imm && imm.isAwkward()) {
-                            instructions.set(i, new Mov(typeAsm, src, srcReg(typeAsm)));
-                            instructions.add(i + 1, new Mov(typeAsm, dst, dstReg(typeAsm)));
-                            instructions.add(i + 2, new Cmp(typeAsm, srcReg(typeAsm), dstReg(typeAsm)));
-                        } else {
-                            instructions.set(i, new Mov(typeAsm, dst, dstReg(typeAsm)));
-                            instructions.add(i + 1, new Cmp(typeAsm, src, dstReg(typeAsm)));
+    private static void fixUpInstruction(Instruction oldInst, List<Instruction> out) {
+        switch (oldInst) {
+            case MovZeroExtend(Operand src, Operand dst) -> {
+                if (dst instanceof Reg) {
+                    out.add(new Mov(LONGWORD, src, dst));
+                } else {
+                    out.add(new Mov(LONGWORD, src, dstReg(QUADWORD)));
+                    out.add(new Mov(QUADWORD, dstReg(QUADWORD), dst));
+                }
+            }
+            case Unary(UnaryOperator op, TypeAsm typeAsm,
+                       Operand operand) -> {
+                if ((op == UnaryOperator.IDIV || op == UnaryOperator.DIV)
+                        && operand instanceof Imm) {
+                    out.add(new Mov(typeAsm, operand, srcReg(typeAsm)));
+                    out.add(new Unary(op, typeAsm, srcReg(typeAsm)));
+                } else {
+                    out.add(oldInst);
+                }
+            }
+            case Mov(TypeAsm typeAsm, Operand src, Operand dst) -> {
+                if (isRam(src) && isRam(dst)) {
+                    out.add(new Mov(typeAsm, src, srcReg(typeAsm)));
+                    out.add(new Mov(typeAsm, srcReg(typeAsm), dst));
+                } else if (isRam(dst) && typeAsm == QUADWORD && src instanceof Imm imm && imm.isAwkward()) {
+                    out.add(new Mov(typeAsm, src, srcReg(typeAsm)));
+                    out.add(new Mov(typeAsm, srcReg(typeAsm), dst));
+                } else {
+                    out.add(oldInst);
+                }
+            }
+            case Push(Operand operand) -> {
+                if (operand instanceof Imm imm && imm.isAwkward()) {
+                    out.add(new Mov(QUADWORD, operand, srcReg(QUADWORD)));
+                    out.add(new Push(srcReg(QUADWORD)));
+                } else {
+                    out.add(oldInst);
+                }
+            }
+            case Binary(
+                    ArithmeticOperator op, TypeAsm typeAsm, Operand src,
+                    Operand dst
+            ) -> {
+                if (src instanceof Imm imm && imm.isAwkward()) {
+                    out.add(new Mov(typeAsm, src, srcReg(typeAsm)));
+                    // the rewritten instruction may still break the rules below
+                    fixUpInstruction(new Binary(op, typeAsm, srcReg(typeAsm), dst), out);
+                } else {
+                    switch (op) {
+                        case ADD, SUB -> {
+                            if (isRam(src) && isRam(dst)) {
+                                out.add(new Mov(typeAsm, src, srcReg(typeAsm)));
+                                out.add(new Binary(op, typeAsm, srcReg(typeAsm), dst));
+                            } else {
+                                out.add(oldInst);
+                            }
+                        }
+                        case IMUL, DOUBLE_SUB, DOUBLE_ADD, DOUBLE_MUL,
+                             DOUBLE_DIVIDE, BITWISE_XOR -> {
+                            if (isRam(dst)) {
+                                out.add(new Mov(typeAsm, dst, dstReg(typeAsm)));
+                                out.add(new Binary(op, typeAsm, src, dstReg(typeAsm)));
+                                out.add(new Mov(typeAsm, dstReg(typeAsm), dst));
+                            } else {
+                                out.add(oldInst);
+                            }
                         }
-                    } else if (src instanceof Imm imm && imm.isAwkward()) {
-                        instructions.set(i, new Mov(typeAsm, src, srcReg(typeAsm)));
-                        instructions.add(i + 1, new Cmp(typeAsm, srcReg(typeAsm), dst));
+                        default -> out.add(oldInst);
                     }
                 }
-                case Movsx(Operand src, Operand dst) -> {
-                    if (src instanceof Imm) {
-                        instructions.set(i, new Mov(LONGWORD, src, R10));
-                        if (isRam(dst)) {
-                            instructions.add(i + 1, new Movsx(R10, R11));
-                            instructions.add(i + 2, new Mov(QUADWORD, R11, dst));
-                        } else {
-                            instructions.add(i + 1, new Movsx(R10, dst));
-                        }
+            }
+            case Cmp(TypeAsm typeAsm, Operand src, Operand dst) -> {
+                if (typeAsm == DOUBLE && !(dst instanceof DoubleReg)) {
+                    out.add(new Mov(typeAsm, dst, dstReg(typeAsm)));
+                    out.add(new Cmp(typeAsm, src, dstReg(typeAsm)));
+                } else if (isRam(src) && isRam(dst)) {
+                    out.add(new Mov(typeAsm, src, srcReg(typeAsm)));
+                    out.add(new Cmp(typeAsm, srcReg(typeAsm), dst));
+                } else if (dst instanceof Imm) {
+                    if (src instanceof Imm imm && imm.isAwkward()) {
+                        out.add(new Mov(typeAsm, src, srcReg(typeAsm)));
+                        out.add(new Mov(typeAsm, dst, dstReg(typeAsm)));
+                        out.add(new Cmp(typeAsm, srcReg(typeAsm), dstReg(typeAsm)));
                     } else {
-                        if (isRam(dst)) {
-                            instructions.set(i, new Movsx(src, R11));
-                            instructions.add(i + 1, new Mov(QUADWORD, R11, dst));
-                        }
+                        out.add(new Mov(typeAsm, dst, dstReg(typeAsm)));
+                        out.add(new Cmp(typeAsm, src, dstReg(typeAsm)));
                     }
+                } else if (src instanceof Imm imm && imm.isAwkward()) {
+                    out.add(new Mov(typeAsm, src, srcReg(typeAsm)));
+                    out.add(new Cmp(typeAsm, srcReg(typeAsm), dst));
+                } else {
+                    out.add(oldInst);
                 }
-                case Cvttsd2si(TypeAsm dstType, Operand src, Operand dst) -> {
+            }
+            case Movsx(Operand src, Operand dst) -> {
+                if (src instanceof Imm) {
+                    out.add(new Mov(LONGWORD, src, R10));
                     if (isRam(dst)) {
-                        instructions.set(i, new Cvttsd2si(dstType, src, R11));
-                        instructions.add(i + 1, new Mov(dstType, R11, dst));
+                        out.add(new Movsx(R10, R11));
+                        out.add(new Mov(QUADWORD, R11, dst));
+                    } else {
+                        out.add(new Movsx(R10, dst));
                     }
+                } else if (isRam(dst)) {
+                    out.add(new Movsx(src, R11));
+                    out.add(new Mov(QUADWORD, R11, dst));
+                } else {
+                    out.add(oldInst);
                 }
-                case Cvtsi2sd(TypeAsm dstType, Operand src, Operand dst) -> {
-
-                    if (src instanceof Imm) {
-                        instructions.set(i, new Mov(dstType, src, R10));
-                        if (isRam(dst)) {
-                            instructions.add(i + 1, new Cvtsi2sd(dstType, R10, XMM15));
-                            instructions.add(i + 2, new Mov(QUADWORD, XMM15, dst));
-                        } else {
-                            instructions.add(i + 1, new Cvtsi2sd(dstType, R10, dst));
-                        }
-                    } else if (isRam(dst)) {
-                        instructions.set(i, new Cvtsi2sd(dstType, src, XMM15));
-                        instructions.add(i + 1, new Mov(QUADWORD, XMM15, dst));
-                    }
+            }
+            case Cvttsd2si(TypeAsm dstType, Operand src, Operand dst) -> {
+                if (isRam(dst)) {
+                    out.add(new Cvttsd2si(dstType, src, R11));
+                    out.add(new Mov(dstType, R11, dst));
+                } else {
+                    out.add(oldInst);
                 }
-                default -> {
+            }
+            case Cvtsi2sd(TypeAsm dstType, Operand src, Operand dst) -> {
+                if (src instanceof Imm) {
+                    out.add(new Mov(dstType, src, R10));
+                    if (isRam(dst)) {
+                        out.add(new Cvtsi2sd(dstType, R10, XMM15));
+                        out.add(new Mov(QUADWORD, XMM15, dst));
+                    } else {
+                        out.add(new Cvtsi2sd(dstType, R10, dst));
+                    }
+                } else if (isRam(dst)) {
+                    out.add(new Cvtsi2sd(dstType, src, XMM15));
+                    out.add(new Mov(QUADWORD, XMM15, dst));
+                } else {
+                    out.add(oldInst);
                 }
             }
+            default -> out.add(oldInst);
         }
     }
 
@@ -296,15 +428,14 @@ public class Codegen {
         return typeAsm == DOUBLE ? XMM14 : R10;
     }
 
-    private static TypeAsm valToAsmType(ValIr val) {
+    private TypeAsm valToAsmType(ValIr val) {
         return toTypeAsm(valToType(val));
     }
 
-    private static Type valToType(ValIr val) {
+    private Type valToType(ValIr val) {
         return switch (val) {
             case Constant constant -> constant.type();
-            case VarIr(String identifier) ->
-                    SYMBOL_TABLE.get(identifier).type();
+            case VarIr v -> v.type();
         };
     }
 
@@ -327,16 +458,17 @@ public class Codegen {
             XMM0, XMM1, XMM2, XMM3, XMM4, XMM5, XMM6, XMM7
     };
 
-    public static Data resolveConstant(double d) {
-        StaticConstant c = CONSTANT_TABLE.computeIfAbsent(d, _ ->
+    private Data resolveConstant(double d) {
+        StaticConstant c = ctx.constantTable().computeIfAbsent(d, _ ->
                 new StaticConstant("c." + toHexString(d), 8, new DoubleInit(d)));
-        return new Data(c.label());
+        return new Data(ctx.symbolTable().intern(c.label()));
     }
 
-    private static Operand toOperand(ValIr val) {
+    private Operand toOperand(ValIr val) {
         return switch (val) {
             case ConstInt(int i) -> new Imm(i);
-            case VarIr(String identifier) -> new Pseudo(identifier);
+            case VarIr(int id, Type type, boolean isStatic) ->
+                    new Pseudo(id, toTypeAsm(type), isStatic);
             case ConstLong(long l) -> new Imm(l);
             case ConstUInt(int i) -> new Imm(i);
             case ConstULong(long l) -> new Imm(l);
@@ -345,40 +477,38 @@ public class Codegen {
     }
 
 
-    private static Operand dePseudo(Operand in, Map<String, Integer> varTable, AtomicInteger offset) {
+    private Operand dePseudo(Operand in, AtomicInteger offset) {
         return switch (in) {
             case Imm _, Reg _, Stack _, DoubleReg _, Data _ -> in;
-            case Pseudo(String identifier) -> {
-                if (BACKEND_SYMBOL_TABLE.get(identifier) instanceof ObjEntry(
-                        TypeAsm type, boolean isStatic, boolean isConstant)) {
-                    if (isStatic) yield new Data(identifier);
-
-                    Integer varOffset = varTable.get(identifier);
-                    if (varOffset == null) {
-                        // it starts ar -8 - we can use this for the first var
-                        // when that var is written it will update bytes stack-8 to stack-1
-                        int size = type.size();
-                        varOffset = offset.get();
-                        varOffset -= size;
-                        int remainder = varOffset % size;
-                        if (remainder != 0) {
-                            varOffset -= (size + remainder);
-                        }
-                        varTable.put(identifier, varOffset);
-                        //System.out.println(identifier+"\t"+size+"\t"+varOffset+"\t"+remainder);
-                        offset.set(varOffset);
-                    }
-                    yield new Stack(varOffset);
-                } else throw new IllegalArgumentException(identifier);
+            case Pseudo(int id, TypeAsm type, boolean isStatic) -> {
+                if (isStatic) yield new Data(id);
 
+                int varOffset;
+                if (stackSlotOwners[id] == functionNumber) {
+                    varOffset = stackSlots[id];
+                } else {
+                    // it starts ar -8 - we can use this for the first var
+                    // when that var is written it will update bytes stack-8 to stack-1
+                    int size = type.size();
+                    varOffset = offset.get();
+                    varOffset -= size;
+                    int remainder = varOffset % size;
+                    if (remainder != 0) {
+                        varOffset -= (size + remainder);
+                    }
+                    stackSlots[id] = varOffset;
+                    stackSlotOwners[id] = functionNumber;
+                    offset.set(varOffset);
+                }
+                yield new Stack(varOffset);
             }
         };
     }
 
-    private static void codegenFunCall(FunCall funCall, List<Instruction> instructionAsms) {
+    private void codegenFunCall(FunCall funCall, List<Instruction> instructionAsms) {
         // so for classify we can classify operands here
         if (funCall instanceof FunCall(
-                String name, ArrayList<ValIr> args, ValIr dst
+                int id, ArrayList<ValIr> args, ValIr dst
         )) {
             List<TypedOperand> operands = new ArrayList<>();
             for (ValIr arg : args) {
@@ -391,11 +521,21 @@ public class Codegen {
             ArrayList<Operand> doubleArguments = classifiedArgs.doubleArguments();
             ArrayList<TypedOperand> stackArguments = classifiedArgs.stackArguments();
             int stackArgCount = stackArguments.size();
-            int stackPadding = stackArgCount % 2 == 1 ? 8 : 0;
+            boolean accumulate = ctx.options().accumulateOutgoingArgs();
+            int stackPadding = !accumulate && stackArgCount % 2 == 1 ? 8 : 0;
             if (stackPadding != 0) {
                 instructionAsms.add(new Binary(SUB, QUADWORD, new Imm(stackPadding), SP));
             }
 
+            if (accumulate) {
+                // into the area that fixUpInstructions reserves at the
+                // bottom of the frame, before the argument registers are
+                // taken
+                for (int i = 0; i < stackArgCount; i++) {
+                    TypedOperand to = stackArguments.get(i);
+                    instructionAsms.add(new Mov(to.type(), to.operand(), new Stack(8 * i, SP)));
+                }
+            }
             for (int i = 0; i < integerArguments.size(); i++) {
                 var integerArg = integerArguments.get(i);
                 Reg r = INTEGER_REGISTERS[i];
@@ -406,17 +546,20 @@ public class Codegen {
                 DoubleReg r = DOUBLE_REGISTERS[i];
                 instructionAsms.add(new Mov(DOUBLE, doubleArg, r));
             }
-            for (TypedOperand to : stackArguments) {
-                Operand operand = to.operand();
-                if (operand instanceof Imm || operand instanceof Reg || to.type() == QUADWORD) {
-                    instructionAsms.add(new Push(operand));
-                } else {
-                    instructionAsms.add(new Mov(LONGWORD, operand, AX));
-                    instructionAsms.add(new Push(AX));
+            if (!accumulate) {
+                for (TypedOperand to : stackArguments.reversed()) {
+                    Operand operand = to.operand();
+                    if (operand instanceof Imm || operand instanceof Reg || to.type() == QUADWORD) {
+                        instructionAsms.add(new Push(operand));
+                    } else {
+                        // a double may be in an XMM register, which can't be pushed
+                        instructionAsms.add(new Mov(to.type() == DOUBLE ? QUADWORD : LONGWORD, operand, AX));
+                        instructionAsms.add(new Push(AX));
+                    }
                 }
             }
-            instructionAsms.add(new Call(name));
-            int bytesToRemove = 8 * stackArgCount + stackPadding;
+            instructionAsms.add(new Call(id));
+            int bytesToRemove = accumulate ? 0 : 8 * stackArgCount + stackPadding;
             if (bytesToRemove != 0) {
                 instructionAsms.add(new Binary(ADD, QUADWORD, new Imm(bytesToRemove), SP));
             }
@@ -426,13 +569,13 @@ public class Codegen {
         }
     }
 
-    public static FunctionAsm generateAssembly(FunctionIr functionIr) {
+    private FunctionAsm generateAssembly(FunctionIr functionIr) {
         // here we can convert arguments to pseudos (which are operands)
         List<Instruction> instructionAsms = new ArrayList<>();
         List<Identifier> functionType = functionIr.type();
         List<TypedOperand> operands = new ArrayList<>();
         for (Identifier param : functionType) {
-            operands.add(new TypedOperand(toTypeAsm(param.type()), new Pseudo(param.name())));
+            operands.add(new TypedOperand(toTypeAsm(param.type()), new Pseudo(ctx.symbolTable().intern(param.name()), toTypeAsm(param.type()), false)));
         }
         ParameterClassification classifiedParameters = classifyParameters(operands);
         ArrayList<TypedOperand> integerArguments = classifiedParameters.integerArguments();
@@ -475,12 +618,12 @@ public class Codegen {
                             instructionAsms.add(new SetCC(EQUALS, true, dst1));
                         } else {
                             instructionAsms.add(new Cmp(typeAsm, new Imm(0), src1));
-                            instructionAsms.add(new Mov(typeAsm, new Imm(0), dst1));
+                            instructionAsms.add(new Mov(valToAsmType(dstIr), new Imm(0), dst1));
                             instructionAsms.add(new SetCC(EQUALS, type.isSignedOrNotDouble(), dst1));
                         }
                     } else if (op1 == UnaryOperator.UNARY_MINUS && typeAsm == DOUBLE) {
                         instructionAsms.add(new Mov(typeAsm, src1, dst1));
-                        instructionAsms.add(new Binary(BITWISE_XOR, typeAsm, NEGATIVE_ZERO, dst1));
+                        instructionAsms.add(new Binary(BITWISE_XOR, typeAsm, negativeZero, dst1));
                     } else {
                         instructionAsms.add(new Mov(typeAsm, src1, dst1));
                         instructionAsms.add(new Unary(op1, typeAsm, dst1));
@@ -539,7 +682,7 @@ public class Codegen {
                     instructionAsms.add(new Mov(typeAsm, toOperand(val), toOperand(dst1)));
                 }
                 case Jump jump -> instructionAsms.add(jump);
-                case JumpIfNotZero(ValIr v, String label) -> {
+                case JumpIfNotZero(ValIr v, int label) -> {
                     Type type = valToType(v);
                     TypeAsm typeAsm = toTypeAsm(type);
                     if (typeAsm == DOUBLE) {
@@ -550,7 +693,7 @@ public class Codegen {
                     }
                     instructionAsms.add(new JmpCC(NOT_EQUALS, type.isSignedOrNotDouble(), label));
                 }
-                case JumpIfZero(ValIr v, String label) -> {
+                case JumpIfZero(ValIr v, int label) -> {
                     Type type = valToType(v);
                     TypeAsm typeAsm = toTypeAsm(type);
                     if (typeAsm == DOUBLE) {
@@ -582,10 +725,10 @@ public class Codegen {
                         instructionAsms.add(new Mov(LONGWORD, Reg.AX, toOperand(dst)));
                     } else {
                         //p.335
-                        LabelIr label1 = newLabel("aub");
-                        LabelIr label2 = newLabel("endCmp");
+                        LabelIr label1 = ctx.newLabel("aub");
+                        LabelIr label2 = ctx.newLabel("endCmp");
 
-                        instructionAsms.add(new Cmp(DOUBLE, UPPER_BOUND, toOperand(src)));
+                        instructionAsms.add(new Cmp(DOUBLE, upperBound, toOperand(src)));
                         instructionAsms.add(new JmpCC(CmpOperator.GREATER_THAN_OR_EQUAL, false,
                                 label1.label()));
                         instructionAsms.add(new Cvttsd2si(QUADWORD, toOperand(src), toOperand(dst)));
@@ -594,7 +737,7 @@ public class Codegen {
                         instructionAsms.add(label1);
                         instructionAsms.add(new Mov(DOUBLE, toOperand(src), XMM0));
 
-                        instructionAsms.add(new Binary(DOUBLE_SUB, DOUBLE, UPPER_BOUND, toOperand(dst)));
+                        instructionAsms.add(new Binary(DOUBLE_SUB, DOUBLE, upperBound, XMM0));
                         instructionAsms.add(new Cvttsd2si(QUADWORD, XMM0, toOperand(dst)));
                         instructionAsms.add(new Mov(TypeAsm.QUADWORD, UPPER_BOUND_LONG_IMMEDIATE, AX));
 
@@ -1,4 +1,4 @@
 package com.quaxt.mcc.asm;
 
-public record Data(String identifier) implements Operand {
+public record Data(int id) implements Operand {
 }
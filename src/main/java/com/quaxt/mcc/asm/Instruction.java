@@ -8,7 +8,7 @@ import com.quaxt.mcc.tacky.LabelIr;
 import static com.quaxt.mcc.asm.TypeAsm.DOUBLE;
 import static com.quaxt.mcc.asm.TypeAsm.QUADWORD;
 
-public sealed interface Instruction permits Binary, Call, Cdq, Cmp, Cvtsi2sd, Cvttsd2si, JmpCC, Mov, MovZeroExtend, Movsx, Nullary, Push, SetCC, Unary, Jump, LabelIr {
+public sealed interface Instruction permits Binary, Call, Cdq, Cmp, Cvtsi2sd, Cvttsd2si, JmpCC, Mov, MovZeroExtend, Movsx, Nullary, Pop, Push, SetCC, Unary, Jump, LabelIr {
     default String format(TypeAsm t) {
         return this.getClass().getSimpleName().toLowerCase() +
                 (t == QUADWORD ? "q" : t == DOUBLE ? "sd" : "l") + "\t";
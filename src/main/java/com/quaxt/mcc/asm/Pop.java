@@ -0,0 +1,4 @@
+package com.quaxt.mcc.asm;
+
+public record Pop(Reg reg) implements Instruction {
+}
@@ -7,7 +7,6 @@ import com.quaxt.mcc.tacky.LabelIr;
 import java.io.PrintWriter;
 import java.util.List;
 
-import static com.quaxt.mcc.asm.Codegen.BACKEND_SYMBOL_TABLE;
 import static com.quaxt.mcc.asm.TypeAsm.*;
 
 public record ProgramAsm(List<TopLevelAsm> topLevelAsms) {
@@ -15,7 +14,7 @@ public record ProgramAsm(List<TopLevelAsm> topLevelAsms) {
         out.println("\t" + s);
     }
 
-    private static String formatOperand(Instruction s, Operand o) {
+    private static String formatOperand(CompilationContext ctx, Instruction s, Operand o) {
         return switch (o) {
             case Imm(long i) -> "$" + i;
             case Pseudo _ ->
@@ -25,16 +24,17 @@ public record ProgramAsm(List<TopLevelAsm> topLevelAsms) {
                 case SetCC _ -> reg.b;
                 default -> reg.d;
             };
-            case Stack(int offset) -> offset + "(%rbp)";
-            case Data data -> {
-                boolean isConstant = BACKEND_SYMBOL_TABLE.get(data.identifier()) instanceof ObjEntry e && e.isConstant();
-                yield (isConstant ? ".L" + data.identifier() : data.identifier()) + "(%rip)";
+            case Stack(int offset, Reg base) -> offset + "(%" + base.q + ")";
+            case Data(int id) -> {
+                boolean isConstant = ctx.backendSymbol(id) instanceof ObjEntry e && e.isConstant();
+                String name = ctx.symbolTable().name(id);
+                yield (isConstant ? ".L" + name : name) + "(%rip)";
             }
             case DoubleReg reg -> reg.toString();
         };
     }
 
-    private String formatOperand(TypeAsm t, Instruction s, Operand o) {
+    private String formatOperand(CompilationContext ctx, TypeAsm t, Instruction s, Operand o) {
         if (o instanceof Reg reg) {
             return "%" + switch (t) {
                 case LONGWORD -> reg.d;
@@ -50,14 +50,14 @@ public record ProgramAsm(List<TopLevelAsm> topLevelAsms) {
                         throw new IllegalArgumentException("wrong type (" + t + ") for integer register (" + reg + ")");
             };
         }
-        return formatOperand(s, o);
+        return formatOperand(ctx, s, o);
     }
 
-    public void emitAsm(PrintWriter out) {
+    public void emitAsm(CompilationContext ctx, PrintWriter out) {
         for (TopLevelAsm t : topLevelAsms) {
             switch (t) {
                 case FunctionAsm functionAsm -> {
-                    emitFunctionAsm(out, functionAsm);
+                    emitFunctionAsm(ctx, out, functionAsm);
                 }
                 case StaticVariableAsm staticVariableAsm -> {
                     emitStaticVariableAsm(out, staticVariableAsm);
@@ -125,79 +125,76 @@ public record ProgramAsm(List<TopLevelAsm> topLevelAsms) {
 
     }
 
-    private void emitFunctionAsm(PrintWriter out, FunctionAsm functionAsm) {
+    private void emitFunctionAsm(CompilationContext ctx, PrintWriter out, FunctionAsm functionAsm) {
         String name = functionAsm.name();
         if (functionAsm.global())
             out.println("                .globl	" + name);
         out.println("                .text");
         out.println(name + ":");
         List<Instruction> instructions = functionAsm.instructions();
-        printIndent(out, "pushq\t%rbp");
-        printIndent(out, "movq\t%rsp, %rbp");
         for (Instruction instruction : instructions) {
             String s = switch (instruction) {
                 case Mov(TypeAsm t, Operand src, Operand dst) ->
-                        instruction.format(t) + formatOperand(t, instruction, src) + ", " + formatOperand(t, instruction, dst);
+                        instruction.format(t) + formatOperand(ctx, t, instruction, src) + ", " + formatOperand(ctx, t, instruction, dst);
 
                 case Push(Operand arg) -> {
                     if (arg instanceof Data) {
-                        yield "pushl\t" + formatOperand(instruction, arg);
+                        yield "pushl\t" + formatOperand(ctx, instruction, arg);
                     } else {
-                        yield "pushq\t" + formatOperand(instruction, arg);
+                        yield "pushq\t" + formatOperand(ctx, instruction, arg);
                     }
 
                 }
 
-                case Nullary.RET -> {
-                    printIndent(out, "movq\t%rbp, %rsp");
-                    printIndent(out, "popq\t%rbp");
-                    yield "ret";
-                }
+                case Pop(Reg reg) -> "popq\t%" + reg.q;
+                case Nullary.RET -> "ret";
                 case Unary(UnaryOperator op, TypeAsm t, Operand operand) ->
-                        instruction.format(t) + formatOperand(t, instruction, operand);
+                        instruction.format(t) + formatOperand(ctx, t, instruction, operand);
                 case Cmp(TypeAsm t, Operand subtrahend, Operand minuend) ->
-                        instruction.format(t) + formatOperand(t, instruction, subtrahend) + ", " + formatOperand(t, instruction, minuend);
+                        instruction.format(t) + formatOperand(ctx, t, instruction, subtrahend) + ", " + formatOperand(ctx, t, instruction, minuend);
                 case Binary(
                         ArithmeticOperator op, TypeAsm t, Operand src,
                         Operand dst
                 ) -> {
-                    String srcF = formatOperand(t, instruction, src);
-                    String dstF = formatOperand(t, instruction, dst);
+                    String srcF = formatOperand(ctx, t, instruction, src);
+                    String dstF = formatOperand(ctx, t, instruction, dst);
                     yield instruction.format(t) + srcF + ", " + dstF;
                 }
-                case Jump(String label) -> "jmp\t" + label;
-                case LabelIr(String label) -> label + ":";
+                case Jump(int label) -> "jmp\t" + ctx.labelName(label);
+                case LabelIr(int label) -> ctx.labelName(label) + ":";
                 case SetCC(
                         CmpOperator cmpOperator,
                         boolean signed,
                         Operand o
                 ) -> "set" + (signed ? cmpOperator.code
                         : cmpOperator.unsignedCode) + "\t"
-                        + formatOperand(instruction, o);
+                        + formatOperand(ctx, instruction, o);
                 case JmpCC(
                         CmpOperator cmpOperator,
                         boolean signed,
-                        String label
+                        int label
                 ) -> "j" + (signed ? cmpOperator.code
-                        : cmpOperator.unsignedCode) + "\t" + label;
-                case Call(String functionName) ->
-                        "call\t" + (Mcc.SYMBOL_TABLE.containsKey(functionName) ? functionName : functionName + "@PLT");
+                        : cmpOperator.unsignedCode) + "\t" + ctx.labelName(label);
+                case Call(int id) -> {
+                    String functionName = ctx.symbolTable().name(id);
+                    yield "call\t" + (ctx.symbolTable().get(id) != null ? functionName : functionName + "@PLT");
+                }
                 case Cdq(TypeAsm t) -> instruction.format(t);
                 case Movsx(Operand src, Operand dst) -> {
-                    String srcF = formatOperand(LONGWORD, instruction, src);
-                    String dstF = formatOperand(QUADWORD, instruction, dst);
+                    String srcF = formatOperand(ctx, LONGWORD, instruction, src);
+                    String dstF = formatOperand(ctx, QUADWORD, instruction, dst);
                     yield "movslq\t" + srcF + ", " + dstF;
                 }
                 case MovZeroExtend movZeroExtend ->
                         throw new RuntimeException("can't happen because movZeroExtend is removed in fixup");
                 case Cvttsd2si(TypeAsm dstType, Operand src, Operand dst) -> {
-                    String srcF = formatOperand(DOUBLE, instruction, src);
-                    String dstF = formatOperand(dstType, instruction, dst);
+                    String srcF = formatOperand(ctx, DOUBLE, instruction, src);
+                    String dstF = formatOperand(ctx, dstType, instruction, dst);
                     yield (dstType==QUADWORD?"cvttsd2siq\t":"cvttsd2sil\t") + srcF + ", " + dstF;
                 }
                 case Cvtsi2sd(TypeAsm srcType, Operand src, Operand dst) -> {
-                    String srcF = formatOperand(srcType, instruction, src);
-                    String dstF = formatOperand(DOUBLE, instruction, dst);
+                    String srcF = formatOperand(ctx, srcType, instruction, src);
+                    String dstF = formatOperand(ctx, DOUBLE, instruction, dst);
                     yield (srcType==QUADWORD?"cvtsi2sdq\t":"cvtsi2sdl\t") + srcF + ", " + dstF;
                 }
             };
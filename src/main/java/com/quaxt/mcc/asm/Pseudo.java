@@ -1,4 +1,4 @@
 package com.quaxt.mcc.asm;
 
-public record Pseudo(String identifier) implements Operand {
+public record Pseudo(int id, TypeAsm type, boolean isStatic) implements Operand {
 }
@@ -0,0 +1,1499 @@
+package com.quaxt.mcc.asm;
+
+import com.quaxt.mcc.CompilationContext;
+import com.quaxt.mcc.RegisterAllocation;
+import com.quaxt.mcc.SymbolTableEntry;
+import com.quaxt.mcc.UnaryOperator;
+import com.quaxt.mcc.semantic.FunType;
+import com.quaxt.mcc.semantic.Primitive;
+import com.quaxt.mcc.semantic.Type;
+import com.quaxt.mcc.tacky.Jump;
+import com.quaxt.mcc.tacky.LabelIr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+
+import static com.quaxt.mcc.ArithmeticOperator.BITWISE_XOR;
+import static com.quaxt.mcc.asm.DoubleReg.*;
+import static com.quaxt.mcc.asm.Reg.*;
+
+/**
+ * Register allocation for one function at a time, run on the instructions
+ * from instruction selection before their remaining pseudos are given
+ * stack slots. Liveness is computed over the basic blocks of the
+ * instruction list, whose nodes are the allocatable hard registers and the
+ * function's pseudos, and then the pseudos are given registers in one of
+ * two ways.
+ * <p>
+ * Graph colouring (Chaitin-Briggs) builds the interference graph, merges
+ * the two ends of each move that can be merged without making the graph
+ * harder to colour, and colours it by simplification; when every remaining
+ * node has at least as
+ * many neighbours as there are registers, the one with the lowest spill
+ * cost per neighbour is pushed anyway in the hope that it can still be
+ * coloured. Spill cost counts uses and definitions, weighted by ten to the
+ * power of the loop depth.
+ * <p>
+ * Linear scan gives each node a live interval, a sorted list of position
+ * ranges whose gaps are the lifetime holes, and walks the intervals in
+ * order of start. A value whose register is wanted by another interval,
+ * such as the caller-saved registers at a call, is split there: its later
+ * part lives in its stack slot until its next use and then gets another
+ * chance at a register. Moves between the parts are inserted at the split
+ * and on the control flow edges where the parts disagree. It is much
+ * cheaper than colouring on very large functions.
+ * <p>
+ * The callee-saved registers BX and R12 to R15 come last in the order
+ * registers are tried, so they are used only for values that cannot be in
+ * a caller-saved one, mostly those live across calls. The function saves
+ * the ones it uses in its prologue.
+ * <p>
+ * A pseudo, or part of one, that gets no register stays a Pseudo, so
+ * replacePseudoRegisters gives it a stack slot, unless shareStackSlots
+ * has already given it one that it shares with other pseudos. fixUpInstructions' scratch
+ * registers R10, R11, XMM14 and XMM15 are never allocated, so spilling
+ * needs no new code.
+ */
+final class RegisterAllocator {
+    private static final Reg[] CALLER_SAVED_REGISTERS = {AX, CX, DX, SI, DI, R8, R9};
+    private static final Reg[] GP_REGISTERS = {AX, CX, DX, SI, DI, R8, R9, BX, R12, R13, R14, R15};
+    private static final DoubleReg[] XMM_REGISTERS = {
+            XMM0, XMM1, XMM2, XMM3, XMM4, XMM5, XMM6,
+            XMM7, XMM8, XMM9, XMM10, XMM11, XMM12, XMM13
+    };
+    private static final Reg[] INTEGER_ARGUMENTS = {DI, SI, DX, CX, R8, R9};
+    private static final int DOUBLE_ARGUMENTS = 8;
+    private static final Reg[] REGS = Reg.values();
+    private static final DoubleReg[] DOUBLE_REGS = DoubleReg.values();
+    // Node n < 16 is REGS[n] and 16 <= n < 32 is DOUBLE_REGS[n - 16]. Only
+    // allocatable registers are ever nodes. Pseudos are numbered from 32.
+    private static final int XMM_BASE = 16;
+    private static final int PSEUDO_BASE = 32;
+    private static final long GP_MASK = mask(GP_REGISTERS);
+    private static final long XMM_MASK = mask(XMM_REGISTERS);
+    private static final long CALLEE_SAVED_MASK = GP_MASK & ~mask(CALLER_SAVED_REGISTERS);
+    private static final double[] LOOP_WEIGHTS = {1, 10, 100, 1e3, 1e4, 1e5, 1e6};
+    // BY_SIZE allocates a function by linear scan if colouring it would add
+    // more than this many interference edges, and more than this many per
+    // instruction, past which colouring takes longer than linear scan
+    private static final long LINEAR_SCAN_INTERFERENCES = 100_000;
+    private static final int LINEAR_SCAN_INTERFERENCES_PER_INSTRUCTION = 32;
+    // the most neighbours two pseudos may have between them for the Briggs test
+    private static final int BRIGGS_NEIGHBOURS = 256;
+
+    private final CompilationContext ctx;
+
+    // node of each pseudo by symbol id, valid where nodeOwners holds functionNumber
+    private int[] nodes = new int[0];
+    private int[] nodeOwners = new int[0];
+    private int functionNumber;
+
+    // per pseudo, indexed by node - PSEUDO_BASE
+    private Pseudo[] pseudos = new Pseudo[64];
+    private long[] hardNeighbours = new long[64];
+    private IntList[] neighbours = new IntList[64];
+    private double[] spillCosts = new double[64];
+    // the number of pseudos each pseudo interferes with, and the node it has
+    // been coalesced into, or its own node
+    private int[] pseudoDegrees = new int[64];
+    private int[] aliases = new int[64];
+    private int pseudoCount;
+    private EdgeSet edges;
+
+    private final IntList uses = new IntList();
+    private final IntList defs = new IntList();
+    private Reg returnRegister;
+    private DoubleReg returnDoubleRegister;
+
+    // the function being allocated: its instructions, whose basic block b is
+    // instructions blockStarts[b] to blockStarts[b + 1] - 1, and the nodes
+    // used and defined by instruction i, which are useNodes[useStarts[i]] to
+    // useNodes[useStarts[i + 1] - 1] and likewise for defs
+    private List<Instruction> instructions;
+    private HashMap<Integer, Integer> labelIndexes;
+    private IntList blockStarts;
+    private int[] blockOf;
+    private int blockCount;
+    private int[][] successors;
+    private BitSet[] liveIn;
+    private BitSet[] liveOut;
+    private int[] useStarts;
+    private int[] defStarts;
+    private IntList useNodes;
+    private IntList defNodes;
+
+    RegisterAllocator(CompilationContext ctx) {
+        this.ctx = ctx;
+    }
+
+    private static long mask(Operand[] registers) {
+        long mask = 0;
+        for (Operand r : registers) mask |= 1L << hardNode(r);
+        return mask;
+    }
+
+    private static int hardNode(Operand r) {
+        return r instanceof Reg reg ? reg.ordinal() : XMM_BASE + ((DoubleReg) r).ordinal();
+    }
+
+    private static Operand hardOperand(int node) {
+        return node < XMM_BASE ? REGS[node] : DOUBLE_REGS[node - XMM_BASE];
+    }
+
+    private boolean isDouble(int node) {
+        return node < PSEUDO_BASE ? node >= XMM_BASE : pseudos[node - PSEUDO_BASE].type() == TypeAsm.DOUBLE;
+    }
+
+    private Operand[] registers(int node) {
+        return isDouble(node) ? XMM_REGISTERS : GP_REGISTERS;
+    }
+
+    /**
+     * Replace the pseudos of instructions that can be kept in registers by
+     * those registers. Returns the callee-saved registers now used, which
+     * the function must save.
+     */
+    List<Reg> allocate(String functionName, List<Instruction> instructions) {
+        startFunction(functionName, instructions);
+        computeLiveness();
+        boolean linearScan = switch (ctx.options().registerAllocation()) {
+            case LINEAR_SCAN -> true;
+            case BY_SIZE -> {
+                long interferences = interferences();
+                yield interferences > LINEAR_SCAN_INTERFERENCES
+                        && interferences > (long) LINEAR_SCAN_INTERFERENCES_PER_INSTRUCTION * instructions.size();
+            }
+            default -> false;
+        };
+        if (linearScan) {
+            linearScan();
+        } else {
+            colourGraph();
+        }
+        int size = instructions.size();
+        instructions.removeIf(in -> in instanceof Mov(_, Operand src, Operand dst) && src.equals(dst));
+        ctx.report(functionName, "register allocation", size - instructions.size(), "moves removed");
+        long used = 0;
+        for (Instruction in : instructions) {
+            useDef(in);
+            for (int i = 0; i < uses.size(); i++) used |= 1L << uses.get(i);
+            for (int i = 0; i < defs.size(); i++) used |= 1L << defs.get(i);
+        }
+        List<Reg> calleeSaved = new ArrayList<>();
+        for (Reg r : GP_REGISTERS) {
+            if ((used & CALLEE_SAVED_MASK & 1L << r.ordinal()) != 0) calleeSaved.add(r);
+        }
+        this.instructions = null;
+        liveIn = null;
+        liveOut = null;
+        return calleeSaved;
+    }
+
+    /**
+     * Replace the pseudos left in instructions by stack slots, shared by
+     * pseudos of the same size that are never live at the same time, and
+     * return the lowest offset used. Offsets are handed out the way
+     * replacePseudoRegisters does, from -8 down. A pseudo is taken to be
+     * live from the first position it is live at to the last, so the slots
+     * can be given out by one scan in order of start, reusing the slots of
+     * the pseudos that ended before.
+     */
+    int shareStackSlots(String functionName, List<Instruction> instructions) {
+        startFunction(functionName, instructions);
+        computeLiveness();
+        int n = instructions.size();
+        int[] starts = new int[pseudoCount];
+        int[] ends = new int[pseudoCount];
+        Arrays.fill(starts, Integer.MAX_VALUE);
+        Arrays.fill(ends, -1);
+        for (int b = 0; b < blockCount; b++) {
+            BitSet in = liveIn[b];
+            for (int v = in.nextSetBit(PSEUDO_BASE); v >= 0; v = in.nextSetBit(v + 1)) {
+                starts[v - PSEUDO_BASE] = Math.min(starts[v - PSEUDO_BASE], 2 * blockStarts.get(b));
+            }
+            BitSet out = liveOut[b];
+            for (int v = out.nextSetBit(PSEUDO_BASE); v >= 0; v = out.nextSetBit(v + 1)) {
+                ends[v - PSEUDO_BASE] = Math.max(ends[v - PSEUDO_BASE], 2 * blockStarts.get(b + 1) - 1);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = useStarts[i]; j < useStarts[i + 1]; j++) {
+                int p = useNodes.get(j) - PSEUDO_BASE;
+                if (p < 0) continue;
+                starts[p] = Math.min(starts[p], 2 * i);
+                ends[p] = Math.max(ends[p], 2 * i);
+            }
+            for (int j = defStarts[i]; j < defStarts[i + 1]; j++) {
+                int p = defNodes.get(j) - PSEUDO_BASE;
+                if (p < 0) continue;
+                starts[p] = Math.min(starts[p], 2 * i + 1);
+                ends[p] = Math.max(ends[p], 2 * i + 1);
+            }
+        }
+
+        // (start, pseudo) and (end, pseudo) pairs in order
+        long[] byStart = new long[pseudoCount];
+        long[] byEnd = new long[pseudoCount];
+        for (int p = 0; p < pseudoCount; p++) {
+            byStart[p] = (long) starts[p] << 32 | p;
+            byEnd[p] = (long) ends[p] << 32 | p;
+        }
+        Arrays.sort(byStart);
+        Arrays.sort(byEnd);
+        // free slots by size
+        IntList[] free = new IntList[9];
+        for (int size = 0; size < free.length; size++) free[size] = new IntList();
+        int[] slots = new int[pseudoCount];
+        int offset = -8;
+        int ended = 0;
+        for (long startAndPseudo : byStart) {
+            int p = (int) startAndPseudo;
+            int start = (int) (startAndPseudo >>> 32);
+            for (; ended < pseudoCount && (int) (byEnd[ended] >>> 32) < start; ended++) {
+                int q = (int) byEnd[ended];
+                free[pseudos[q].type().size()].add(slots[q]);
+            }
+            int size = pseudos[p].type().size();
+            if (free[size].size() > 0) {
+                slots[p] = free[size].removeLast();
+            } else {
+                offset = slotBelow(offset, size);
+                slots[p] = offset;
+            }
+        }
+        int unshared = -8;
+        for (int p = 0; p < pseudoCount; p++) unshared = slotBelow(unshared, pseudos[p].type().size());
+        ctx.report(functionName, "stack slot sharing", -8 - offset,
+                "bytes of stack slots, " + (-8 - unshared) + " without sharing");
+
+        Function<Operand, Operand> assign = o -> o instanceof Pseudo p && !p.isStatic()
+                ? new Stack(slots[nodes[p.id()] - PSEUDO_BASE]) : o;
+        for (int i = 0; i < n; i++) {
+            instructions.set(i, Codegen.mapOperands(instructions.get(i), assign));
+        }
+        this.instructions = null;
+        liveIn = null;
+        liveOut = null;
+        return offset;
+    }
+
+    // the offset of a new slot of the given size below offset, aligned to its size
+    private static int slotBelow(int offset, int size) {
+        offset -= size;
+        int remainder = offset % size;
+        return remainder != 0 ? offset - (size + remainder) : offset;
+    }
+
+    private void startFunction(String functionName, List<Instruction> instructions) {
+        functionNumber++;
+        int symbolCount = ctx.symbolTable().size();
+        if (nodes.length < symbolCount) {
+            nodes = new int[symbolCount];
+            nodeOwners = new int[symbolCount];
+        }
+        for (int i = 0; i < pseudoCount; i++) {
+            pseudos[i] = null;
+            neighbours[i] = null;
+        }
+        pseudoCount = 0;
+        Type ret = ctx.symbolTable().get(functionName).type() instanceof FunType(_, Type r) ? r : Primitive.INT;
+        returnRegister = ret == Primitive.DOUBLE ? null : AX;
+        returnDoubleRegister = ret == Primitive.DOUBLE ? XMM0 : null;
+        this.instructions = instructions;
+    }
+
+    private void computeLiveness() {
+        int n = instructions.size();
+        labelIndexes = new HashMap<>();
+        useStarts = new int[n + 1];
+        defStarts = new int[n + 1];
+        useNodes = new IntList();
+        defNodes = new IntList();
+        for (int i = 0; i < n; i++) {
+            Instruction in = instructions.get(i);
+            if (in instanceof LabelIr(int label)) labelIndexes.put(label, i);
+            useDef(in);
+            useStarts[i] = useNodes.size();
+            defStarts[i] = defNodes.size();
+            for (int j = 0; j < uses.size(); j++) useNodes.add(uses.get(j));
+            for (int j = 0; j < defs.size(); j++) defNodes.add(defs.get(j));
+        }
+        useStarts[n] = useNodes.size();
+        defStarts[n] = defNodes.size();
+
+        blockStarts = new IntList();
+        blockOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || instructions.get(i) instanceof LabelIr || endsBlock(instructions.get(i - 1))) {
+                blockStarts.add(i);
+            }
+            blockOf[i] = blockStarts.size() - 1;
+        }
+        blockCount = blockStarts.size();
+        blockStarts.add(n);
+
+        BitSet[] gen = new BitSet[blockCount];
+        BitSet[] kill = new BitSet[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            BitSet g = new BitSet();
+            BitSet k = new BitSet();
+            for (int i = blockStarts.get(b + 1) - 1; i >= blockStarts.get(b); i--) {
+                for (int j = defStarts[i]; j < defStarts[i + 1]; j++) {
+                    k.set(defNodes.get(j));
+                    g.clear(defNodes.get(j));
+                }
+                for (int j = useStarts[i]; j < useStarts[i + 1]; j++) g.set(useNodes.get(j));
+            }
+            gen[b] = g;
+            kill[b] = k;
+        }
+
+        successors = new int[blockCount][];
+        for (int b = 0; b < blockCount; b++) {
+            Instruction last = instructions.get(blockStarts.get(b + 1) - 1);
+            boolean fallsThrough = b + 1 < blockCount;
+            successors[b] = switch (last) {
+                case Jump(int label) -> new int[]{blockOf[labelIndexes.get(label)]};
+                case JmpCC(_, _, int label) -> fallsThrough
+                        ? new int[]{blockOf[labelIndexes.get(label)], b + 1}
+                        : new int[]{blockOf[labelIndexes.get(label)]};
+                case Nullary.RET -> new int[0];
+                default -> fallsThrough ? new int[]{b + 1} : new int[0];
+            };
+        }
+
+        liveIn = new BitSet[blockCount];
+        liveOut = new BitSet[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            liveIn[b] = (BitSet) gen[b].clone();
+            liveOut[b] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blockCount - 1; b >= 0; b--) {
+                BitSet out = liveOut[b];
+                for (int s : successors[b]) out.or(liveIn[s]);
+                BitSet in = (BitSet) out.clone();
+                in.andNot(kill[b]);
+                in.or(gen[b]);
+                if (!in.equals(liveIn[b])) {
+                    liveIn[b] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static boolean endsBlock(Instruction in) {
+        return in instanceof Jump || in instanceof JmpCC || in == Nullary.RET;
+    }
+
+    /**
+     * The graph node of o, or -1 if o is not an allocatable register or a
+     * pseudo that could be kept in one.
+     */
+    private int node(Operand o) {
+        return switch (o) {
+            case Reg r -> (GP_MASK & 1L << r.ordinal()) != 0 ? r.ordinal() : -1;
+            case DoubleReg r -> (XMM_MASK & 1L << XMM_BASE + r.ordinal()) != 0 ? XMM_BASE + r.ordinal() : -1;
+            case Pseudo p when !p.isStatic() -> {
+                int id = p.id();
+                if (nodeOwners[id] != functionNumber) {
+                    nodeOwners[id] = functionNumber;
+                    nodes[id] = PSEUDO_BASE + newPseudo(p);
+                }
+                yield nodes[id];
+            }
+            default -> -1;
+        };
+    }
+
+    private int newPseudo(Pseudo p) {
+        if (pseudoCount == pseudos.length) {
+            int newLength = pseudoCount * 2;
+            pseudos = Arrays.copyOf(pseudos, newLength);
+            hardNeighbours = Arrays.copyOf(hardNeighbours, newLength);
+            neighbours = Arrays.copyOf(neighbours, newLength);
+            spillCosts = Arrays.copyOf(spillCosts, newLength);
+            pseudoDegrees = Arrays.copyOf(pseudoDegrees, newLength);
+            aliases = Arrays.copyOf(aliases, newLength);
+        }
+        pseudos[pseudoCount] = p;
+        return pseudoCount++;
+    }
+
+    private void use(Operand o) {
+        int n = node(o);
+        if (n >= 0) uses.add(n);
+    }
+
+    private void def(Operand o) {
+        int n = node(o);
+        if (n >= 0) defs.add(n);
+    }
+
+    private void useDef(Instruction in) {
+        uses.clear();
+        defs.clear();
+        switch (in) {
+            case Mov(_, Operand src, Operand dst) -> {
+                use(src);
+                def(dst);
+            }
+            case Movsx(Operand src, Operand dst) -> {
+                use(src);
+                def(dst);
+            }
+            case MovZeroExtend(Operand src, Operand dst) -> {
+                use(src);
+                def(dst);
+            }
+            case Cvttsd2si(_, Operand src, Operand dst) -> {
+                use(src);
+                def(dst);
+            }
+            case Cvtsi2sd(_, Operand src, Operand dst) -> {
+                use(src);
+                def(dst);
+            }
+            case Binary(var op, _, Operand src, Operand dst) -> {
+                // xor of a register with itself only zeroes it
+                if (!(op == BITWISE_XOR && src.equals(dst))) {
+                    use(src);
+                    use(dst);
+                }
+                def(dst);
+            }
+            case Unary(UnaryOperator op, _, Operand operand) -> {
+                use(operand);
+                if (op == UnaryOperator.IDIV || op == UnaryOperator.DIV) {
+                    use(AX);
+                    use(DX);
+                    def(AX);
+                    def(DX);
+                } else {
+                    def(operand);
+                }
+            }
+            case Cmp(_, Operand a, Operand b) -> {
+                use(a);
+                use(b);
+            }
+            case SetCC(_, _, Operand operand) -> {
+                // only the low byte is written
+                use(operand);
+                def(operand);
+            }
+            case Push(Operand operand) -> use(operand);
+            case Cdq _ -> {
+                use(AX);
+                def(DX);
+            }
+            case Call(int id) -> {
+                SymbolTableEntry callee = ctx.symbolTable().get(id);
+                int integerArguments = 0;
+                int doubleArguments = 0;
+                if (callee != null && callee.type() instanceof FunType(List<Type> params, _)) {
+                    for (Type t : params) {
+                        if (t == Primitive.DOUBLE) doubleArguments++;
+                        else integerArguments++;
+                    }
+                } else {
+                    integerArguments = INTEGER_ARGUMENTS.length;
+                    doubleArguments = DOUBLE_ARGUMENTS;
+                }
+                for (int i = 0; i < Math.min(integerArguments, INTEGER_ARGUMENTS.length); i++) {
+                    use(INTEGER_ARGUMENTS[i]);
+                }
+                for (int i = 0; i < Math.min(doubleArguments, DOUBLE_ARGUMENTS); i++) {
+                    use(DOUBLE_REGS[i]);
+                }
+                for (Reg r : CALLER_SAVED_REGISTERS) def(r);
+                for (DoubleReg r : XMM_REGISTERS) def(r);
+            }
+            case Nullary.RET -> {
+                if (returnRegister != null) use(returnRegister);
+                if (returnDoubleRegister != null) use(returnDoubleRegister);
+            }
+            case Jump _, JmpCC _, LabelIr _, Pop _ -> {
+            }
+        }
+    }
+
+    /**
+     * How many interference edges colourGraph would add, counting each
+     * edge once for every instruction that makes it, which is what the
+     * time it takes grows with.
+     */
+    private long interferences() {
+        LiveSet live = new LiveSet(PSEUDO_BASE + pseudoCount);
+        long count = 0;
+        for (int b = 0; b < blockCount; b++) {
+            live.clear();
+            BitSet out = liveOut[b];
+            for (int v = out.nextSetBit(0); v >= 0; v = out.nextSetBit(v + 1)) live.add(v);
+            for (int i = blockStarts.get(b + 1) - 1; i >= blockStarts.get(b); i--) {
+                count += (long) (defStarts[i + 1] - defStarts[i]) * live.size();
+                for (int j = defStarts[i]; j < defStarts[i + 1]; j++) live.remove(defNodes.get(j));
+                for (int j = useStarts[i]; j < useStarts[i + 1]; j++) live.add(useNodes.get(j));
+            }
+        }
+        return count;
+    }
+
+    private void colourGraph() {
+        int n = instructions.size();
+        for (int p = 0; p < pseudoCount; p++) {
+            hardNeighbours[p] = 0;
+            neighbours[p] = new IntList();
+            spillCosts[p] = 0;
+            aliases[p] = PSEUDO_BASE + p;
+        }
+        edges = new EdgeSet();
+
+        // loop depth of each instruction, counting the back edges around it
+        int[] depths = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            int target = switch (instructions.get(i)) {
+                case Jump(int label) -> labelIndexes.get(label);
+                case JmpCC(_, _, int label) -> labelIndexes.get(label);
+                default -> i + 1;
+            };
+            if (target <= i) {
+                depths[target]++;
+                depths[i + 1]--;
+            }
+        }
+        for (int i = 1; i < n; i++) depths[i] += depths[i - 1];
+
+        LiveSet live = new LiveSet(PSEUDO_BASE + pseudoCount);
+        // the source and destination node of each move that could be coalesced
+        IntList moves = new IntList();
+        for (int b = 0; b < blockCount; b++) {
+            live.clear();
+            BitSet out = liveOut[b];
+            for (int v = out.nextSetBit(0); v >= 0; v = out.nextSetBit(v + 1)) live.add(v);
+            for (int i = blockStarts.get(b + 1) - 1; i >= blockStarts.get(b); i--) {
+                int moveSource = -1;
+                if (instructions.get(i) instanceof Mov(TypeAsm type, Operand src, Operand dst)) {
+                    moveSource = node(src);
+                    int moveDestination = node(dst);
+                    // a move that is not to a pseudo of its own type may change the value
+                    if (moveSource >= 0 && moveDestination >= 0 && moveSource != moveDestination
+                            && isDouble(moveSource) == isDouble(moveDestination)
+                            && !(dst instanceof Pseudo p && p.type() != type)) {
+                        moves.add(moveSource);
+                        moves.add(moveDestination);
+                    }
+                }
+                for (int j = defStarts[i]; j < defStarts[i + 1]; j++) {
+                    int d = defNodes.get(j);
+                    for (int k = 0; k < live.size(); k++) {
+                        int l = live.get(k);
+                        if (l != moveSource) addEdge(d, l);
+                    }
+                }
+                double weight = LOOP_WEIGHTS[Math.min(depths[i], LOOP_WEIGHTS.length - 1)];
+                for (int j = defStarts[i]; j < defStarts[i + 1]; j++) {
+                    int d = defNodes.get(j);
+                    live.remove(d);
+                    if (d >= PSEUDO_BASE) spillCosts[d - PSEUDO_BASE] += weight;
+                }
+                for (int j = useStarts[i]; j < useStarts[i + 1]; j++) {
+                    int u = useNodes.get(j);
+                    live.add(u);
+                    if (u >= PSEUDO_BASE) spillCosts[u - PSEUDO_BASE] += weight;
+                }
+            }
+        }
+
+        for (int p = 0; p < pseudoCount; p++) pseudoDegrees[p] = neighbours[p].size();
+        coalesce(moves);
+        int[] colours = colour();
+        Function<Operand, Operand> assign = o -> {
+            if (o instanceof Pseudo p && !p.isStatic()) {
+                int alias = find(nodes[p.id()]);
+                int colour = alias < PSEUDO_BASE ? alias : colours[alias - PSEUDO_BASE];
+                if (colour >= 0) return hardOperand(colour);
+            }
+            return o;
+        };
+        for (int i = 0; i < n; i++) {
+            instructions.set(i, Codegen.mapOperands(instructions.get(i), assign));
+        }
+        edges = null;
+    }
+
+    private void addEdge(int a, int b) {
+        if (a == b || isDouble(a) != isDouble(b)) return;
+        if (a < PSEUDO_BASE) {
+            if (b >= PSEUDO_BASE) hardNeighbours[b - PSEUDO_BASE] |= 1L << a;
+        } else if (b < PSEUDO_BASE) {
+            hardNeighbours[a - PSEUDO_BASE] |= 1L << b;
+        } else if (edges.add(Math.min(a, b), Math.max(a, b))) {
+            neighbours[a - PSEUDO_BASE].add(b - PSEUDO_BASE);
+            neighbours[b - PSEUDO_BASE].add(a - PSEUDO_BASE);
+        }
+    }
+
+    /**
+     * Coalesce the ends of moves, merging them only if a graph that could be
+     * coloured still can be. A node b may be merged into a George style if
+     * each of b's neighbours already interferes with a or has fewer than K
+     * neighbours; that is how a pseudo is merged into a hard register, and
+     * two pseudos are tried that way round with b the one with fewer
+     * neighbours. Two pseudos that fail are merged Briggs style if fewer
+     * than K of the merged node's neighbours have K or more neighbours, but
+     * only if they have few neighbours between them, as the test scans all
+     * of them. Passes are repeated while anything is merged, as a merge can
+     * lower the degrees that blocked another, over the moves that were
+     * blocked that way; merging never removes an interference. Nothing is
+     * merged with a pseudo that interferes with every register, as it will
+     * be spilled anyway and would take the other with it.
+     */
+    private void coalesce(IntList moves) {
+        int[] marks = new int[pseudoCount];
+        int mark = 0;
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            int blocked = 0;
+            for (int i = 0; i < moves.size(); i += 2) {
+                int a = find(moves.get(i));
+                int b = find(moves.get(i + 1));
+                if (b < PSEUDO_BASE || a >= PSEUDO_BASE && degree(a - PSEUDO_BASE) < degree(b - PSEUDO_BASE)) {
+                    int t = a;
+                    a = b;
+                    b = t;
+                }
+                if (a == b || b < PSEUDO_BASE || interferes(a, b) || mustSpill(a) || mustSpill(b)) continue;
+                if (george(a, b) || a >= PSEUDO_BASE && briggs(a, b, marks, ++mark)) {
+                    merge(a, b);
+                    merged = true;
+                } else {
+                    moves.set(blocked++, a);
+                    moves.set(blocked++, b);
+                }
+            }
+            moves.truncate(blocked);
+        }
+    }
+
+    private boolean mustSpill(int node) {
+        if (node < PSEUDO_BASE) return false;
+        long registers = isDouble(node) ? XMM_MASK : GP_MASK;
+        return (hardNeighbours[node - PSEUDO_BASE] & registers) == registers;
+    }
+
+    private boolean george(int a, int b) {
+        if (a >= PSEUDO_BASE && (hardNeighbours[b - PSEUDO_BASE] & ~hardNeighbours[a - PSEUDO_BASE]) != 0) {
+            return false;
+        }
+        IntList ns = neighbours[b - PSEUDO_BASE];
+        for (int j = 0; j < ns.size(); j++) {
+            int t = ns.get(j);
+            if (!isAlias(t) && degree(t) >= registerCount(t) && !interferes(a, PSEUDO_BASE + t)) return false;
+        }
+        return true;
+    }
+
+    // marks[t] == mark for the neighbours already counted
+    private boolean briggs(int a, int b, int[] marks, int mark) {
+        int k = registerCount(a - PSEUDO_BASE);
+        if (degree(a - PSEUDO_BASE) + degree(b - PSEUDO_BASE) > BRIGGS_NEIGHBOURS) return false;
+        int significant = Long.bitCount(hardNeighbours[a - PSEUDO_BASE] | hardNeighbours[b - PSEUDO_BASE]);
+        for (int node : new int[]{a, b}) {
+            IntList ns = neighbours[node - PSEUDO_BASE];
+            for (int j = 0; j < ns.size() && significant < k; j++) {
+                int t = ns.get(j);
+                if (isAlias(t) || marks[t] == mark) continue;
+                marks[t] = mark;
+                // a neighbour of both loses one neighbour in the merge
+                int d = degree(t) - (interferes(a, PSEUDO_BASE + t) && interferes(b, PSEUDO_BASE + t) ? 1 : 0);
+                if (d >= registerCount(t)) significant++;
+            }
+        }
+        return significant < k;
+    }
+
+    // whether pseudo p has been coalesced into another node
+    private boolean isAlias(int p) {
+        return aliases[p] != PSEUDO_BASE + p;
+    }
+
+    private int find(int node) {
+        if (node < PSEUDO_BASE) return node;
+        int alias = aliases[node - PSEUDO_BASE];
+        if (alias == node) return node;
+        int root = find(alias);
+        aliases[node - PSEUDO_BASE] = root;
+        return root;
+    }
+
+    private boolean interferes(int a, int b) {
+        if (a < PSEUDO_BASE) return (hardNeighbours[b - PSEUDO_BASE] & 1L << a) != 0;
+        return edges.contains(Math.min(a, b), Math.max(a, b));
+    }
+
+    private int degree(int p) {
+        return Long.bitCount(hardNeighbours[p]) + pseudoDegrees[p];
+    }
+
+    // merge pseudo node b into node a
+    private void merge(int a, int b) {
+        int q = b - PSEUDO_BASE;
+        aliases[q] = a;
+        IntList ns = neighbours[q];
+        for (int j = 0; j < ns.size(); j++) {
+            int t = ns.get(j);
+            if (isAlias(t)) continue;
+            if (a < PSEUDO_BASE) {
+                hardNeighbours[t] |= 1L << a;
+                pseudoDegrees[t]--;
+            } else if (edges.add(Math.min(a, PSEUDO_BASE + t), Math.max(a, PSEUDO_BASE + t))) {
+                neighbours[a - PSEUDO_BASE].add(t);
+                neighbours[t].add(a - PSEUDO_BASE);
+                pseudoDegrees[a - PSEUDO_BASE]++;
+            } else {
+                pseudoDegrees[t]--;
+            }
+        }
+        if (a >= PSEUDO_BASE) {
+            hardNeighbours[a - PSEUDO_BASE] |= hardNeighbours[q];
+            spillCosts[a - PSEUDO_BASE] += spillCosts[q];
+        }
+    }
+
+    /**
+     * Colour the interference graph. Returns the hard register node given to
+     * each pseudo, or -1 for a pseudo that must be spilled or has been
+     * coalesced.
+     */
+    private int[] colour() {
+        int count = pseudoCount;
+        int[] degrees = new int[count];
+        boolean[] removed = new boolean[count];
+        IntList simplifiable = new IntList();
+        int remaining = count;
+        for (int p = 0; p < count; p++) {
+            if (isAlias(p)) {
+                removed[p] = true;
+                remaining--;
+                continue;
+            }
+            degrees[p] = degree(p);
+            if (degrees[p] < registerCount(p)) simplifiable.add(p);
+        }
+        IntList stack = new IntList();
+        while (remaining > 0) {
+            int p;
+            if (simplifiable.size() > 0) {
+                p = simplifiable.removeLast();
+            } else {
+                p = -1;
+                double best = Double.POSITIVE_INFINITY;
+                for (int q = 0; q < count; q++) {
+                    if (removed[q]) continue;
+                    double c = spillCosts[q] / degrees[q];
+                    if (p < 0 || c < best) {
+                        p = q;
+                        best = c;
+                    }
+                }
+            }
+            removed[p] = true;
+            remaining--;
+            stack.add(p);
+            IntList ns = neighbours[p];
+            for (int i = 0; i < ns.size(); i++) {
+                int q = ns.get(i);
+                if (!removed[q] && degrees[q]-- == registerCount(q)) simplifiable.add(q);
+            }
+        }
+
+        int[] colours = new int[count];
+        Arrays.fill(colours, -1);
+        while (stack.size() > 0) {
+            int p = stack.removeLast();
+            long taken = hardNeighbours[p];
+            IntList ns = neighbours[p];
+            for (int i = 0; i < ns.size(); i++) {
+                int c = colours[ns.get(i)];
+                if (c >= 0) taken |= 1L << c;
+            }
+            for (Operand r : registers(PSEUDO_BASE + p)) {
+                int node = hardNode(r);
+                if ((taken & 1L << node) == 0) {
+                    colours[p] = node;
+                    break;
+                }
+            }
+        }
+        return colours;
+    }
+
+    private int registerCount(int p) {
+        return registers(PSEUDO_BASE + p).length;
+    }
+
+    /*
+     * Linear scan. Instruction i has two positions: 2i, where it reads its
+     * operands, and 2i + 1, where it writes them. A value is split only at
+     * even positions, so all of an instruction's operands see the same part
+     * of each value.
+     */
+
+    private void linearScan() {
+        int n = instructions.size();
+        int nodeCount = PSEUDO_BASE + pseudoCount;
+        Interval[] intervals = new Interval[nodeCount];
+        for (int v = 0; v < nodeCount; v++) intervals[v] = new Interval(v);
+        for (int b = blockCount - 1; b >= 0; b--) {
+            int from = 2 * blockStarts.get(b);
+            BitSet out = liveOut[b];
+            for (int v = out.nextSetBit(0); v >= 0; v = out.nextSetBit(v + 1)) {
+                intervals[v].addRange(from, 2 * blockStarts.get(b + 1));
+            }
+            for (int i = blockStarts.get(b + 1) - 1; i >= blockStarts.get(b); i--) {
+                for (int j = defStarts[i]; j < defStarts[i + 1]; j++) {
+                    Interval interval = intervals[defNodes.get(j)];
+                    interval.define(2 * i + 1);
+                    interval.addUse(2 * i);
+                    interval.writes.add(2 * i);
+                }
+                for (int j = useStarts[i]; j < useStarts[i + 1]; j++) {
+                    Interval interval = intervals[useNodes.get(j)];
+                    interval.addRange(from, 2 * i + 1);
+                    interval.addUse(2 * i);
+                }
+            }
+        }
+        PriorityQueue<Interval> unhandled = new PriorityQueue<>(Comparator.comparingInt(Interval::start));
+        for (Interval interval : intervals) {
+            interval.finish();
+            if (interval.node >= PSEUDO_BASE && !interval.isEmpty()) unhandled.add(interval);
+        }
+
+        ArrayList<Interval> active = new ArrayList<>();
+        ArrayList<Interval> inactive = new ArrayList<>();
+        int[] freeUntil = new int[PSEUDO_BASE];
+        Interval current;
+        while ((current = unhandled.poll()) != null) {
+            int position = current.start();
+            for (int i = active.size() - 1; i >= 0; i--) {
+                Interval interval = active.get(i);
+                if (interval.end() <= position) {
+                    removeAt(active, i);
+                } else if (!interval.covers(position)) {
+                    removeAt(active, i);
+                    inactive.add(interval);
+                }
+            }
+            for (int i = inactive.size() - 1; i >= 0; i--) {
+                Interval interval = inactive.get(i);
+                if (interval.end() <= position) {
+                    removeAt(inactive, i);
+                } else if (interval.covers(position)) {
+                    removeAt(inactive, i);
+                    active.add(interval);
+                }
+            }
+            if (!allocateFreeRegister(current, intervals, active, inactive, freeUntil, unhandled)) {
+                allocateBlockedRegister(current, intervals, active, inactive, freeUntil, unhandled);
+            }
+            if (current.register >= 0) active.add(current);
+        }
+
+        // rewrite the operands, then add the moves between the parts of split
+        // values; parts[v] is the current part of node v as the rewrite goes
+        Interval[] parts = intervals.clone();
+        int[] position = new int[1];
+        Function<Operand, Operand> assign = o -> {
+            if (o instanceof Pseudo p && !p.isStatic()) {
+                int v = nodes[p.id()];
+                Interval part = parts[v];
+                while (part.next != null && part.next.splitPosition <= position[0]) part = part.next;
+                parts[v] = part;
+                if (part.register >= 0) return hardOperand(part.register);
+            }
+            return o;
+        };
+        for (int i = 0; i < n; i++) {
+            position[0] = 2 * i;
+            instructions.set(i, Codegen.mapOperands(instructions.get(i), assign));
+        }
+
+        IntList splitNodes = new IntList();
+        BitSet split = new BitSet(nodeCount);
+        Interval[][] splitParts = new Interval[nodeCount][];
+        for (int v = PSEUDO_BASE; v < nodeCount; v++) {
+            if (intervals[v].next != null) {
+                splitNodes.add(v);
+                split.set(v);
+                splitParts[v] = intervals[v].parts();
+            }
+        }
+        if (splitNodes.size() == 0) return;
+        for (int k = 0; k < splitNodes.size(); k++) {
+            // A register part that never writes the value and shares its
+            // register with no other part is only ever entered by loading
+            // the value, so its stack slot stays up to date
+            long once = 0;
+            long twice = 0;
+            for (Interval part = intervals[splitNodes.get(k)]; part != null; part = part.next) {
+                if (part.register < 0) continue;
+                twice |= once & 1L << part.register;
+                once |= 1L << part.register;
+            }
+            for (Interval part = intervals[splitNodes.get(k)]; part != null; part = part.next) {
+                part.clean = !part.writes() && (twice & 1L << part.register) == 0;
+            }
+        }
+        Moves[] splitMoves = new Moves[n];
+        for (int k = 0; k < splitNodes.size(); k++) {
+            Pseudo p = pseudos[splitNodes.get(k) - PSEUDO_BASE];
+            for (Interval part = intervals[splitNodes.get(k)]; part.next != null; part = part.next) {
+                Interval next = part.next;
+                int i = next.splitPosition / 2;
+                // a split at a block start is resolved on the incoming edges
+                if (part.register == next.register || blockStarts.get(blockOf[i]) == i
+                        || !next.covers(next.splitPosition)) {
+                    continue;
+                }
+                if (splitMoves[i] == null) splitMoves[i] = new Moves();
+                splitMoves[i].add(p, part, next.register);
+            }
+        }
+
+        // the split values live into each block, so that each edge only
+        // looks at the values that may need a move on it
+        BitSet[] splitLiveIn = new BitSet[blockCount];
+        Moves[] edgeMoves = new Moves[n + 1];
+        ArrayList<Instruction> stubs = new ArrayList<>();
+        for (int b = 0; b < blockCount; b++) {
+            int end = blockStarts.get(b + 1);
+            Instruction last = instructions.get(end - 1);
+            for (int e = 0; e < successors[b].length; e++) {
+                int s = successors[b][e];
+                if (splitLiveIn[s] == null) {
+                    splitLiveIn[s] = (BitSet) liveIn[s].clone();
+                    splitLiveIn[s].and(split);
+                }
+                Moves moves = new Moves();
+                BitSet in = splitLiveIn[s];
+                for (int v = in.nextSetBit(0); v >= 0; v = in.nextSetBit(v + 1)) {
+                    Interval from = Interval.partAt(splitParts[v], 2 * end - 1);
+                    int to = Interval.partAt(splitParts[v], 2 * blockStarts.get(s)).register;
+                    if (from.register != to) moves.add(pseudos[v - PSEUDO_BASE], from, to);
+                }
+                if (moves.isEmpty()) continue;
+                if (last instanceof JmpCC(var op, boolean signed, int label) && e == 0) {
+                    // the taken edge of a conditional jump goes through a new block at the end
+                    LabelIr stub = ctx.newLabel("split");
+                    instructions.set(end - 1, new JmpCC(op, signed, stub.label()));
+                    stubs.add(stub);
+                    moves.emit(stubs);
+                    stubs.add(new Jump(label));
+                } else {
+                    edgeMoves[last instanceof Jump ? end - 1 : end] = moves;
+                }
+            }
+        }
+
+        ArrayList<Instruction> out = new ArrayList<>(n + stubs.size() + n / 8);
+        for (int i = 0; i <= n; i++) {
+            if (i < n && splitMoves[i] != null) splitMoves[i].emit(out);
+            if (edgeMoves[i] != null) edgeMoves[i].emit(out);
+            if (i < n) out.add(instructions.get(i));
+        }
+        out.addAll(stubs);
+        instructions.clear();
+        instructions.addAll(out);
+    }
+
+    private static void removeAt(ArrayList<Interval> list, int i) {
+        Interval last = list.removeLast();
+        if (i < list.size()) list.set(i, last);
+    }
+
+    /**
+     * Give current the register that stays free longest from its start,
+     * splitting it where that register is next wanted. Returns false if no
+     * register is free at its start.
+     */
+    private boolean allocateFreeRegister(Interval current, Interval[] intervals, List<Interval> active,
+                                         List<Interval> inactive, int[] freeUntil,
+                                         PriorityQueue<Interval> unhandled) {
+        int position = current.start();
+        Operand[] registers = registers(current.node);
+        for (Operand r : registers) freeUntil[hardNode(r)] = Integer.MAX_VALUE;
+        for (Interval interval : active) freeUntil[interval.register] = 0;
+        for (Interval interval : inactive) {
+            int r = interval.register;
+            if (freeUntil[r] > position) {
+                freeUntil[r] = Math.min(freeUntil[r], interval.intersection(current, position));
+            }
+        }
+        // the first register free for all of current, so that the
+        // callee-saved ones are left for values that need them, or else the
+        // one free for longest
+        int best = -1;
+        int first = -1;
+        for (Operand r : registers) {
+            int node = hardNode(r);
+            if (freeUntil[node] > position) {
+                freeUntil[node] = Math.min(freeUntil[node], intervals[node].intersection(current, position));
+            }
+            if (best < 0 || freeUntil[node] > freeUntil[best]) best = node;
+            if (first < 0 && freeUntil[node] >= current.end()) first = node;
+        }
+        if (first >= 0) best = first;
+        int free = freeUntil[best];
+        if (free >= current.end()) {
+            current.register = best;
+            return true;
+        }
+        int split = free & ~1;
+        if (split <= position) return false;
+        current.register = best;
+        unhandled.add(current.split(split));
+        return true;
+    }
+
+    /**
+     * No register is free at the start of current: take the register of the
+     * active value whose next use is furthest away if that is further than
+     * current's, otherwise leave current in memory until its next use.
+     */
+    private void allocateBlockedRegister(Interval current, Interval[] intervals, List<Interval> active,
+                                         List<Interval> inactive, int[] freeUntil,
+                                         PriorityQueue<Interval> unhandled) {
+        int position = current.start();
+        int split = position & ~1;
+        boolean isDouble = isDouble(current.node);
+        Interval victim = null;
+        int victimUse = current.nextUse(position);
+        for (Interval interval : active) {
+            if (isDouble(interval.node) != isDouble || interval.start() >= split) continue;
+            int nextUse = interval.nextUse(position);
+            if (nextUse > victimUse) {
+                victim = interval;
+                victimUse = nextUse;
+            }
+        }
+        if (victim != null) {
+            active.remove(victim);
+            spillUntilNextUse(victim.split(split), split, unhandled);
+            if (allocateFreeRegister(current, intervals, active, inactive, freeUntil, unhandled)) return;
+        }
+        spillUntilNextUse(current, position, unhandled);
+    }
+
+    private static void spillUntilNextUse(Interval interval, int position, PriorityQueue<Interval> unhandled) {
+        interval.register = -1;
+        int nextUse = interval.nextUse((position & ~1) + 2);
+        if (nextUse <= interval.start()) {
+            // a part split off at a hole, which is first written after its next use
+            unhandled.add(interval);
+        } else if (nextUse < interval.end()) {
+            unhandled.add(interval.split(nextUse));
+        }
+    }
+
+    /**
+     * The live interval of a node, or of the part of it from splitPosition on
+     * if the node's interval has been split. The parts of a node share its
+     * lists of ranges and uses, each part owning a slice of them, so that
+     * splitting takes logarithmic time however long the interval.
+     */
+    private static final class Interval {
+        final int node;
+        // hard register node, or -1 for the stack slot
+        int register = -1;
+        int splitPosition;
+        Interval next;
+        // [from, to) pairs in order, built in reverse order by addRange; this
+        // part has pairs rangeLo to rangeHi - 1, except that it starts at
+        // firstFrom and ends at lastTo
+        IntList ranges;
+        int rangeLo;
+        int rangeHi;
+        int firstFrom;
+        int lastTo;
+        // positions of the instructions using or defining the value, in order;
+        // this part has uses useLo to useHi - 1
+        IntList uses;
+        int useLo;
+        int useHi;
+        // positions of the instructions writing the value, in order
+        IntList writes;
+        int writeLo;
+        int writeHi;
+        // whether the stack slot holds the value throughout this part
+        boolean clean;
+
+        Interval(int node) {
+            this.node = node;
+            if (node < PSEUDO_BASE) register = node;
+            ranges = new IntList();
+            uses = new IntList();
+            writes = new IntList();
+        }
+
+        private Interval(Interval parent) {
+            node = parent.node;
+            ranges = parent.ranges;
+            uses = parent.uses;
+            writes = parent.writes;
+        }
+
+        void addRange(int from, int to) {
+            int size = ranges.size();
+            if (size > 0 && ranges.get(size - 2) <= to) {
+                ranges.set(size - 2, Math.min(from, ranges.get(size - 2)));
+            } else {
+                ranges.add(from);
+                ranges.add(to);
+            }
+        }
+
+        void define(int position) {
+            int size = ranges.size();
+            if (size > 0 && ranges.get(size - 2) <= position) {
+                ranges.set(size - 2, position);
+            } else {
+                // never read
+                ranges.add(position);
+                ranges.add(position + 1);
+            }
+        }
+
+        void addUse(int position) {
+            if (uses.size() == 0 || uses.get(uses.size() - 1) != position) uses.add(position);
+        }
+
+        void finish() {
+            ranges.reversePairs();
+            uses.reverse();
+            writes.reverse();
+            rangeHi = ranges.size() / 2;
+            if (rangeHi > 0) {
+                firstFrom = ranges.get(0);
+                lastTo = ranges.get(ranges.size() - 1);
+            }
+            useHi = uses.size();
+            writeHi = writes.size();
+        }
+
+        boolean isEmpty() {
+            return rangeLo == rangeHi;
+        }
+
+        private int from(int r) {
+            return r == rangeLo ? firstFrom : ranges.get(2 * r);
+        }
+
+        private int to(int r) {
+            return r == rangeHi - 1 ? lastTo : ranges.get(2 * r + 1);
+        }
+
+        int start() {
+            return firstFrom;
+        }
+
+        int end() {
+            return lastTo;
+        }
+
+        // the index of the first range ending after position
+        private int rangeAfter(int position) {
+            int lo = rangeLo;
+            int hi = rangeHi;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (to(mid) <= position) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        boolean covers(int position) {
+            int r = rangeAfter(position);
+            return r < rangeHi && from(r) <= position;
+        }
+
+        // the index of the first of positions lo to hi - 1 at or after position
+        private static int search(IntList positions, int lo, int hi, int position) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (positions.get(mid) < position) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        int nextUse(int position) {
+            int u = search(uses, useLo, useHi, position);
+            return u < useHi ? uses.get(u) : Integer.MAX_VALUE;
+        }
+
+        boolean writes() {
+            return writeLo < writeHi;
+        }
+
+        /**
+         * The first position from position on where both this and other
+         * are live, or Integer.MAX_VALUE.
+         */
+        int intersection(Interval other, int position) {
+            int i = rangeAfter(position);
+            int j = other.rangeAfter(position);
+            while (i < rangeHi && j < other.rangeHi) {
+                int from = Math.max(Math.max(from(i), other.from(j)), position);
+                int to = Math.min(to(i), other.to(j));
+                if (from < to) return from;
+                if (to(i) < other.to(j)) i++;
+                else j++;
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        /**
+         * Cut off the part of this interval from position on, which must be
+         * even and before its end, and return it.
+         */
+        Interval split(int position) {
+            Interval child = new Interval(this);
+            child.splitPosition = position;
+            child.next = next;
+            next = child;
+            int r = rangeAfter(position);
+            child.rangeLo = r;
+            child.rangeHi = rangeHi;
+            child.lastTo = lastTo;
+            if (from(r) < position) {
+                child.firstFrom = position;
+                rangeHi = r + 1;
+                lastTo = position;
+            } else {
+                child.firstFrom = from(r);
+                rangeHi = r;
+                lastTo = r > rangeLo ? ranges.get(2 * r - 1) : firstFrom;
+            }
+            child.useLo = search(uses, useLo, useHi, position);
+            child.useHi = useHi;
+            useHi = child.useLo;
+            child.writeLo = search(writes, writeLo, writeHi, position);
+            child.writeHi = writeHi;
+            writeHi = child.writeLo;
+            return child;
+        }
+
+        /**
+         * The parts of the value in order of position.
+         */
+        Interval[] parts() {
+            int count = 0;
+            for (Interval part = this; part != null; part = part.next) count++;
+            Interval[] parts = new Interval[count];
+            int k = 0;
+            for (Interval part = this; part != null; part = part.next) parts[k++] = part;
+            return parts;
+        }
+
+        /**
+         * The part of the value that position belongs to.
+         */
+        static Interval partAt(Interval[] parts, int position) {
+            int lo = 0;
+            int hi = parts.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (parts[mid].splitPosition <= position) lo = mid;
+                else hi = mid - 1;
+            }
+            return parts[lo];
+        }
+    }
+
+    /**
+     * The moves that take split values from one part's location to the
+     * next. Every move goes through the value's stack slot, and stores are
+     * emitted before loads, so moves between registers can't clobber each
+     * other.
+     */
+    private static final class Moves {
+        private final ArrayList<Instruction> stores = new ArrayList<>();
+        private final ArrayList<Instruction> loads = new ArrayList<>();
+
+        void add(Pseudo p, Interval from, int to) {
+            if (from.register >= 0 && !from.clean) {
+                stores.add(new Mov(p.type(), hardOperand(from.register), p));
+            }
+            if (to >= 0) loads.add(new Mov(p.type(), p, hardOperand(to)));
+        }
+
+        boolean isEmpty() {
+            return stores.isEmpty() && loads.isEmpty();
+        }
+
+        void emit(List<Instruction> out) {
+            out.addAll(stores);
+            out.addAll(loads);
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        void set(int i, int v) {
+            values[i] = v;
+        }
+
+        int removeLast() {
+            return values[--size];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void truncate(int newSize) {
+            size = newSize;
+        }
+
+        void reverse() {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                int t = values[i];
+                values[i] = values[j];
+                values[j] = t;
+            }
+        }
+
+        // reverse the order of the pairs (values[0], values[1]), ...
+        void reversePairs() {
+            for (int i = 0, j = size - 2; i < j; i += 2, j -= 2) {
+                int t0 = values[i];
+                int t1 = values[i + 1];
+                values[i] = values[j];
+                values[i + 1] = values[j + 1];
+                values[j] = t0;
+                values[j + 1] = t1;
+            }
+        }
+    }
+
+    /**
+     * A set of nodes that can be cleared and iterated in time proportional
+     * to its size.
+     */
+    private static final class LiveSet {
+        private final int[] members;
+        private final int[] indexes;
+        private int size;
+
+        LiveSet(int capacity) {
+            members = new int[capacity];
+            indexes = new int[capacity];
+        }
+
+        void add(int v) {
+            int i = indexes[v];
+            if (i < size && members[i] == v) return;
+            indexes[v] = size;
+            members[size++] = v;
+        }
+
+        void remove(int v) {
+            int i = indexes[v];
+            if (i >= size || members[i] != v) return;
+            int last = members[--size];
+            members[i] = last;
+            indexes[last] = i;
+        }
+
+        int get(int i) {
+            return members[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * The set of interference edges between pseudos, as an open addressing
+     * hash set of (a, b) pairs with a < b.
+     */
+    private static final class EdgeSet {
+        private long[] table = new long[1024];
+        private int size;
+
+        boolean contains(int a, int b) {
+            long key = (long) a << 32 | b;
+            int mask = table.length - 1;
+            for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                long k = table[slot];
+                if (k == key) return true;
+                if (k == 0) return false;
+            }
+        }
+
+        boolean add(int a, int b) {
+            // pseudo nodes are at least PSEUDO_BASE so no key is 0
+            long key = (long) a << 32 | b;
+            int mask = table.length - 1;
+            for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                long k = table[slot];
+                if (k == key) return false;
+                if (k == 0) {
+                    table[slot] = key;
+                    if (++size * 2 > table.length) rehash();
+                    return true;
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ h >>> 32);
+        }
+
+        private void rehash() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            int mask = table.length - 1;
+            for (long key : old) {
+                if (key == 0) continue;
+                int slot = hash(key) & mask;
+                while (table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = key;
+            }
+        }
+    }
+}
@@ -1,5 +1,12 @@
 package com.quaxt.mcc.asm;
 
-public record Stack(int offset) implements Operand {
-
+/**
+ * The stack slot at offset from base, which is BP until fixUpInstructions
+ * rebases the slots of a function without a frame pointer on SP. A
+ * stack argument of a call is stored at an offset from SP from the start.
+ */
+public record Stack(int offset, Reg base) implements Operand {
+    public Stack(int offset) {
+        this(offset, Reg.BP);
+    }
 }
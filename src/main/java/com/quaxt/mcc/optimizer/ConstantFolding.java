@@ -0,0 +1,203 @@
+package com.quaxt.mcc.optimizer;
+
+import com.quaxt.mcc.ArithmeticOperator;
+import com.quaxt.mcc.BinaryOperator;
+import com.quaxt.mcc.CmpOperator;
+import com.quaxt.mcc.UnaryOperator;
+import com.quaxt.mcc.parser.ConstDouble;
+import com.quaxt.mcc.parser.ConstInt;
+import com.quaxt.mcc.parser.ConstLong;
+import com.quaxt.mcc.parser.ConstUInt;
+import com.quaxt.mcc.parser.ConstULong;
+import com.quaxt.mcc.parser.Constant;
+import com.quaxt.mcc.semantic.Primitive;
+import com.quaxt.mcc.semantic.Type;
+import com.quaxt.mcc.tacky.*;
+
+import java.util.List;
+
+import static com.quaxt.mcc.semantic.Primitive.*;
+
+/**
+ * Evaluates the instructions whose operands are all constants, the way the
+ * generated code would at run time: integers wrap around at their width,
+ * unsigned division and comparison are unsigned, double arithmetic rounds
+ * to nearest as SSE does, and conversions truncate, extend or round as C
+ * says. An instruction whose result C leaves undefined, such as division
+ * by zero or a double out of the range of the integer type it is
+ * converted to, is left for the machine to do. Conditional jumps on a
+ * constant become jumps or disappear.
+ */
+final class ConstantFolding {
+    private ConstantFolding() {
+    }
+
+    /**
+     * Add instructions to out with the ones that can be folded folded, and
+     * return how many were.
+     */
+    static int fold(List<InstructionIr> instructions, List<InstructionIr> out) {
+        int folded = 0;
+        for (InstructionIr in : instructions) {
+            InstructionIr f = fold(in);
+            if (f != in) folded++;
+            if (f != null) out.add(f);
+        }
+        return folded;
+    }
+
+    /**
+     * in folded, null if it does nothing, or in itself if it can't be folded.
+     */
+    static InstructionIr fold(InstructionIr in) {
+        return switch (in) {
+            case UnaryIr(UnaryOperator op, Constant c, VarIr dst) -> copy(unary(op, c, dst.type()), dst, in);
+            case BinaryIr(BinaryOperator op, Constant c1, Constant c2, VarIr dst) ->
+                    copy(binary(op, c1, c2, dst.type()), dst, in);
+            case Copy(Constant c, VarIr dst) when c.type() != dst.type() -> copy(convert(c, dst.type()), dst, in);
+            case SignExtendIr(Constant c, VarIr dst) -> copy(convert(c, dst.type()), dst, in);
+            case ZeroExtendIr(Constant c, VarIr dst) -> copy(convert(c, dst.type()), dst, in);
+            case TruncateIr(Constant c, VarIr dst) -> copy(convert(c, dst.type()), dst, in);
+            case IntToDouble(Constant c, VarIr dst) -> copy(new ConstDouble(toDouble(c)), dst, in);
+            case UIntToDouble(Constant c, VarIr dst) -> copy(new ConstDouble(toDouble(c)), dst, in);
+            case DoubleToInt(ConstDouble(double d), VarIr dst) -> copy(toInteger(d, dst.type()), dst, in);
+            case DoubleToUInt(ConstDouble(double d), VarIr dst) -> copy(toInteger(d, dst.type()), dst, in);
+            case JumpIfZero(Constant c, int label) -> isZero(c) ? new Jump(label) : null;
+            case JumpIfNotZero(Constant c, int label) -> isZero(c) ? null : new Jump(label);
+            default -> in;
+        };
+    }
+
+    private static InstructionIr copy(Constant value, VarIr dst, InstructionIr in) {
+        return value == null ? in : new Copy(value, dst);
+    }
+
+    /**
+     * The constant of type t whose low bits are those of value.
+     */
+    static Constant constant(Type t, long value) {
+        return switch (t) {
+            case Primitive.INT -> new ConstInt((int) value);
+            case Primitive.UINT -> new ConstUInt((int) value);
+            case Primitive.LONG -> new ConstLong(value);
+            case Primitive.ULONG -> new ConstULong(value);
+            default -> throw new IllegalArgumentException("not an integer type: " + t);
+        };
+    }
+
+    // the value of an integer constant, sign or zero extended to 64 bits
+    private static long bits(Constant c) {
+        return switch (c) {
+            case ConstInt(int i) -> i;
+            case ConstUInt(int i) -> Integer.toUnsignedLong(i);
+            case ConstLong(long l) -> l;
+            case ConstULong(long l) -> l;
+            case ConstDouble _ -> throw new IllegalArgumentException("not an integer constant: " + c);
+        };
+    }
+
+    private static boolean isZero(Constant c) {
+        return c instanceof ConstDouble(double d) ? d == 0 : bits(c) == 0;
+    }
+
+    /**
+     * c converted to type t, or null if C leaves the result undefined.
+     */
+    static Constant convert(Constant c, Type t) {
+        if (c.type() == t) return c;
+        if (t == DOUBLE) return new ConstDouble(toDouble(c));
+        if (c instanceof ConstDouble(double d)) return toInteger(d, t);
+        return constant(t, bits(c));
+    }
+
+    private static double toDouble(Constant c) {
+        return switch (c) {
+            case ConstDouble(double d) -> d;
+            case ConstULong(long l) when l < 0 ->
+                    // halve, keeping the low bit so that it still rounds the same way
+                    2.0 * (double) (l >>> 1 | l & 1);
+            default -> (double) bits(c);
+        };
+    }
+
+    // d truncated to integer type t, or null if that is out of t's range
+    private static Constant toInteger(double d, Type t) {
+        return switch (t) {
+            case Primitive.INT -> d > -0x1p31 - 1 && d < 0x1p31 ? new ConstInt((int) d) : null;
+            case Primitive.LONG -> d >= -0x1p63 && d < 0x1p63 ? new ConstLong((long) d) : null;
+            case Primitive.UINT -> d > -1 && d < 0x1p32 ? new ConstUInt((int) (long) d) : null;
+            case Primitive.ULONG -> !(d > -1 && d < 0x1p64) ? null
+                    : d < 0x1p63 ? new ConstULong((long) d) : new ConstULong((long) (d - 0x1p63) ^ Long.MIN_VALUE);
+            default -> throw new IllegalArgumentException("not an integer type: " + t);
+        };
+    }
+
+    private static Constant unary(UnaryOperator op, Constant c, Type dstType) {
+        if (c instanceof ConstDouble(double d)) {
+            return switch (op) {
+                case UNARY_MINUS -> new ConstDouble(-d);
+                case NOT -> constant(dstType, d == 0 ? 1 : 0);
+                default -> null;
+            };
+        }
+        long v = bits(c);
+        return switch (op) {
+            case UNARY_MINUS -> constant(c.type(), -v);
+            case BITWISE_NOT -> constant(c.type(), ~v);
+            case NOT -> constant(dstType, v == 0 ? 1 : 0);
+            default -> null;
+        };
+    }
+
+    private static Constant binary(BinaryOperator op, Constant c1, Constant c2, Type dstType) {
+        if (c1 instanceof ConstDouble(double x) && c2 instanceof ConstDouble(double y)) {
+            return switch (op) {
+                case ArithmeticOperator.ADD -> new ConstDouble(x + y);
+                case ArithmeticOperator.SUB -> new ConstDouble(x - y);
+                case ArithmeticOperator.IMUL -> new ConstDouble(x * y);
+                case ArithmeticOperator.DIVIDE -> new ConstDouble(x / y);
+                // every comparison with a NaN is false but !=
+                case CmpOperator cmp -> constant(dstType, x != x || y != y
+                        ? cmp == CmpOperator.NOT_EQUALS ? 1 : 0
+                        : holds(cmp, x < y ? -1 : x > y ? 1 : 0));
+                default -> null;
+            };
+        }
+        Type t = c1.type();
+        long x = bits(c1);
+        long y = bits(c2);
+        boolean wide = t.size() == 8;
+        return switch (op) {
+            case ArithmeticOperator.ADD -> constant(t, x + y);
+            case ArithmeticOperator.SUB -> constant(t, x - y);
+            case ArithmeticOperator.IMUL -> constant(t, x * y);
+            case ArithmeticOperator.DIVIDE, ArithmeticOperator.REMAINDER -> {
+                boolean divide = op == ArithmeticOperator.DIVIDE;
+                // zero divisors, and the quotient that overflows, trap
+                if (y == 0 || t.isSigned() && y == -1 && x == (wide ? Long.MIN_VALUE : Integer.MIN_VALUE)) {
+                    yield null;
+                }
+                if (t.isSigned()) yield constant(t, divide ? x / y : x % y);
+                yield constant(t, divide ? Long.divideUnsigned(x, y) : Long.remainderUnsigned(x, y));
+            }
+            case CmpOperator cmp -> {
+                int c = t.isSigned() ? Long.compare(x, y) : Long.compareUnsigned(x, y);
+                yield constant(dstType, holds(cmp, c));
+            }
+            default -> null;
+        };
+    }
+
+    // 1 if cmp holds between two values that compare as c, otherwise 0
+    private static int holds(CmpOperator cmp, int c) {
+        boolean holds = switch (cmp) {
+            case EQUALS -> c == 0;
+            case NOT_EQUALS -> c != 0;
+            case LESS_THAN -> c < 0;
+            case LESS_THAN_OR_EQUAL -> c <= 0;
+            case GREATER_THAN -> c > 0;
+            case GREATER_THAN_OR_EQUAL -> c >= 0;
+        };
+        return holds ? 1 : 0;
+    }
+}
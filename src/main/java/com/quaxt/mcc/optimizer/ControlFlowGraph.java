@@ -0,0 +1,142 @@
+package com.quaxt.mcc.optimizer;
+
+import com.quaxt.mcc.tacky.InstructionIr;
+import com.quaxt.mcc.tacky.Jump;
+import com.quaxt.mcc.tacky.JumpIfNotZero;
+import com.quaxt.mcc.tacky.JumpIfZero;
+import com.quaxt.mcc.tacky.LabelIr;
+import com.quaxt.mcc.tacky.ReturnInstructionIr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The basic blocks of a function's TACKY and the edges between them. Block
+ * b is instructions start(b) to end(b) - 1; a block starts at a label and
+ * after a jump or return. Block 0 is entered from outside the function, and
+ * a block leaves it if it ends in a return or falls off the end of the
+ * list. The graph is built in time linear in the number of instructions
+ * and is not updated when the instructions change; a pass that changes
+ * control flow builds a new one.
+ */
+final class ControlFlowGraph {
+    private final List<InstructionIr> instructions;
+    private final int[] blockStarts;
+    private final int blockCount;
+    private final int[][] successors;
+    private final int[][] predecessors;
+    private final boolean[] exits;
+
+    ControlFlowGraph(List<InstructionIr> instructions) {
+        this.instructions = instructions;
+        int n = instructions.size();
+        int[] starts = new int[n + 1];
+        int count = 0;
+        HashMap<Integer, Integer> labelBlocks = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            InstructionIr in = instructions.get(i);
+            if (i == 0 || in instanceof LabelIr || endsBlock(instructions.get(i - 1))) {
+                starts[count++] = i;
+            }
+            if (in instanceof LabelIr(int label)) labelBlocks.put(label, count - 1);
+        }
+        starts[count] = n;
+        blockStarts = Arrays.copyOf(starts, count + 1);
+        blockCount = count;
+
+        successors = new int[count][];
+        exits = new boolean[count];
+        int[] predecessorCounts = new int[count];
+        for (int b = 0; b < count; b++) {
+            InstructionIr last = instructions.get(blockStarts[b + 1] - 1);
+            int next = b + 1 < count ? b + 1 : -1;
+            int[] s = switch (last) {
+                case Jump(int label) -> new int[]{labelBlocks.get(label)};
+                case JumpIfZero(_, int label) -> branch(labelBlocks.get(label), next);
+                case JumpIfNotZero(_, int label) -> branch(labelBlocks.get(label), next);
+                case ReturnInstructionIr _ -> new int[0];
+                default -> next < 0 ? new int[0] : new int[]{next};
+            };
+            exits[b] = last instanceof ReturnInstructionIr || s.length == 0;
+            successors[b] = s;
+            for (int t : s) predecessorCounts[t]++;
+        }
+        predecessors = new int[count][];
+        for (int b = 0; b < count; b++) predecessors[b] = new int[predecessorCounts[b]];
+        for (int b = 0; b < count; b++) {
+            for (int t : successors[b]) predecessors[t][--predecessorCounts[t]] = b;
+        }
+    }
+
+    private static int[] branch(int target, int next) {
+        return next < 0 || next == target ? new int[]{target} : new int[]{target, next};
+    }
+
+    static boolean endsBlock(InstructionIr in) {
+        return in instanceof Jump || in instanceof JumpIfZero || in instanceof JumpIfNotZero
+                || in instanceof ReturnInstructionIr;
+    }
+
+    List<InstructionIr> instructions() {
+        return instructions;
+    }
+
+    int blockCount() {
+        return blockCount;
+    }
+
+    int start(int block) {
+        return blockStarts[block];
+    }
+
+    int end(int block) {
+        return blockStarts[block + 1];
+    }
+
+    int[] successors(int block) {
+        return successors[block];
+    }
+
+    int[] predecessors(int block) {
+        return predecessors[block];
+    }
+
+    /**
+     * Whether control can leave the function from the end of block.
+     */
+    boolean exits(int block) {
+        return exits[block];
+    }
+
+    /**
+     * The blocks reachable from block 0, each before its successors except
+     * where an edge closes a loop. Walked with an explicit stack, so a long
+     * chain of blocks cannot overflow the Java one.
+     */
+    int[] reversePostorder() {
+        int[] order = new int[blockCount];
+        int position = blockCount;
+        if (blockCount == 0) return order;
+        boolean[] visited = new boolean[blockCount];
+        int[] stack = new int[blockCount];
+        int[] nextEdge = new int[blockCount];
+        int depth = 0;
+        stack[depth++] = 0;
+        visited[0] = true;
+        while (depth > 0) {
+            int b = stack[depth - 1];
+            if (nextEdge[b] < successors[b].length) {
+                int s = successors[b][nextEdge[b]++];
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[depth++] = s;
+                }
+            } else {
+                depth--;
+                order[--position] = b;
+            }
+        }
+        return Arrays.copyOfRange(order, position, blockCount);
+    }
+}
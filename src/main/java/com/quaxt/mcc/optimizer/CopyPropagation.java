@@ -0,0 +1,254 @@
+package com.quaxt.mcc.optimizer;
+
+import com.quaxt.mcc.parser.Constant;
+import com.quaxt.mcc.tacky.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Replaces each use of a variable with the value last copied into it, when
+ * that Copy reaches the use along every path and neither side has been
+ * written since. The reaching copies are a forward intersection problem
+ * whose facts are the function's Copy instructions. A Copy between
+ * variables of different types, such as int to unsigned int, is not one,
+ * since the instruction using the value takes its type from the operand.
+ * Static variables can be changed by any function called, so a FunCall
+ * kills every copy to or from one. A Copy of a value that the variable
+ * already holds is removed.
+ * <p>
+ * When constants are being folded too, an instruction whose operands are
+ * replaced is folded straight away, and a constant it folds to is
+ * propagated like a copied one. Blocks are rewritten in reverse postorder,
+ * starting from what the blocks before them learnt that way, so a chain of
+ * constants through straight-line code is folded in one pass rather than
+ * one pass per link.
+ */
+final class CopyPropagation {
+    private final List<InstructionIr> instructions;
+    // the fact each instruction generates, or -1
+    private final int[] factAt;
+    private final ArrayList<Copy> facts = new ArrayList<>();
+    // for each variable id, the facts it is the source or destination of,
+    // and the ones it is the destination of
+    private final HashMap<Integer, SparseBitSet> mentions = new HashMap<>();
+    private final HashMap<Integer, SparseBitSet> copiesTo = new HashMap<>();
+    private final SparseBitSet staticFacts = new SparseBitSet();
+    private final boolean fold;
+
+    private CopyPropagation(List<InstructionIr> instructions, boolean fold) {
+        this.instructions = instructions;
+        this.fold = fold;
+        factAt = new int[instructions.size()];
+        for (int i = 0; i < instructions.size(); i++) {
+            factAt[i] = -1;
+            InstructionIr in = instructions.get(i);
+            Copy copy = null;
+            if (in instanceof Copy(ValIr val, VarIr dst)) {
+                ValIr src = switch (val) {
+                    case Constant c -> ConstantFolding.convert(c, dst.type());
+                    case VarIr v -> v.id() != dst.id() && v.type() == dst.type() ? v : null;
+                };
+                if (src != null) copy = new Copy(src, dst);
+            }
+            VarIr dst = Operands.destination(in);
+            // an instruction that folding could turn into a Copy gets a fact
+            // with no value, which is only given one if it does
+            if (copy == null && !(fold && dst != null)) continue;
+            int f = facts.size();
+            factAt[i] = f;
+            facts.add(copy);
+            copiesTo.computeIfAbsent(dst.id(), _ -> new SparseBitSet()).set(f);
+            mentions.computeIfAbsent(dst.id(), _ -> new SparseBitSet()).set(f);
+            if (dst.isStatic()) staticFacts.set(f);
+            if (copy != null && copy.val() instanceof VarIr v) {
+                mentions.computeIfAbsent(v.id(), _ -> new SparseBitSet()).set(f);
+                if (v.isStatic()) staticFacts.set(f);
+            }
+        }
+    }
+
+    /**
+     * Add instructions to out with the copies propagated, and return how
+     * many operands were replaced and copies removed. If fold, each
+     * instruction that has operands replaced is also folded, and a
+     * constant it folds to is propagated too.
+     */
+    static int propagate(List<InstructionIr> instructions, List<InstructionIr> out, boolean fold) {
+        return new CopyPropagation(instructions, fold).propagate(out);
+    }
+
+    private int propagate(List<InstructionIr> out) {
+        if (facts.isEmpty()) {
+            out.addAll(instructions);
+            return 0;
+        }
+        ControlFlowGraph cfg = new ControlFlowGraph(instructions);
+        int blockCount = cfg.blockCount();
+        SparseBitSet[] gen = new SparseBitSet[blockCount];
+        SparseBitSet[] kill = new SparseBitSet[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            SparseBitSet g = new SparseBitSet();
+            SparseBitSet k = new SparseBitSet();
+            for (int i = cfg.start(b); i < cfg.end(b); i++) {
+                InstructionIr in = instructions.get(i);
+                if (in instanceof FunCall) {
+                    g.andNot(staticFacts);
+                    k.or(staticFacts);
+                }
+                SparseBitSet killed = killedBy(in);
+                if (killed != null) {
+                    g.andNot(killed);
+                    k.or(killed);
+                }
+                if (factAt[i] >= 0 && facts.get(factAt[i]) != null) g.set(factAt[i]);
+            }
+            gen[b] = g;
+            kill[b] = k;
+        }
+        DataFlow.Solution solution = DataFlow.solve(cfg, DataFlow.Direction.FORWARD,
+                DataFlow.Meet.INTERSECTION, gen, kill, new SparseBitSet());
+
+        // blocks are rewritten in reverse postorder, each starting from what
+        // reaches it from the blocks already rewritten, which may know more
+        // than the solution did, and from the solution for the others
+        InstructionIr[] rewritten = instructions.toArray(new InstructionIr[0]);
+        SparseBitSet[] outputs = solution.out().clone();
+        int changed = 0;
+        for (int b : cfg.reversePostorder()) {
+            SparseBitSet reaching = b == 0 ? new SparseBitSet() : null;
+            if (b != 0) {
+                for (int p : cfg.predecessors(b)) {
+                    if (reaching == null) reaching = outputs[p].copy();
+                    else reaching.and(outputs[p]);
+                }
+            }
+            for (int i = cfg.start(b); i < cfg.end(b); i++) {
+                InstructionIr in = instructions.get(i);
+                InstructionIr replaced = replaceUses(in, reaching);
+                if (replaced != in) {
+                    changed++;
+                    if (fold) replaced = ConstantFolding.fold(replaced);
+                }
+                if (replaced instanceof Copy(VarIr src, VarIr dst) && holds(reaching, src, dst)) replaced = null;
+                if (replaced == null) changed++;
+                rewritten[i] = replaced;
+
+                if (in instanceof FunCall) reaching.andNot(staticFacts);
+                SparseBitSet killed = killedBy(in);
+                if (killed != null) reaching.andNot(killed);
+                int f = factAt[i];
+                if (f >= 0 && replaced instanceof Copy(Constant c, VarIr dst)) {
+                    // a constant holds wherever the fact reaches, whatever
+                    // the instruction copied from
+                    Constant value = ConstantFolding.convert(c, dst.type());
+                    if (value != null) facts.set(f, new Copy(value, dst));
+                }
+                if (f >= 0 && facts.get(f) != null) reaching.set(f);
+            }
+            outputs[b] = reaching;
+        }
+        for (InstructionIr in : rewritten) {
+            if (in != null) out.add(in);
+        }
+        return changed;
+    }
+
+    // the facts that writing in's destination kills, or null if none
+    private SparseBitSet killedBy(InstructionIr in) {
+        VarIr dst = Operands.destination(in);
+        return dst == null ? null : mentions.get(dst.id());
+    }
+
+    // whether dst already holds src
+    private boolean holds(SparseBitSet reaching, VarIr src, VarIr dst) {
+        return src.id() == dst.id() || value(dst, reaching) instanceof VarIr v && v.id() == src.id()
+                || value(src, reaching) instanceof VarIr v && v.id() == dst.id();
+    }
+
+    // the value var was last copied from, if that copy reaches, or null;
+    // two copies to the same variable never both reach
+    private ValIr value(VarIr var, SparseBitSet reaching) {
+        SparseBitSet copies = copiesTo.get(var.id());
+        int f = copies == null ? -1 : copies.firstCommon(reaching);
+        return f < 0 ? null : facts.get(f).val();
+    }
+
+    // the value v is known to hold, or v
+    private ValIr replace(ValIr v, SparseBitSet reaching) {
+        ValIr value = v instanceof VarIr var ? value(var, reaching) : null;
+        return value == null ? v : value;
+    }
+
+    // in with the operands it reads replaced, or in itself if none are
+    private InstructionIr replaceUses(InstructionIr in, SparseBitSet reaching) {
+        return switch (in) {
+            case Copy(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new Copy(r, dst);
+            }
+            case BinaryIr(var op, ValIr v1, ValIr v2, VarIr dst) -> {
+                ValIr r1 = replace(v1, reaching);
+                ValIr r2 = replace(v2, reaching);
+                yield r1 == v1 && r2 == v2 ? in : new BinaryIr(op, r1, r2, dst);
+            }
+            case UnaryIr(var op, ValIr v, ValIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new UnaryIr(op, r, dst);
+            }
+            case SignExtendIr(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new SignExtendIr(r, dst);
+            }
+            case ZeroExtendIr(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new ZeroExtendIr(r, dst);
+            }
+            case TruncateIr(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new TruncateIr(r, dst);
+            }
+            case IntToDouble(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new IntToDouble(r, dst);
+            }
+            case UIntToDouble(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new UIntToDouble(r, dst);
+            }
+            case DoubleToInt(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new DoubleToInt(r, dst);
+            }
+            case DoubleToUInt(ValIr v, VarIr dst) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new DoubleToUInt(r, dst);
+            }
+            case FunCall(int id, ArrayList<ValIr> args, ValIr dst) -> {
+                ArrayList<ValIr> replaced = null;
+                for (int i = 0; i < args.size(); i++) {
+                    ValIr r = replace(args.get(i), reaching);
+                    if (r != args.get(i)) {
+                        if (replaced == null) replaced = new ArrayList<>(args);
+                        replaced.set(i, r);
+                    }
+                }
+                yield replaced == null ? in : new FunCall(id, replaced, dst);
+            }
+            case JumpIfZero(ValIr v, int label) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new JumpIfZero(r, label);
+            }
+            case JumpIfNotZero(ValIr v, int label) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new JumpIfNotZero(r, label);
+            }
+            case ReturnInstructionIr(ValIr v) -> {
+                ValIr r = replace(v, reaching);
+                yield r == v ? in : new ReturnInstructionIr(r);
+            }
+            case Jump _, LabelIr _ -> in;
+        };
+    }
+}
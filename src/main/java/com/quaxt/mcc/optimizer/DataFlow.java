@@ -0,0 +1,104 @@
+package com.quaxt.mcc.optimizer;
+
+import java.util.PriorityQueue;
+
+/**
+ * A worklist solver for gen/kill dataflow problems over the blocks of a
+ * {@link ControlFlowGraph}, whose facts are numbered from 0 and kept in
+ * {@link SparseBitSet}s. A forward problem flows from the predecessors of a
+ * block into it; a backward problem from its successors. The value where
+ * control enters the function (forward) or leaves it (backward) is
+ * boundary, and a block with nothing flowing into it, such as an
+ * unreachable one in a forward intersection problem, starts from every
+ * fact.
+ * <p>
+ * Blocks are visited in reverse postorder for a forward problem and in
+ * postorder for a backward one, and after the first visit only a block
+ * whose inputs have changed is visited again. The next block visited is
+ * always the earliest in that order that is waiting, so a loop settles
+ * before the code after it is visited again, and most blocks are visited
+ * only once or twice beyond the number of loops they are nested in. A
+ * visit takes time linear in the sizes of the sets it combines.
+ */
+final class DataFlow {
+    enum Direction {FORWARD, BACKWARD}
+
+    enum Meet {UNION, INTERSECTION}
+
+    /**
+     * The facts at the start and at the end of each block.
+     */
+    record Solution(SparseBitSet[] in, SparseBitSet[] out) {
+    }
+
+    private DataFlow() {
+    }
+
+    static Solution solve(ControlFlowGraph cfg, Direction direction, Meet meet,
+                          SparseBitSet[] gen, SparseBitSet[] kill, SparseBitSet boundary) {
+        int blockCount = cfg.blockCount();
+        boolean forward = direction == Direction.FORWARD;
+        boolean intersect = meet == Meet.INTERSECTION;
+        // inputs are the meets of the neighbours, outputs what the block
+        // makes of them
+        SparseBitSet[] inputs = new SparseBitSet[blockCount];
+        SparseBitSet[] outputs = new SparseBitSet[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            inputs[b] = intersect ? SparseBitSet.all() : new SparseBitSet();
+            outputs[b] = intersect ? SparseBitSet.all() : gen[b].copy();
+        }
+
+        // blocks in the order they are visited in, and a queue of positions
+        // in that order, each on it at most once, that always gives the
+        // earliest next
+        int[] blocks = new int[blockCount];
+        int[] positions = new int[blockCount];
+        boolean[] queued = new boolean[blockCount];
+        PriorityQueue<Integer> queue = new PriorityQueue<>();
+        int[] order = cfg.reversePostorder();
+        int count = 0;
+        for (int i = 0; i < order.length; i++) {
+            blocks[count++] = order[forward ? i : order.length - 1 - i];
+        }
+        // unreachable blocks, which need not reach an exit either
+        boolean[] ordered = new boolean[blockCount];
+        for (int b : order) ordered[b] = true;
+        for (int b = 0; b < blockCount; b++) {
+            if (!ordered[b]) blocks[count++] = b;
+        }
+        for (int i = 0; i < blockCount; i++) {
+            positions[blocks[i]] = i;
+            queued[blocks[i]] = true;
+            queue.add(i);
+        }
+
+        while (!queue.isEmpty()) {
+            int b = blocks[queue.poll()];
+            queued[b] = false;
+
+            SparseBitSet input = null;
+            if (forward ? b == 0 : cfg.exits(b)) input = boundary.copy();
+            for (int n : forward ? cfg.predecessors(b) : cfg.successors(b)) {
+                if (input == null) input = outputs[n].copy();
+                else if (intersect) input.and(outputs[n]);
+                else input.or(outputs[n]);
+            }
+            if (input == null) input = intersect ? SparseBitSet.all() : new SparseBitSet();
+            inputs[b] = input;
+
+            SparseBitSet output = input.copy();
+            output.andNot(kill[b]);
+            output.or(gen[b]);
+            if (!output.equals(outputs[b])) {
+                outputs[b] = output;
+                for (int n : forward ? cfg.successors(b) : cfg.predecessors(b)) {
+                    if (!queued[n]) {
+                        queued[n] = true;
+                        queue.add(positions[n]);
+                    }
+                }
+            }
+        }
+        return forward ? new Solution(inputs, outputs) : new Solution(outputs, inputs);
+    }
+}
@@ -0,0 +1,83 @@
+package com.quaxt.mcc.optimizer;
+
+import com.quaxt.mcc.tacky.*;
+
+import java.util.List;
+
+/**
+ * Removes the instructions whose only effect is to write a variable that
+ * is dead there, that is, not read again before it is next written. Which
+ * variables are live at the end of each block is a backward union problem
+ * whose facts are the variables, numbered by their ids. Static variables
+ * outlive the function and may be read by any function it calls, so they
+ * are live where it returns and before every FunCall. A FunCall is never
+ * removed, since the function called may do more than return a value.
+ */
+final class DeadStores {
+    private DeadStores() {
+    }
+
+    /**
+     * Add instructions to out without the dead stores, and return how many
+     * were removed.
+     */
+    static int eliminate(List<InstructionIr> instructions, List<InstructionIr> out) {
+        SparseBitSet statics = new SparseBitSet();
+        for (InstructionIr in : instructions) {
+            if (Operands.destination(in) instanceof VarIr v && v.isStatic()) statics.set(v.id());
+            for (ValIr v : Operands.sources(in)) {
+                if (v instanceof VarIr var && var.isStatic()) statics.set(var.id());
+            }
+        }
+
+        ControlFlowGraph cfg = new ControlFlowGraph(instructions);
+        int blockCount = cfg.blockCount();
+        SparseBitSet[] gen = new SparseBitSet[blockCount];
+        SparseBitSet[] kill = new SparseBitSet[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            SparseBitSet g = new SparseBitSet();
+            SparseBitSet k = new SparseBitSet();
+            for (int i = cfg.end(b) - 1; i >= cfg.start(b); i--) {
+                InstructionIr in = instructions.get(i);
+                VarIr dst = Operands.destination(in);
+                if (dst != null) {
+                    g.clear(dst.id());
+                    k.set(dst.id());
+                }
+                addUses(in, g, statics);
+            }
+            gen[b] = g;
+            kill[b] = k;
+        }
+        DataFlow.Solution solution = DataFlow.solve(cfg, DataFlow.Direction.BACKWARD,
+                DataFlow.Meet.UNION, gen, kill, statics);
+
+        InstructionIr[] kept = new InstructionIr[instructions.size()];
+        int removed = 0;
+        for (int b = 0; b < blockCount; b++) {
+            SparseBitSet live = solution.out()[b].copy();
+            for (int i = cfg.end(b) - 1; i >= cfg.start(b); i--) {
+                InstructionIr in = instructions.get(i);
+                VarIr dst = Operands.destination(in);
+                if (dst != null && !(in instanceof FunCall) && !live.get(dst.id())) {
+                    removed++;
+                    continue;
+                }
+                kept[i] = in;
+                if (dst != null) live.clear(dst.id());
+                addUses(in, live, statics);
+            }
+        }
+        for (InstructionIr in : kept) {
+            if (in != null) out.add(in);
+        }
+        return removed;
+    }
+
+    private static void addUses(InstructionIr in, SparseBitSet live, SparseBitSet statics) {
+        for (ValIr v : Operands.sources(in)) {
+            if (v instanceof VarIr var) live.set(var.id());
+        }
+        if (in instanceof FunCall) live.or(statics);
+    }
+}
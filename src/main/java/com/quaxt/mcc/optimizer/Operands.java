@@ -0,0 +1,57 @@
+package com.quaxt.mcc.optimizer;
+
+import com.quaxt.mcc.tacky.*;
+
+import java.util.List;
+
+/**
+ * What TACKY instructions read and write.
+ */
+final class Operands {
+    private Operands() {
+    }
+
+    /**
+     * The variable in writes, or null.
+     */
+    static VarIr destination(InstructionIr in) {
+        return switch (in) {
+            case Copy(_, VarIr dst) -> dst;
+            case BinaryIr(_, _, _, VarIr dst) -> dst;
+            case UnaryIr(_, _, ValIr dst) -> dst instanceof VarIr v ? v : null;
+            case SignExtendIr(_, VarIr dst) -> dst;
+            case ZeroExtendIr(_, VarIr dst) -> dst;
+            case TruncateIr(_, VarIr dst) -> dst;
+            case IntToDouble(_, VarIr dst) -> dst;
+            case UIntToDouble(_, VarIr dst) -> dst;
+            case DoubleToInt(_, VarIr dst) -> dst;
+            case DoubleToUInt(_, VarIr dst) -> dst;
+            case FunCall(_, _, ValIr dst) -> dst instanceof VarIr v ? v : null;
+            case Jump _, JumpIfZero _, JumpIfNotZero _, LabelIr _, ReturnInstructionIr _ -> null;
+        };
+    }
+
+    /**
+     * The values in reads. A FunCall's are its arguments; the static
+     * variables the function called may read are left to the caller.
+     */
+    static List<ValIr> sources(InstructionIr in) {
+        return switch (in) {
+            case Copy(ValIr v, _) -> List.of(v);
+            case BinaryIr(_, ValIr v1, ValIr v2, _) -> List.of(v1, v2);
+            case UnaryIr(_, ValIr v, _) -> List.of(v);
+            case SignExtendIr(ValIr v, _) -> List.of(v);
+            case ZeroExtendIr(ValIr v, _) -> List.of(v);
+            case TruncateIr(ValIr v, _) -> List.of(v);
+            case IntToDouble(ValIr v, _) -> List.of(v);
+            case UIntToDouble(ValIr v, _) -> List.of(v);
+            case DoubleToInt(ValIr v, _) -> List.of(v);
+            case DoubleToUInt(ValIr v, _) -> List.of(v);
+            case FunCall(_, List<ValIr> args, _) -> args;
+            case JumpIfZero(ValIr v, _) -> List.of(v);
+            case JumpIfNotZero(ValIr v, _) -> List.of(v);
+            case ReturnInstructionIr(ValIr v) -> v == null ? List.of() : List.of(v);
+            case Jump _, LabelIr _ -> List.of();
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package com.quaxt.mcc.optimizer;
+
+import com.quaxt.mcc.CompilationContext;
+import com.quaxt.mcc.Optimization;
+import com.quaxt.mcc.tacky.FunctionIr;
+import com.quaxt.mcc.tacky.InstructionIr;
+import com.quaxt.mcc.tacky.ProgramIr;
+import com.quaxt.mcc.tacky.TopLevel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the optimisations the options ask for on each function's TACKY,
+ * over and over until none of them changes anything, since each can make
+ * work for the others.
+ */
+public final class Optimizer {
+    private Optimizer() {
+    }
+
+    public static ProgramIr optimize(CompilationContext ctx, ProgramIr program) {
+        Set<Optimization> optimizations = ctx.options().optimizations();
+        if (optimizations.isEmpty()) return program;
+        List<TopLevel> topLevels = program.topLevels();
+        for (int i = 0; i < topLevels.size(); i++) {
+            if (topLevels.get(i) instanceof FunctionIr f) {
+                topLevels.set(i, optimizeFunction(ctx, f, optimizations));
+            }
+        }
+        return program;
+    }
+
+    private static FunctionIr optimizeFunction(CompilationContext ctx, FunctionIr f,
+                                               Set<Optimization> optimizations) {
+        List<InstructionIr> instructions = f.instructions();
+        List<InstructionIr> out = new ArrayList<>(instructions.size());
+        long[] counts = new long[Optimization.values().length];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Optimization optimization : optimizations) {
+                int n = switch (optimization) {
+                    case FOLD_CONSTANTS -> ConstantFolding.fold(instructions, out);
+                    case ELIMINATE_UNREACHABLE_CODE -> UnreachableCode.eliminate(instructions, out);
+                    case PROPAGATE_COPIES -> CopyPropagation.propagate(instructions, out,
+                            optimizations.contains(Optimization.FOLD_CONSTANTS));
+                    case ELIMINATE_DEAD_STORES -> DeadStores.eliminate(instructions, out);
+                };
+                if (n != 0) {
+                    counts[optimization.ordinal()] += n;
+                    changed = true;
+                    List<InstructionIr> t = instructions;
+                    instructions = out;
+                    out = t;
+                }
+                out.clear();
+            }
+        }
+        for (Optimization optimization : optimizations) {
+            long n = counts[optimization.ordinal()];
+            switch (optimization) {
+                case FOLD_CONSTANTS -> ctx.report(f.name(), "constant folding", n, "instructions folded");
+                case ELIMINATE_UNREACHABLE_CODE ->
+                        ctx.report(f.name(), "unreachable code", n, "instructions removed or jumps threaded");
+                case PROPAGATE_COPIES ->
+                        ctx.report(f.name(), "copy propagation", n, "operands replaced or copies removed");
+                case ELIMINATE_DEAD_STORES -> ctx.report(f.name(), "dead stores", n, "instructions removed");
+            }
+        }
+        return new FunctionIr(f.name(), f.global(), f.type(), instructions);
+    }
+}
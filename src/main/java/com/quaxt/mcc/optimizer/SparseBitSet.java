@@ -0,0 +1,217 @@
+package com.quaxt.mcc.optimizer;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative ints kept as the nonzero 64-bit words of a bit
+ * vector, with their word indexes in ascending order, or the complement of
+ * such a set. A dataflow value then takes space in proportion to its
+ * nonzero words rather than to the number of facts in the function, and
+ * the set of every fact, which an intersection problem starts from, is the
+ * complement of the empty set. Union, intersection and difference merge
+ * the two word lists, so they take time linear in their lengths.
+ */
+final class SparseBitSet {
+    private static final int[] NO_INDEXES = new int[0];
+    private static final long[] NO_WORDS = new long[0];
+    private static final int OR = 0;
+    private static final int AND = 1;
+    private static final int AND_NOT = 2;
+
+    private int[] indexes = NO_INDEXES;
+    private long[] words = NO_WORDS;
+    private int size;
+    private boolean complement;
+
+    SparseBitSet() {
+    }
+
+    private SparseBitSet(int[] indexes, long[] words, int size, boolean complement) {
+        this.indexes = indexes;
+        this.words = words;
+        this.size = size;
+        this.complement = complement;
+    }
+
+    /**
+     * The set of every non-negative int.
+     */
+    static SparseBitSet all() {
+        return new SparseBitSet(NO_INDEXES, NO_WORDS, 0, true);
+    }
+
+    SparseBitSet copy() {
+        return new SparseBitSet(Arrays.copyOf(indexes, size), Arrays.copyOf(words, size), size, complement);
+    }
+
+    boolean get(int bit) {
+        int i = Arrays.binarySearch(indexes, 0, size, bit >>> 6);
+        boolean inWords = i >= 0 && (words[i] & 1L << bit) != 0;
+        return inWords != complement;
+    }
+
+    void set(int bit) {
+        if (complement) clearWordBit(bit);
+        else setWordBit(bit);
+    }
+
+    void clear(int bit) {
+        if (complement) setWordBit(bit);
+        else clearWordBit(bit);
+    }
+
+    boolean isEmpty() {
+        return size == 0 && !complement;
+    }
+
+    /**
+     * The first member that is at least from, or -1 if there is none.
+     */
+    int nextSetBit(int from) {
+        if (complement) {
+            while (!get(from)) from++;
+            return from;
+        }
+        int i = Arrays.binarySearch(indexes, 0, size, from >>> 6);
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            long w = words[i] & -1L << from;
+            if (w != 0) return (indexes[i] << 6) + Long.numberOfTrailingZeros(w);
+            i++;
+        }
+        return i < size ? (indexes[i] << 6) + Long.numberOfTrailingZeros(words[i]) : -1;
+    }
+
+    /**
+     * The smallest member of both this and o, or -1 if there is none. Takes
+     * time in proportion to the smaller set's words, times the log of the
+     * larger's.
+     */
+    int firstCommon(SparseBitSet o) {
+        if (complement || o.complement) {
+            SparseBitSet common = copy();
+            common.and(o);
+            return common.nextSetBit(0);
+        }
+        SparseBitSet a = size <= o.size ? this : o;
+        SparseBitSet b = a == this ? o : this;
+        for (int i = 0; i < a.size; i++) {
+            int j = Arrays.binarySearch(b.indexes, 0, b.size, a.indexes[i]);
+            if (j >= 0) {
+                long w = a.words[i] & b.words[j];
+                if (w != 0) return (a.indexes[i] << 6) + Long.numberOfTrailingZeros(w);
+            }
+        }
+        return -1;
+    }
+
+    void or(SparseBitSet o) {
+        if (!complement && !o.complement) merge(this, o, OR, false);
+        else if (!complement) merge(o, this, AND_NOT, true);
+        else if (!o.complement) merge(this, o, AND_NOT, true);
+        else merge(this, o, AND, true);
+    }
+
+    void and(SparseBitSet o) {
+        if (!complement && !o.complement) merge(this, o, AND, false);
+        else if (!complement) merge(this, o, AND_NOT, false);
+        else if (!o.complement) merge(o, this, AND_NOT, false);
+        else merge(this, o, OR, true);
+    }
+
+    /**
+     * Remove the members of o.
+     */
+    void andNot(SparseBitSet o) {
+        if (!complement && !o.complement) merge(this, o, AND_NOT, false);
+        else if (!complement) merge(this, o, AND, false);
+        else if (!o.complement) merge(this, o, OR, true);
+        else merge(o, this, AND_NOT, false);
+    }
+
+    // set this to the words of a op b, complemented if complement
+    private void merge(SparseBitSet a, SparseBitSet b, int op, boolean complement) {
+        int capacity = op == OR ? a.size + b.size : a.size;
+        int[] newIndexes = new int[capacity];
+        long[] newWords = new long[capacity];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size || op == OR && j < b.size) {
+            int ai = i < a.size ? a.indexes[i] : Integer.MAX_VALUE;
+            int bi = j < b.size ? b.indexes[j] : Integer.MAX_VALUE;
+            int index;
+            long w;
+            if (ai < bi) {
+                index = ai;
+                w = op == AND ? 0 : a.words[i];
+                i++;
+            } else if (bi < ai) {
+                if (op != OR) {
+                    j++;
+                    continue;
+                }
+                index = bi;
+                w = b.words[j++];
+            } else {
+                index = ai;
+                long x = a.words[i++];
+                long y = b.words[j++];
+                w = op == OR ? x | y : op == AND ? x & y : x & ~y;
+            }
+            if (w != 0) {
+                newIndexes[n] = index;
+                newWords[n++] = w;
+            }
+        }
+        indexes = newIndexes;
+        words = newWords;
+        size = n;
+        this.complement = complement;
+    }
+
+    private void setWordBit(int bit) {
+        int i = Arrays.binarySearch(indexes, 0, size, bit >>> 6);
+        if (i >= 0) {
+            words[i] |= 1L << bit;
+            return;
+        }
+        i = -i - 1;
+        if (size == indexes.length) {
+            int capacity = Math.max(4, size * 2);
+            indexes = Arrays.copyOf(indexes, capacity);
+            words = Arrays.copyOf(words, capacity);
+        }
+        System.arraycopy(indexes, i, indexes, i + 1, size - i);
+        System.arraycopy(words, i, words, i + 1, size - i);
+        indexes[i] = bit >>> 6;
+        words[i] = 1L << bit;
+        size++;
+    }
+
+    private void clearWordBit(int bit) {
+        int i = Arrays.binarySearch(indexes, 0, size, bit >>> 6);
+        if (i < 0) return;
+        words[i] &= ~(1L << bit);
+        if (words[i] == 0) {
+            System.arraycopy(indexes, i + 1, indexes, i, size - i - 1);
+            System.arraycopy(words, i + 1, words, i, size - i - 1);
+            size--;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SparseBitSet s && complement == s.complement
+                && Arrays.equals(indexes, 0, size, s.indexes, 0, s.size)
+                && Arrays.equals(words, 0, size, s.words, 0, s.size);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = complement ? 1 : 0;
+        for (int i = 0; i < size; i++) h = 31 * h + indexes[i] * 17 + Long.hashCode(words[i]);
+        return h;
+    }
+}
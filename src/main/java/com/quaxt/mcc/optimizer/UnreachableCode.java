@@ -0,0 +1,160 @@
+package com.quaxt.mcc.optimizer;
+
+import com.quaxt.mcc.tacky.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Simplifies a function's control flow. A jump to a label that is only
+ * followed by another jump goes straight to that jump's target; blocks that
+ * cannot be reached from the start of the function are dropped; a block
+ * whose only way in is a jump from another block, and which does not fall
+ * through, is moved to just after that block; a conditional jump over a
+ * jump becomes the opposite conditional jump; and then jumps to the
+ * instruction that follows them anyway, and labels nothing jumps to, are
+ * removed, which joins the straight-line blocks they separated.
+ */
+final class UnreachableCode {
+    private UnreachableCode() {
+    }
+
+    /**
+     * Add the simplified instructions to out, and return how many
+     * instructions were removed or had their jumps redirected.
+     */
+    static int eliminate(List<InstructionIr> instructions, List<InstructionIr> out) {
+        List<InstructionIr> threaded = new ArrayList<>(instructions.size());
+        int changed = threadJumps(instructions, threaded);
+
+        ControlFlowGraph cfg = new ControlFlowGraph(threaded);
+        int blockCount = cfg.blockCount();
+        boolean[] reachable = new boolean[blockCount];
+        for (int b : cfg.reversePostorder()) reachable[b] = true;
+
+        // follower[a] is the block moved to just after a, in place of the
+        // jump that ends a, or -1
+        int[] follower = new int[blockCount];
+        boolean[] moved = new boolean[blockCount];
+        for (int a = 0; a < blockCount; a++) {
+            follower[a] = -1;
+            if (!reachable[a] || !(threaded.get(cfg.end(a) - 1) instanceof Jump)) continue;
+            int b = cfg.successors(a)[0];
+            InstructionIr last = threaded.get(cfg.end(b) - 1);
+            // a block ending in a conditional jump falls through when the
+            // condition fails, so it has to stay where it is
+            if (b != 0 && b != a && cfg.predecessors(b).length == 1
+                    && (last instanceof Jump || last instanceof ReturnInstructionIr)) {
+                follower[a] = b;
+                moved[b] = true;
+            }
+        }
+
+        List<InstructionIr> laidOut = new ArrayList<>(threaded.size());
+        for (int b = 0; b < blockCount; b++) {
+            if (!reachable[b] || moved[b]) continue;
+            for (int block = b; block >= 0; block = follower[block]) {
+                int end = follower[block] < 0 ? cfg.end(block) : cfg.end(block) - 1;
+                laidOut.addAll(threaded.subList(cfg.start(block), end));
+            }
+        }
+
+        List<InstructionIr> kept = new ArrayList<>(laidOut.size());
+        HashSet<Integer> targets = new HashSet<>();
+        for (int i = 0; i < laidOut.size(); i++) {
+            InstructionIr in = laidOut.get(i);
+            int target = target(in);
+            if (target >= 0) {
+                if (labelFollows(laidOut, i + 1, target)) continue;
+                // a conditional jump over a jump is the opposite conditional
+                // jump to where that one goes
+                if (!(in instanceof Jump) && i + 1 < laidOut.size()
+                        && laidOut.get(i + 1) instanceof Jump(int over) && labelFollows(laidOut, i + 2, target)) {
+                    kept.add(switch (in) {
+                        case JumpIfZero(ValIr v, _) -> new JumpIfNotZero(v, over);
+                        case JumpIfNotZero(ValIr v, _) -> new JumpIfZero(v, over);
+                        default -> throw new IllegalStateException("not a conditional jump: " + in);
+                    });
+                    targets.add(over);
+                    i++;
+                    continue;
+                }
+                targets.add(target);
+            }
+            kept.add(in);
+        }
+        for (InstructionIr in : kept) {
+            if (!(in instanceof LabelIr(int label)) || targets.contains(label)) out.add(in);
+        }
+        return changed + instructions.size() - out.size();
+    }
+
+    // the label in jumps to, or -1 if it isn't a jump
+    private static int target(InstructionIr in) {
+        return switch (in) {
+            case Jump(int label) -> label;
+            case JumpIfZero(_, int label) -> label;
+            case JumpIfNotZero(_, int label) -> label;
+            default -> -1;
+        };
+    }
+
+    // whether label is among the labels at from and straight after it
+    private static boolean labelFollows(List<InstructionIr> instructions, int from, int label) {
+        for (int i = from; i < instructions.size() && instructions.get(i) instanceof LabelIr(int l); i++) {
+            if (l == label) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add instructions to out with each jump to a label that is followed
+     * by a jump sent to where that jump goes, and return how many were.
+     */
+    private static int threadJumps(List<InstructionIr> instructions, List<InstructionIr> out) {
+        HashMap<Integer, Integer> jumps = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i) instanceof LabelIr(int label)) {
+                int j = i + 1;
+                while (j < instructions.size() && instructions.get(j) instanceof LabelIr) j++;
+                if (j < instructions.size() && instructions.get(j) instanceof Jump(int target)) {
+                    jumps.put(label, target);
+                }
+            }
+        }
+        if (jumps.isEmpty()) {
+            out.addAll(instructions);
+            return 0;
+        }
+        HashMap<Integer, Integer> finalTargets = new HashMap<>();
+        int threaded = 0;
+        for (InstructionIr in : instructions) {
+            int label = target(in);
+            int t = label < 0 ? label : finalTargets.computeIfAbsent(label, l -> finalTarget(jumps, l));
+            if (t != label) {
+                threaded++;
+                in = switch (in) {
+                    case JumpIfZero(ValIr v, _) -> new JumpIfZero(v, t);
+                    case JumpIfNotZero(ValIr v, _) -> new JumpIfNotZero(v, t);
+                    default -> new Jump(t);
+                };
+            }
+            out.add(in);
+        }
+        return threaded;
+    }
+
+    // where a jump to label ends up, or label itself if it is in a loop of
+    // jumps that goes nowhere
+    private static int finalTarget(HashMap<Integer, Integer> jumps, int label) {
+        int t = label;
+        for (int steps = 0; steps <= jumps.size(); steps++) {
+            Integer next = jumps.get(t);
+            if (next == null) return t;
+            t = next;
+        }
+        return label;
+    }
+}
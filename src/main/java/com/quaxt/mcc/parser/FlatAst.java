@@ -0,0 +1,435 @@
+package com.quaxt.mcc.parser;
+
+import com.quaxt.mcc.ArithmeticOperator;
+import com.quaxt.mcc.BinaryOperator;
+import com.quaxt.mcc.CmpOperator;
+import com.quaxt.mcc.UnaryOperator;
+import com.quaxt.mcc.semantic.FunType;
+import com.quaxt.mcc.semantic.Primitive;
+import com.quaxt.mcc.semantic.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A struct-of-arrays alternative to the record AST for large translation
+ * units. A node is an int index into parallel primitive arrays holding its
+ * kind, a type id, one int of kind specific data and the offset of its
+ * edges in a shared int pool:
+ * <pre>
+ * FUNCTION        data=name  type=fun type  edges: storage class, body, #params, param names...
+ * VAR_DECL        data=name  type=var type  edges: storage class, init
+ * BLOCK                                     edges: #items, items...
+ * RETURN                                    edges: exp
+ * IF                                        edges: condition, ifTrue, ifFalse
+ * WHILE           data=label                edges: condition, body
+ * DO_WHILE        data=label                edges: body, condition
+ * FOR             data=label                edges: init, condition, post, body
+ * BREAK, CONTINUE data=label
+ * ASSIGNMENT                 type           edges: left, right
+ * BINARY_OP       data=op    type           edges: left, right
+ * UNARY_OP        data=op    type           edges: exp
+ * CAST                       type           edges: exp
+ * CONDITIONAL                type           edges: condition, ifTrue, ifFalse
+ * CONST_*                    type           edges: low word, high word
+ * IDENTIFIER      data=name  type
+ * FUNCTION_CALL   data=name  type           edges: #args, args...
+ * </pre>
+ * Names and labels are ids in a table owned by the AST, missing children
+ * and storage classes are {@link #NONE}. The semantic passes rewrite names,
+ * types and labels in place instead of building a new tree, and can splice
+ * in new nodes (casts) by replacing an edge.
+ */
+public final class FlatAst {
+    public enum Kind {
+        FUNCTION, VAR_DECL, BLOCK, RETURN, IF, WHILE, DO_WHILE, FOR, BREAK,
+        CONTINUE, NULL_STATEMENT, ASSIGNMENT, BINARY_OP, UNARY_OP, CAST,
+        CONDITIONAL, CONST_INT, CONST_LONG, CONST_UINT, CONST_ULONG,
+        CONST_DOUBLE, IDENTIFIER, FUNCTION_CALL
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+    private static final ArithmeticOperator[] ARITHMETIC_OPERATORS = ArithmeticOperator.values();
+    private static final CmpOperator[] CMP_OPERATORS = CmpOperator.values();
+    private static final UnaryOperator[] UNARY_OPERATORS = UnaryOperator.values();
+    private static final StorageClass[] STORAGE_CLASSES = StorageClass.values();
+
+    public static final int NONE = -1;
+
+    private byte[] kinds = new byte[1024];
+    private int[] types = new int[1024];
+    private int[] data = new int[1024];
+    private int[] firstEdge = new int[1024];
+    private int size;
+    private int[] edges = new int[2048];
+    private int edgeCount;
+    private int[] topLevel = new int[64];
+    private int topLevelCount;
+
+    private final ArrayList<String> names = new ArrayList<>();
+    private final HashMap<String, Integer> nameIds = new HashMap<>();
+    // type id 0 is no type yet
+    private final ArrayList<Type> typeTable = new ArrayList<>(Collections.singletonList(null));
+    private final HashMap<Type, Integer> typeIds = new HashMap<>();
+
+    /**
+     * Add a node with room for edgeCount edges, which are initialized to
+     * NONE.
+     */
+    public int add(Kind kind, Type type, int data, int edgeCount) {
+        if (size == kinds.length) {
+            int n = Math.max(16, size + (size >> 1));
+            kinds = Arrays.copyOf(kinds, n);
+            types = Arrays.copyOf(types, n);
+            this.data = Arrays.copyOf(this.data, n);
+            firstEdge = Arrays.copyOf(firstEdge, n);
+        }
+        if (this.edgeCount + edgeCount > edges.length) {
+            edges = Arrays.copyOf(edges, Math.max(16 + edges.length + (edges.length >> 1), this.edgeCount + edgeCount));
+        }
+        int node = size++;
+        kinds[node] = (byte) kind.ordinal();
+        types[node] = typeId(type);
+        this.data[node] = data;
+        firstEdge[node] = this.edgeCount;
+        Arrays.fill(edges, this.edgeCount, this.edgeCount + edgeCount, NONE);
+        this.edgeCount += edgeCount;
+        return node;
+    }
+
+    public void addTopLevel(int node) {
+        if (topLevelCount == topLevel.length) topLevel = Arrays.copyOf(topLevel, Math.max(16, topLevelCount * 2));
+        topLevel[topLevelCount++] = node;
+    }
+
+    public int topLevelCount() {
+        return topLevelCount;
+    }
+
+    public int topLevel(int i) {
+        return topLevel[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Kind kind(int node) {
+        return KINDS[kinds[node]];
+    }
+
+    public Type type(int node) {
+        int id = types[node];
+        return id == 0 ? null : typeTable.get(id);
+    }
+
+    public void setType(int node, Type type) {
+        types[node] = typeId(type);
+    }
+
+    private int typeId(Type type) {
+        if (type == null) return 0;
+        Integer id = typeIds.get(type);
+        if (id == null) {
+            id = typeTable.size();
+            typeTable.add(type);
+            typeIds.put(type, id);
+        }
+        return id;
+    }
+
+    public int data(int node) {
+        return data[node];
+    }
+
+    public void setData(int node, int value) {
+        data[node] = value;
+    }
+
+    public int edge(int node, int i) {
+        return edges[firstEdge[node] + i];
+    }
+
+    public void setEdge(int node, int i, int value) {
+        edges[firstEdge[node] + i] = value;
+    }
+
+    public int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    public String name(int nameId) {
+        return names.get(nameId);
+    }
+
+    /**
+     * The name of a FUNCTION, VAR_DECL, IDENTIFIER or FUNCTION_CALL node, or
+     * the label of a loop, break or continue.
+     */
+    public String nameOf(int node) {
+        int id = data[node];
+        return id == NONE ? null : names.get(id);
+    }
+
+    public StorageClass storageClass(int node) {
+        int s = edge(node, 0);
+        return s == NONE ? null : STORAGE_CLASSES[s];
+    }
+
+    public BinaryOperator binaryOperator(int node) {
+        int op = data[node];
+        return op < ARITHMETIC_OPERATORS.length ? ARITHMETIC_OPERATORS[op] : CMP_OPERATORS[op - ARITHMETIC_OPERATORS.length];
+    }
+
+    public UnaryOperator unaryOperator(int node) {
+        return UNARY_OPERATORS[data[node]];
+    }
+
+    public long constValue(int node) {
+        return (long) edge(node, 1) << 32 | Integer.toUnsignedLong(edge(node, 0));
+    }
+
+    /**
+     * A CONST_* node as a record, for IrGen.
+     */
+    public Constant constant(int node) {
+        long v = constValue(node);
+        return switch (kind(node)) {
+            case CONST_INT -> new ConstInt((int) v);
+            case CONST_LONG -> new ConstLong(v);
+            case CONST_UINT -> new ConstUInt((int) v);
+            case CONST_ULONG -> new ConstULong(v);
+            case CONST_DOUBLE -> new ConstDouble(Double.longBitsToDouble(v));
+            default -> throw new IllegalArgumentException("not a constant: " + kind(node));
+        };
+    }
+
+    public int addConstant(Kind kind, Type type, long value) {
+        int node = add(kind, type, 0, 2);
+        setEdge(node, 0, (int) value);
+        setEdge(node, 1, (int) (value >>> 32));
+        return node;
+    }
+
+    public int addCast(Type type, int exp) {
+        int node = add(Kind.CAST, type, 0, 1);
+        setEdge(node, 0, exp);
+        return node;
+    }
+
+    public FunType funType(int function) {
+        return (FunType) type(function);
+    }
+
+    /**
+     * Approximate number of bytes held by the arrays of this AST, not
+     * counting the name table.
+     */
+    public long footprint() {
+        return kinds.length + 4L * (types.length + data.length + firstEdge.length + edges.length + topLevel.length);
+    }
+
+    public interface Visitor<R> {
+        R function(int node);
+
+        R varDecl(int node);
+
+        R block(int node);
+
+        R returnStatement(int node);
+
+        R ifStatement(int node);
+
+        R whileLoop(int node);
+
+        R doWhile(int node);
+
+        R forLoop(int node);
+
+        R breakStatement(int node);
+
+        R continueStatement(int node);
+
+        R nullStatement(int node);
+
+        R assignment(int node);
+
+        R binaryOp(int node);
+
+        R unaryOp(int node);
+
+        R cast(int node);
+
+        R conditional(int node);
+
+        R constant(int node);
+
+        R identifier(int node);
+
+        R functionCall(int node);
+    }
+
+    public <R> R accept(int node, Visitor<R> v) {
+        return switch (kind(node)) {
+            case FUNCTION -> v.function(node);
+            case VAR_DECL -> v.varDecl(node);
+            case BLOCK -> v.block(node);
+            case RETURN -> v.returnStatement(node);
+            case IF -> v.ifStatement(node);
+            case WHILE -> v.whileLoop(node);
+            case DO_WHILE -> v.doWhile(node);
+            case FOR -> v.forLoop(node);
+            case BREAK -> v.breakStatement(node);
+            case CONTINUE -> v.continueStatement(node);
+            case NULL_STATEMENT -> v.nullStatement(node);
+            case ASSIGNMENT -> v.assignment(node);
+            case BINARY_OP -> v.binaryOp(node);
+            case UNARY_OP -> v.unaryOp(node);
+            case CAST -> v.cast(node);
+            case CONDITIONAL -> v.conditional(node);
+            case CONST_INT, CONST_LONG, CONST_UINT, CONST_ULONG, CONST_DOUBLE -> v.constant(node);
+            case IDENTIFIER -> v.identifier(node);
+            case FUNCTION_CALL -> v.functionCall(node);
+        };
+    }
+
+    public boolean isExp(int node) {
+        return kind(node).ordinal() >= Kind.ASSIGNMENT.ordinal();
+    }
+
+    // ---------------------------------------------------------------- building
+
+    private int storageClassId(StorageClass storageClass) {
+        return storageClass == null ? NONE : storageClass.ordinal();
+    }
+
+    private int labelId(String label) {
+        return label == null ? NONE : nameId(label);
+    }
+
+    /**
+     * Add the nodes of a parsed declaration or statement and return the
+     * node of item, so that the parser can drop its records.
+     */
+    int flatten(BlockItem item) {
+        return switch (item) {
+            case null -> NONE;
+            case Function(String name, List<Identifier> parameters, Block body,
+                          FunType funType, StorageClass storageClass) -> {
+                int node = add(Kind.FUNCTION, funType, nameId(name), 3 + parameters.size());
+                setEdge(node, 0, storageClassId(storageClass));
+                setEdge(node, 1, flatten(body));
+                setEdge(node, 2, parameters.size());
+                for (int i = 0; i < parameters.size(); i++) {
+                    setEdge(node, 3 + i, nameId(parameters.get(i).name()));
+                }
+                yield node;
+            }
+            case VarDecl(String name, Exp init, Type varType, StorageClass storageClass) -> {
+                int node = add(Kind.VAR_DECL, varType, nameId(name), 2);
+                setEdge(node, 0, storageClassId(storageClass));
+                setEdge(node, 1, flatten(init));
+                yield node;
+            }
+            case Block(ArrayList<BlockItem> blockItems) -> {
+                int node = add(Kind.BLOCK, null, 0, 1 + blockItems.size());
+                setEdge(node, 0, blockItems.size());
+                for (int i = 0; i < blockItems.size(); i++) {
+                    setEdge(node, 1 + i, flatten(blockItems.get(i)));
+                }
+                yield node;
+            }
+            case Return(Exp exp) -> {
+                int node = add(Kind.RETURN, null, 0, 1);
+                setEdge(node, 0, flatten(exp));
+                yield node;
+            }
+            case If(Exp condition, Statement ifTrue, Statement ifFalse) -> {
+                int node = add(Kind.IF, null, 0, 3);
+                setEdge(node, 0, flatten(condition));
+                setEdge(node, 1, flatten(ifTrue));
+                setEdge(node, 2, flatten(ifFalse));
+                yield node;
+            }
+            case While(Exp condition, Statement body, String label) -> {
+                int node = add(Kind.WHILE, null, labelId(label), 2);
+                setEdge(node, 0, flatten(condition));
+                setEdge(node, 1, flatten(body));
+                yield node;
+            }
+            case DoWhile(Statement body, Exp condition, String label) -> {
+                int node = add(Kind.DO_WHILE, null, labelId(label), 2);
+                setEdge(node, 0, flatten(body));
+                setEdge(node, 1, flatten(condition));
+                yield node;
+            }
+            case For(ForInit init, Exp condition, Exp post, Statement body, String label) -> {
+                int node = add(Kind.FOR, null, labelId(label), 4);
+                setEdge(node, 0, switch (init) {
+                    case null -> NONE;
+                    case VarDecl d -> flatten(d);
+                    case Exp e -> flatten(e);
+                });
+                setEdge(node, 1, flatten(condition));
+                setEdge(node, 2, flatten(post));
+                setEdge(node, 3, flatten(body));
+                yield node;
+            }
+            case Break b -> add(Kind.BREAK, null, labelId(b.label), 0);
+            case Continue c -> add(Kind.CONTINUE, null, labelId(c.label), 0);
+            case NullStatement _ -> add(Kind.NULL_STATEMENT, null, 0, 0);
+            case Assignment(Exp left, Exp right, Type type) -> {
+                int node = add(Kind.ASSIGNMENT, type, 0, 2);
+                setEdge(node, 0, flatten(left));
+                setEdge(node, 1, flatten(right));
+                yield node;
+            }
+            case BinaryOp(BinaryOperator op, Exp left, Exp right, Type type) -> {
+                int opId = switch (op) {
+                    case ArithmeticOperator a -> a.ordinal();
+                    case CmpOperator c -> ARITHMETIC_OPERATORS.length + c.ordinal();
+                };
+                int node = add(Kind.BINARY_OP, type, opId, 2);
+                setEdge(node, 0, flatten(left));
+                setEdge(node, 1, flatten(right));
+                yield node;
+            }
+            case UnaryOp(UnaryOperator op, Exp exp, Type type) -> {
+                int node = add(Kind.UNARY_OP, type, op.ordinal(), 1);
+                setEdge(node, 0, flatten(exp));
+                yield node;
+            }
+            case Cast(Type type, Exp exp) -> addCast(type, flatten(exp));
+            case Conditional(Exp condition, Exp ifTrue, Exp ifFalse, Type type) -> {
+                int node = add(Kind.CONDITIONAL, type, 0, 3);
+                setEdge(node, 0, flatten(condition));
+                setEdge(node, 1, flatten(ifTrue));
+                setEdge(node, 2, flatten(ifFalse));
+                yield node;
+            }
+            case ConstInt(int i) -> addConstant(Kind.CONST_INT, Primitive.INT, i);
+            case ConstLong(long l) -> addConstant(Kind.CONST_LONG, Primitive.LONG, l);
+            case ConstUInt(int i) -> addConstant(Kind.CONST_UINT, Primitive.UINT, i);
+            case ConstULong(long l) -> addConstant(Kind.CONST_ULONG, Primitive.ULONG, l);
+            case ConstDouble(double d) -> addConstant(Kind.CONST_DOUBLE, Primitive.DOUBLE, Double.doubleToRawLongBits(d));
+            case Identifier(String name, Type type) -> add(Kind.IDENTIFIER, type, nameId(name), 0);
+            case FunctionCall(Identifier name, List<Exp> args, Type type) -> {
+                int node = add(Kind.FUNCTION_CALL, type, nameId(name.name()), 1 + args.size());
+                setEdge(node, 0, args.size());
+                for (int i = 0; i < args.size(); i++) {
+                    setEdge(node, 1 + i, flatten(args.get(i)));
+                }
+                yield node;
+            }
+        };
+    }
+}
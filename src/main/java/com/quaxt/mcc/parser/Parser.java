@@ -7,8 +7,11 @@ import com.quaxt.mcc.semantic.Primitive;
 import com.quaxt.mcc.semantic.Type;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static com.quaxt.mcc.ArithmeticOperator.*;
 import static com.quaxt.mcc.CmpOperator.*;
@@ -18,33 +21,32 @@ import static com.quaxt.mcc.semantic.Primitive.UINT;
 import static com.quaxt.mcc.semantic.Primitive.ULONG;
 
 public class Parser {
-    private static Token expect(Token expected, List<Token> tokens) {
-        Token token = tokens.removeFirst();
-        if (expected != token.type()) {
-            throw new IllegalArgumentException("Expected " + expected + ", got " + token);
+    private static Token expect(Token expected, TokenCursor tokens) {
+        if (expected != tokens.peek()) {
+            throw new IllegalArgumentException("Expected " + expected + ", got " + tokens.current());
         }
-        return token;
+        return tokens.advance();
     }
 
-    static Statement parseStatement(List<Token> tokens) {
-        Token token = tokens.getFirst();
+    static Statement parseStatement(TokenCursor tokens) {
+        Token token = tokens.peek();
         if (RETURN == token.type()) {
-            tokens.removeFirst();
+            tokens.advance();
             Exp exp = parseExp(tokens, 0);
             expect(SEMICOLON, tokens);
             return new Return(exp);
         } else if (token == SEMICOLON) {
-            tokens.removeFirst();
+            tokens.advance();
             return NULL_STATEMENT;
         } else if (token == IF) {
-            tokens.removeFirst();
+            tokens.advance();
             expect(OPEN_PAREN, tokens);
             Exp condition = parseExp(tokens, 0);
             expect(CLOSE_PAREN, tokens);
             Statement ifTrue = parseStatement(tokens);
-            Statement ifFalse = switch (tokens.getFirst()) {
+            Statement ifFalse = switch (tokens.peek()) {
                 case ELSE -> {
-                    tokens.removeFirst();
+                    tokens.advance();
                     yield parseStatement(tokens);
                 }
                 default -> null;
@@ -60,11 +62,11 @@ public class Parser {
         } else if (token == FOR) {
             return parseFor(tokens);
         } else if (token == BREAK) {
-            tokens.removeFirst();
+            tokens.advance();
             expect(SEMICOLON, tokens);
             return new Break();
         } else if (token == CONTINUE) {
-            tokens.removeFirst();
+            tokens.advance();
             expect(SEMICOLON, tokens);
             return new Continue();
         }
@@ -73,7 +75,7 @@ public class Parser {
         return exp;
     }
 
-    private static DoWhile parseDoWhile(List<Token> tokens) {
+    private static DoWhile parseDoWhile(TokenCursor tokens) {
         expect(DO, tokens);
         Statement body = parseStatement(tokens);
         expect(WHILE, tokens);
@@ -84,13 +86,12 @@ public class Parser {
         return new DoWhile(body, condition, null);
     }
 
-    private static Declaration parseDeclaration(List<Token> tokens, boolean throwExceptionIfNoType) {
+    private static Declaration parseDeclaration(TokenCursor tokens, boolean throwExceptionIfNoType) {
         // parse int i; or int i=5; or int foo(void);
         TypeAndStorageClass typeAndStorageClass = parseTypeAndStorageClass(tokens, throwExceptionIfNoType);
         if (typeAndStorageClass == null) return null;
-        Token t = tokens.removeFirst();
-        String name = parseIdentifier(t);
-        Token token = tokens.removeFirst();
+        String name = expectIdentifier(tokens);
+        Token token = tokens.advance();
         Exp exp;
         switch (token.type()) {
             case BECOMES:
@@ -110,22 +111,22 @@ public class Parser {
         return new VarDecl(name, exp, typeAndStorageClass.type(), typeAndStorageClass.storageClass());
     }
 
-    private static TypeAndStorageClass parseTypeAndStorageClass(List<Token> tokens, boolean throwExceptionIfNoType) {
+    private static TypeAndStorageClass parseTypeAndStorageClass(TokenCursor tokens, boolean throwExceptionIfNoType) {
         if (tokens.isEmpty()) return null;
         List<Token> types = new ArrayList<>();
         List<StorageClass> storageClasses = new ArrayList<>();
         Token t;
 
         while (true) {
-            t = tokens.getFirst();
+            t = tokens.peek();
             if (isTypeSpecifier(t)) {
-                tokens.removeFirst();
+                tokens.advance();
                 types.add(t);
             } else if (STATIC == t) {
-                tokens.removeFirst();
+                tokens.advance();
                 storageClasses.add(StorageClass.STATIC);
             } else if (EXTERN == t) {
-                tokens.removeFirst();
+                tokens.advance();
                 storageClasses.add(StorageClass.EXTERN);
             } else {
                 break;
@@ -191,7 +192,7 @@ public class Parser {
     }
 
 
-    public static Program parseProgram(List<Token> tokens) {
+    public static Program parseProgram(TokenCursor tokens) {
         Declaration declaration;
         ArrayList<Declaration> declarations = new ArrayList<>();
         while ((declaration = parseDeclaration(tokens, true)) != null) {
@@ -200,25 +201,133 @@ public class Parser {
         return new Program(declarations);
     }
 
-    private static String parseIdentifier(Token identifier) {
-        if (identifier instanceof TokenWithValue(
-                TokenType type, String value
-        ) && type == IDENTIFIER) {
-            return value;
+    /**
+     * Parse into a FlatAst, flattening each top level declaration as soon as
+     * it is parsed, so that only one declaration is ever held as records
+     * rather than the whole program. The AST keeps the spare capacity its
+     * arrays grew with, as trimming them would copy them all at the point
+     * where memory use peaks.
+     */
+    public static FlatAst parseFlatProgram(TokenCursor tokens) {
+        FlatAst ast = new FlatAst();
+        Declaration declaration;
+        while ((declaration = parseDeclaration(tokens, true)) != null) {
+            ast.addTopLevel(ast.flatten(declaration));
+        }
+        return ast;
+    }
+
+    /**
+     * Parse using up to parallelism threads. A pre-scan splits the tokens
+     * into top level declarations by matching braces, runs of declarations
+     * are parsed on a fork-join pool and the results are collected in
+     * source order. If the pre-scan or any slice fails the program is parsed
+     * again sequentially, so errors are reported exactly as
+     * {@link #parseProgram(TokenCursor)} reports them.
+     */
+    public static Program parseProgram(TokenCursor tokens, int parallelism) {
+        if (parallelism <= 1) return parseProgram(tokens);
+        int count = tokens.lexAll();
+        int[] ends = topLevelEnds(tokens, count);
+        if (ends == null || ends.length < 2) return parseLexed(tokens, count);
+        Declaration[] declarations = new Declaration[ends.length];
+        try (ForkJoinPool pool = new ForkJoinPool(parallelism)) {
+            pool.invoke(new ParseTask(tokens, ends, 0, ends.length, declarations));
+        } catch (RuntimeException e) {
+            return parseLexed(tokens, count);
+        }
+        tokens.advance(count);
+        return new Program(new ArrayList<>(Arrays.asList(declarations)));
+    }
+
+    /**
+     * Parse the next count tokens, which have all been lexed, sequentially.
+     * This goes through a slice, which doesn't discard consumed tokens, as
+     * discarding from a buffer holding the whole input copies what is left
+     * of it each time.
+     */
+    private static Program parseLexed(TokenCursor tokens, int count) {
+        Program program = parseProgram(tokens.slice(0, count));
+        tokens.advance(count);
+        return program;
+    }
+
+    /**
+     * The index after the last token of each top level declaration, which
+     * ends with a ; or with the } that closes a function body. Returns null
+     * if the braces don't match.
+     */
+    private static int[] topLevelEnds(TokenCursor tokens, int count) {
+        int[] ends = new int[64];
+        int n = 0;
+        int depth = 0;
+        for (int i = 0; i < count; i++) {
+            Token t = tokens.peek(i);
+            if (t == OPEN_BRACE) {
+                depth++;
+                continue;
+            }
+            if (t == CLOSE_BRACE && --depth < 0) return null;
+            if (depth == 0 && (t == SEMICOLON || t == CLOSE_BRACE)) {
+                if (n == ends.length) ends = Arrays.copyOf(ends, n * 2);
+                ends[n++] = i + 1;
+            }
+        }
+        if (depth != 0 || n == 0 || ends[n - 1] != count) return null;
+        return Arrays.copyOf(ends, n);
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ParseTask extends RecursiveAction {
+        // below this many tokens a task parses its declarations itself
+        private static final int GRAIN = 4096;
+
+        private final TokenCursor tokens;
+        private final int[] ends;
+        private final int lo;
+        private final int hi;
+        private final Declaration[] declarations;
+
+        ParseTask(TokenCursor tokens, int[] ends, int lo, int hi, Declaration[] declarations) {
+            this.tokens = tokens;
+            this.ends = ends;
+            this.lo = lo;
+            this.hi = hi;
+            this.declarations = declarations;
+        }
+
+        private int start(int i) {
+            return i == 0 ? 0 : ends[i - 1];
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1 && ends[hi - 1] - start(lo) > GRAIN) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ParseTask(tokens, ends, lo, mid, declarations),
+                        new ParseTask(tokens, ends, mid, hi, declarations));
+                return;
+            }
+            for (int i = lo; i < hi; i++) {
+                TokenCursor slice = tokens.slice(start(i), ends[i]);
+                declarations[i] = parseDeclaration(slice, true);
+                if (!slice.isEmpty()) {
+                    throw new IllegalArgumentException("Unexpected token " + slice.current());
+                }
+            }
         }
-        throw new IllegalArgumentException("Expected identifier, got " + identifier);
     }
 
     private static boolean isTypeSpecifier(Token type) {
         return INT == type || LONG == type || UNSIGNED == type || SIGNED == type || DOUBLE == type;
     }
 
-    private static Function parseRestOfFunction(List<Token> tokens, String functionName, Type returnType, StorageClass storageClass) {
-        Token firstParam = tokens.getFirst();
+    private static Function parseRestOfFunction(TokenCursor tokens, String functionName, Type returnType, StorageClass storageClass) {
+        Token firstParam = tokens.peek();
         List<Identifier> params;
         List<Type> paramTypes;
         if (VOID == firstParam.type()) {
-            tokens.removeFirst();
+            tokens.advance();
             expect(CLOSE_PAREN, tokens);
             params = Collections.emptyList();
             paramTypes = Collections.emptyList();
@@ -234,7 +343,7 @@ public class Parser {
                     fail("error: storage class specified for parameter " + identifierName);
                 params.add(new Identifier(identifierName, null));
 
-                Token token = tokens.removeFirst();
+                Token token = tokens.advance();
                 if (token == CLOSE_PAREN) break;
                 else if (token != COMMA)
                     throw new IllegalArgumentException("Expected COMMA, got " + token);
@@ -243,7 +352,7 @@ public class Parser {
         }
 
         Block block;
-        if (tokens.getFirst() == OPEN_BRACE) {
+        if (tokens.peek() == OPEN_BRACE) {
             block = parseBlock(tokens);
         } else {
             expect(SEMICOLON, tokens);
@@ -252,29 +361,27 @@ public class Parser {
         return new Function(functionName, params, block, new FunType(paramTypes, returnType), storageClass);
     }
 
-    private static String expectIdentifier(List<Token> tokens) {
-        Token token = tokens.removeFirst();
-
-        if (token instanceof TokenWithValue(
-                Token type, String value
-        ) && type == IDENTIFIER) {
+    private static String expectIdentifier(TokenCursor tokens) {
+        if (tokens.peek() == IDENTIFIER) {
+            String value = tokens.value();
+            tokens.advance();
             return value;
         }
-        throw new IllegalArgumentException("Expected IDENTIFIER got " + token);
+        throw new IllegalArgumentException("Expected IDENTIFIER got " + tokens.current());
     }
 
-    private static Block parseBlock(List<Token> tokens) {
+    private static Block parseBlock(TokenCursor tokens) {
         expect(OPEN_BRACE, tokens);
 
         ArrayList<BlockItem> blockItems = new ArrayList<>();
-        while (tokens.getFirst() != CLOSE_BRACE) {
+        while (tokens.peek() != CLOSE_BRACE) {
             blockItems.add(parseBlockItem(tokens));
         }
-        tokens.removeFirst();
+        tokens.advance();
         return new Block(blockItems);
     }
 
-    private static While parseWhile(List<Token> tokens) {
+    private static While parseWhile(TokenCursor tokens) {
         expect(WHILE, tokens);
         expect(OPEN_PAREN, tokens);
         Exp condition = parseExp(tokens, 0);
@@ -284,8 +391,8 @@ public class Parser {
     }
 
 
-    private static BlockItem parseBlockItem(List<Token> tokens) {
-        Token t = tokens.getFirst();
+    private static BlockItem parseBlockItem(TokenCursor tokens) {
+        Token t = tokens.peek();
         return t == EXTERN || t == STATIC || isTypeSpecifier(t) ?
                 parseDeclaration(tokens, false)
                 : parseStatement(tokens);
@@ -306,8 +413,11 @@ public class Parser {
         else return new ConstULong(v);
     }
 
-    private static Exp parseFactor(List<Token> tokens) {
-        Token token = tokens.removeFirst();
+    private static Exp parseFactor(TokenCursor tokens) {
+        // read the value before advancing, it's null unless token is an
+        // identifier or a literal
+        String value = tokens.value();
+        Token token = tokens.advance();
         return switch (token) {
             case SUB ->
                     new UnaryOp(UnaryOperator.UNARY_MINUS, parseFactor(tokens), null);
@@ -316,13 +426,15 @@ public class Parser {
             case NOT ->
                     new UnaryOp(UnaryOperator.NOT, parseFactor(tokens), null);
             case OPEN_PAREN -> {
+                int mark = tokens.mark();
                 TypeAndStorageClass typeSpecifierAndStorageClass = parseTypeAndStorageClass(tokens, false);
-                if (typeSpecifierAndStorageClass != null && CLOSE_PAREN == tokens.getFirst()) {
+                if (typeSpecifierAndStorageClass != null && CLOSE_PAREN == tokens.peek()) {
+                    tokens.release(mark);
                     if (typeSpecifierAndStorageClass.storageClass() != null) {
                         fail("storage class not allowed in cast");
                     }
                     Type type = typeSpecifierAndStorageClass.type();
-                    tokens.removeFirst();//close_paren
+                    tokens.advance();//close_paren
                     // We use parseFactor so (int)x=y is not parsed as (int)(x=y)
                     // Could use parseExp(tokens, 60) which would do the same
                     // thing but more slowly
@@ -333,15 +445,17 @@ public class Parser {
                     yield new Cast(type, inner);
 
                 } else {
+                    // not a cast, go back over anything
+                    // parseTypeAndStorageClass consumed
+                    tokens.reset(mark);
                     Exp r = parseExp(tokens, 0);
                     expect(CLOSE_PAREN, tokens);
                     yield r;
                 }
             }
-            case TokenWithValue(
-                    TokenType tokenType, String value
-            ) -> {
-                Type t = com.quaxt.mcc.semantic.Primitive.fromTokenType(tokenType);
+            case IDENTIFIER, DOUBLE_LITERAL, UNSIGNED_LONG_LITERAL,
+                 UNSIGNED_INT_LITERAL, LONG_LITERAL, INT_LITERAL -> {
+                Type t = com.quaxt.mcc.semantic.Primitive.fromTokenType((TokenType) token);
                 int len = value.length() - (t == null ? 0 : switch (t) {
                     case Primitive.LONG, UINT -> 1;
                     case ULONG -> 2;
@@ -351,11 +465,11 @@ public class Parser {
                     yield parseConst(value.substring(0, len), t);
                 }
                 Identifier id = new Identifier(value, null);
-                if (!tokens.isEmpty() && tokens.getFirst() == OPEN_PAREN) {
-                    tokens.removeFirst();
-                    Token current = tokens.getFirst();
+                if (!tokens.isEmpty() && tokens.peek() == OPEN_PAREN) {
+                    tokens.advance();
+                    Token current = tokens.peek();
                     if (current == CLOSE_PAREN) {
-                        tokens.removeFirst();
+                        tokens.advance();
                         yield new FunctionCall(id, Collections.emptyList(), null);
                     }
                     List<Exp> args = new ArrayList<>();
@@ -363,7 +477,7 @@ public class Parser {
                     while (true) {
                         Exp e = parseExp(tokens, 0);
                         args.add(e);
-                        current = tokens.removeFirst();
+                        current = tokens.advance();
                         if (current == COMMA) {
                             continue;
                         }
@@ -386,15 +500,15 @@ public class Parser {
     }
 
 
-    private static Exp parseExp(List<Token> tokens, int minPrecedence) {
+    private static Exp parseExp(TokenCursor tokens, int minPrecedence) {
         Exp left = parseFactor(tokens);
 
         while (!tokens.isEmpty()) {
-            Token token = tokens.getFirst();
-            if (tokens.getFirst() instanceof BinaryOperator || token == QUESTION_MARK) {
+            Token token = tokens.peek();
+            if (token instanceof BinaryOperator || token == QUESTION_MARK) {
                 int precedence = getPrecedence(token);
                 if (precedence < minPrecedence) break;
-                tokens.removeFirst();
+                tokens.advance();
                 if (token == BECOMES) {
                     Exp right = parseExp(tokens, precedence);
                     left = new Assignment(left, right, null);
@@ -431,22 +545,22 @@ public class Parser {
         };
     }
 
-    private static ForInit parseForInit(List<Token> tokens) {
-        Token t = tokens.getFirst();
+    private static ForInit parseForInit(TokenCursor tokens) {
+        Token t = tokens.peek();
         if (isTypeSpecifier(t)) return (ForInit) parseDeclaration(tokens, true);
         Exp r = t == SEMICOLON ? null : parseExp(tokens, 0);
         expect(SEMICOLON, tokens);
         return r;
     }
 
-    private static For parseFor(List<Token> tokens) {
+    private static For parseFor(TokenCursor tokens) {
         expect(FOR, tokens);
         expect(OPEN_PAREN, tokens);
         ForInit init = parseForInit(tokens);
-        Token t = tokens.getFirst();
+        Token t = tokens.peek();
         Exp condition = t == SEMICOLON ? null : parseExp(tokens, 0);
         expect(SEMICOLON, tokens);
-        t = tokens.getFirst();
+        t = tokens.peek();
         Exp post = t == CLOSE_PAREN ? null : parseExp(tokens, 0);
         expect(CLOSE_PAREN, tokens);
         Statement body = parseStatement(tokens);
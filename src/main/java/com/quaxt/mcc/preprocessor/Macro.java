@@ -0,0 +1,14 @@
+package com.quaxt.mcc.preprocessor;
+
+import java.util.List;
+
+/**
+ * A #define. params is null for object-like macros. For variadic macros
+ * the last parameter is __VA_ARGS__.
+ */
+public record Macro(String name, List<String> params, boolean variadic,
+                    List<PpToken> body) {
+    public boolean isFunctionLike() {
+        return params != null;
+    }
+}
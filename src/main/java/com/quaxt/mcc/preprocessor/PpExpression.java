@@ -0,0 +1,216 @@
+package com.quaxt.mcc.preprocessor;
+
+import java.util.List;
+
+import static com.quaxt.mcc.preprocessor.PpToken.Kind.*;
+
+/**
+ * Evaluates the controlling expression of #if and #elif after defined and
+ * macros have been replaced. Remaining identifiers evaluate to 0. Values
+ * are intmax_t or uintmax_t, that is a long that is either signed or
+ * unsigned, and operands are converted as C's usual arithmetic conversions
+ * convert them. The operand that &&, || or ?: skips is parsed but not
+ * evaluated, so dividing by zero there is not an error.
+ */
+class PpExpression {
+    private record Value(long value, boolean unsigned) {
+    }
+
+    private static final Value FALSE = new Value(0, false);
+    private static final Value TRUE = new Value(1, false);
+
+    private final List<PpToken> tokens;
+    private int pos;
+    // false while parsing an operand whose value is not used
+    private boolean evaluating = true;
+
+    private PpExpression(List<PpToken> tokens) {
+        this.tokens = tokens;
+    }
+
+    static long evaluate(List<PpToken> tokens) {
+        if (tokens.isEmpty()) throw new IllegalArgumentException("#if with no expression");
+        PpExpression e = new PpExpression(tokens);
+        Value v = e.conditional();
+        if (e.pos < tokens.size()) {
+            throw new IllegalArgumentException("missing binary operator before token \"" + tokens.get(e.pos).text() + "\"");
+        }
+        return v.value();
+    }
+
+    private boolean accept(String punctuator) {
+        if (pos < tokens.size() && tokens.get(pos).is(punctuator)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String punctuator) {
+        if (!accept(punctuator)) {
+            throw new IllegalArgumentException("expected '" + punctuator + "' in preprocessor expression");
+        }
+    }
+
+    private static Value truth(boolean b) {
+        return b ? TRUE : FALSE;
+    }
+
+    private Value conditional() {
+        Value c = binary(0);
+        if (accept("?")) {
+            boolean outer = evaluating;
+            boolean chosen = c.value() != 0;
+            evaluating = outer && chosen;
+            Value a = conditional();
+            expect(":");
+            evaluating = outer && !chosen;
+            Value b = conditional();
+            evaluating = outer;
+            return new Value(chosen ? a.value() : b.value(), a.unsigned() || b.unsigned());
+        }
+        return c;
+    }
+
+    private static int precedence(PpToken t) {
+        if (t.kind() != PUNCTUATOR) return -1;
+        return switch (t.text()) {
+            case "||" -> 0;
+            case "&&" -> 1;
+            case "|" -> 2;
+            case "^" -> 3;
+            case "&" -> 4;
+            case "==", "!=" -> 5;
+            case "<", ">", "<=", ">=" -> 6;
+            case "<<", ">>" -> 7;
+            case "+", "-" -> 8;
+            case "*", "/", "%" -> 9;
+            default -> -1;
+        };
+    }
+
+    private Value binary(int minPrecedence) {
+        Value left = unary();
+        while (pos < tokens.size()) {
+            PpToken op = tokens.get(pos);
+            int prec = precedence(op);
+            if (prec < minPrecedence) break;
+            pos++;
+            boolean outer = evaluating;
+            if (op.is("&&") && left.value() == 0 || op.is("||") && left.value() != 0) evaluating = false;
+            Value right = binary(prec + 1);
+            evaluating = outer;
+            long l = left.value();
+            long r = right.value();
+            boolean unsigned = left.unsigned() || right.unsigned();
+            left = switch (op.text()) {
+                case "||" -> truth(l != 0 || r != 0);
+                case "&&" -> truth(l != 0 && r != 0);
+                case "|" -> new Value(l | r, unsigned);
+                case "^" -> new Value(l ^ r, unsigned);
+                case "&" -> new Value(l & r, unsigned);
+                case "==" -> truth(l == r);
+                case "!=" -> truth(l != r);
+                case "<", ">", "<=", ">=" -> {
+                    int cmp = unsigned ? Long.compareUnsigned(l, r) : Long.compare(l, r);
+                    yield truth(switch (op.text()) {
+                        case "<" -> cmp < 0;
+                        case ">" -> cmp > 0;
+                        case "<=" -> cmp <= 0;
+                        default -> cmp >= 0;
+                    });
+                }
+                // a shift has the type of its left operand
+                case "<<" -> new Value(l << r, left.unsigned());
+                case ">>" -> new Value(left.unsigned() ? l >>> r : l >> r, left.unsigned());
+                case "+" -> new Value(l + r, unsigned);
+                case "-" -> new Value(l - r, unsigned);
+                case "*" -> new Value(l * r, unsigned);
+                case "/", "%" -> {
+                    if (r == 0) {
+                        if (evaluating) throw new IllegalArgumentException("division by zero in #if");
+                        yield new Value(0, unsigned);
+                    }
+                    boolean divide = op.text().equals("/");
+                    if (unsigned) {
+                        yield new Value(divide ? Long.divideUnsigned(l, r) : Long.remainderUnsigned(l, r), true);
+                    }
+                    yield new Value(divide ? l / r : l % r, false);
+                }
+                default -> throw new IllegalStateException(op.text());
+            };
+        }
+        return left;
+    }
+
+    private Value unary() {
+        if (pos >= tokens.size()) throw new IllegalArgumentException("#if with incomplete expression");
+        PpToken t = tokens.get(pos++);
+        if (t.is("(")) {
+            Value v = conditional();
+            expect(")");
+            return v;
+        }
+        if (t.is("-")) {
+            Value v = unary();
+            return new Value(-v.value(), v.unsigned());
+        }
+        if (t.is("+")) return unary();
+        if (t.is("~")) {
+            Value v = unary();
+            return new Value(~v.value(), v.unsigned());
+        }
+        if (t.is("!")) return truth(unary().value() == 0);
+        return switch (t.kind()) {
+            case IDENTIFIER -> FALSE;
+            case NUMBER -> parseNumber(t.text());
+            case CHAR -> new Value(parseChar(t.text()), false);
+            default -> throw new IllegalArgumentException("token \"" + t.text() + "\" is not valid in preprocessor expressions");
+        };
+    }
+
+    // a constant is unsigned if it has a u suffix or is too big for a long
+    private static Value parseNumber(String s) {
+        int end = s.length();
+        boolean unsigned = false;
+        while (end > 0 && "uUlL".indexOf(s.charAt(end - 1)) >= 0) {
+            unsigned |= "uU".indexOf(s.charAt(end - 1)) >= 0;
+            end--;
+        }
+        String digits = s.substring(0, end);
+        long value;
+        try {
+            if (digits.startsWith("0x") || digits.startsWith("0X")) {
+                value = Long.parseUnsignedLong(digits.substring(2), 16);
+            } else if (digits.startsWith("0b") || digits.startsWith("0B")) {
+                value = Long.parseUnsignedLong(digits.substring(2), 2);
+            } else if (digits.length() > 1 && digits.startsWith("0")) {
+                value = Long.parseUnsignedLong(digits.substring(1), 8);
+            } else {
+                value = Long.parseUnsignedLong(digits);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid integer constant in #if: " + s);
+        }
+        return new Value(value, unsigned || value < 0);
+    }
+
+    private static long parseChar(String s) {
+        // 'c' or an escape sequence, possibly with an encoding prefix
+        s = s.substring(s.indexOf('\''));
+        char c = s.charAt(1);
+        if (c != '\\') return c;
+        char e = s.charAt(2);
+        return switch (e) {
+            case 'n' -> '\n';
+            case 't' -> '\t';
+            case 'r' -> '\r';
+            case 'a' -> 7;
+            case 'b' -> '\b';
+            case 'f' -> '\f';
+            case 'v' -> 11;
+            case 'x' -> Long.parseLong(s.substring(3, s.length() - 1), 16);
+            default -> e >= '0' && e <= '7' ? Long.parseLong(s.substring(2, s.length() - 1), 8) : e;
+        };
+    }
+}
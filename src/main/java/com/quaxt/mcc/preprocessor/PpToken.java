@@ -0,0 +1,29 @@
+package com.quaxt.mcc.preprocessor;
+
+import java.util.Set;
+
+/**
+ * A preprocessing token. hideSet holds the names of the macros whose
+ * expansion produced this token, which must not be expanded again while
+ * rescanning it.
+ */
+public record PpToken(Kind kind, String text, boolean spaceBefore,
+                      Set<String> hideSet) {
+    public enum Kind {IDENTIFIER, NUMBER, STRING, CHAR, PUNCTUATOR, OTHER}
+
+    public PpToken(Kind kind, String text, boolean spaceBefore) {
+        this(kind, text, spaceBefore, Set.of());
+    }
+
+    public boolean is(String s) {
+        return kind == Kind.PUNCTUATOR && text.equals(s);
+    }
+
+    public PpToken withSpaceBefore(boolean spaceBefore) {
+        return spaceBefore == this.spaceBefore ? this : new PpToken(kind, text, spaceBefore, hideSet);
+    }
+
+    public PpToken withHideSet(Set<String> hideSet) {
+        return new PpToken(kind, text, spaceBefore, hideSet);
+    }
+}
@@ -0,0 +1,219 @@
+package com.quaxt.mcc.preprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.quaxt.mcc.preprocessor.PpToken.Kind.*;
+
+/**
+ * Translation phases 1-3: splice lines ending in a backslash, replace
+ * comments with a space and split each logical line into preprocessing
+ * tokens. Lines are tokenized on demand by {@link #nextLine()}, so the
+ * tokens of a large source file never all exist at the same time.
+ */
+public class PpTokenizer {
+    private static final String SINGLE_CHAR_PUNCTUATORS = "[](){}.&*+-~!/%<>^|?:;=,#";
+
+    public static List<SourceLine> tokenize(String src) {
+        List<SourceLine> lines = new ArrayList<>();
+        PpTokenizer tokenizer = new PpTokenizer(src);
+        SourceLine line;
+        while ((line = tokenizer.nextLine()) != null) lines.add(line);
+        return lines;
+    }
+
+    /**
+     * Tokenize text that doesn't contain newlines, e.g. the result of ##.
+     */
+    public static List<PpToken> tokenizeFragment(String text) {
+        List<PpToken> tokens = new ArrayList<>();
+        PpTokenizer tokenizer = new PpTokenizer(text, null);
+        while (tokenizer.pos < text.length()) {
+            PpToken t = tokenizer.nextToken(false);
+            if (t != null) tokens.add(t);
+        }
+        return tokens;
+    }
+
+    private final String text;
+    // if lines were spliced, lineStarts[n] is the physical line that logical
+    // line n + 1 starts on, otherwise null
+    private final int[] lineStarts;
+    private int pos;
+    // number of newlines seen, including those inside comments
+    private int newlines;
+
+    public PpTokenizer(String src) {
+        this(src, src.indexOf("\\\n") < 0 && src.indexOf("\\\r\n") < 0 ? null : new int[16]);
+    }
+
+    private PpTokenizer(String src, int[] lineStarts) {
+        if (lineStarts == null) {
+            this.text = src;
+            this.lineStarts = null;
+            return;
+        }
+        StringBuilder sb = new StringBuilder(src.length());
+        int logicalLines = 0;
+        int physicalLine = 1;
+        lineStarts[logicalLines++] = 1;
+        for (int i = 0; i < src.length(); i++) {
+            char c = src.charAt(i);
+            if (c == '\\' && i + 1 < src.length() && src.charAt(i + 1) == '\n') {
+                i++;
+                physicalLine++;
+            } else if (c == '\\' && i + 2 < src.length() && src.charAt(i + 1) == '\r' && src.charAt(i + 2) == '\n') {
+                i += 2;
+                physicalLine++;
+            } else {
+                sb.append(c);
+                if (c == '\n') {
+                    physicalLine++;
+                    if (logicalLines == lineStarts.length) {
+                        int[] newLineStarts = new int[logicalLines * 2];
+                        System.arraycopy(lineStarts, 0, newLineStarts, 0, logicalLines);
+                        lineStarts = newLineStarts;
+                    }
+                    lineStarts[logicalLines++] = physicalLine;
+                }
+            }
+        }
+        this.text = sb.toString();
+        this.lineStarts = lineStarts;
+    }
+
+    private char charAt(int i) {
+        return i < text.length() ? text.charAt(i) : 0;
+    }
+
+    private int physicalLine(int logicalNewlines) {
+        return lineStarts == null ? logicalNewlines + 1 : lineStarts[logicalNewlines];
+    }
+
+    /**
+     * The next line that contains at least one token, or null at the end of
+     * the input.
+     */
+    public SourceLine nextLine() {
+        List<PpToken> tokens = new ArrayList<>();
+        int lineNumber = physicalLine(newlines);
+        boolean spaceBefore = false;
+        while (pos < text.length()) {
+            if (text.charAt(pos) == '\n') {
+                pos++;
+                newlines++;
+                if (!tokens.isEmpty()) return new SourceLine(lineNumber, tokens);
+                lineNumber = physicalLine(newlines);
+                spaceBefore = false;
+                continue;
+            }
+            PpToken t = nextToken(spaceBefore);
+            if (t == null) {
+                spaceBefore = true;
+            } else {
+                tokens.add(t);
+                spaceBefore = false;
+            }
+        }
+        return tokens.isEmpty() ? null : new SourceLine(lineNumber, tokens);
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return c == '_' || c == '$' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Returns the token at pos, or null if pos is at whitespace or a
+     * comment, which are skipped. Never consumes a newline, except inside a
+     * block comment.
+     */
+    private PpToken nextToken(boolean spaceBefore) {
+        int start = pos;
+        char c = text.charAt(pos);
+        if (c == ' ' || c == '\t' || c == '\f' || c == '\u000B' || c == '\r') {
+            pos++;
+            return null;
+        }
+        if (c == '/' && charAt(pos + 1) == '/') {
+            while (pos < text.length() && text.charAt(pos) != '\n') pos++;
+            return null;
+        }
+        if (c == '/' && charAt(pos + 1) == '*') {
+            int end = text.indexOf("*/", pos + 2);
+            if (end < 0) throw new IllegalArgumentException("unterminated comment");
+            for (int i = pos + 2; i < end; i++) {
+                if (text.charAt(i) == '\n') newlines++;
+            }
+            pos = end + 2;
+            return null;
+        }
+        if (isIdentifierChar(c) && !isDigit(c)) {
+            while (isIdentifierChar(charAt(pos))) pos++;
+            char q = charAt(pos);
+            if ((q == '"' || q == '\'') && isEncodingPrefix(start, pos)) {
+                return quoted(start, q, spaceBefore);
+            }
+            return new PpToken(IDENTIFIER, text.substring(start, pos), spaceBefore);
+        }
+        if (isDigit(c) || (c == '.' && isDigit(charAt(pos + 1)))) {
+            // pp-number
+            pos++;
+            while (true) {
+                char d = charAt(pos);
+                if ((d == '+' || d == '-') && "eEpP".indexOf(charAt(pos - 1)) >= 0) pos++;
+                else if (isIdentifierChar(d) || d == '.') pos++;
+                else break;
+            }
+            return new PpToken(NUMBER, text.substring(start, pos), spaceBefore);
+        }
+        if (c == '"' || c == '\'') {
+            return quoted(start, c, spaceBefore);
+        }
+        int length = punctuatorLength(c);
+        if (length == 0) {
+            pos++;
+            return new PpToken(OTHER, String.valueOf(c), spaceBefore);
+        }
+        pos += length;
+        return new PpToken(PUNCTUATOR, text.substring(start, pos), spaceBefore);
+    }
+
+    private boolean isEncodingPrefix(int start, int end) {
+        return switch (end - start) {
+            case 1 -> "LuU".indexOf(text.charAt(start)) >= 0;
+            case 2 -> text.startsWith("u8", start);
+            default -> false;
+        };
+    }
+
+    /**
+     * Length of the longest punctuator at pos, 0 if there isn't one.
+     */
+    private int punctuatorLength(char c) {
+        char c1 = charAt(pos + 1);
+        return switch (c) {
+            case '.' -> c1 == '.' && charAt(pos + 2) == '.' ? 3 : 1;
+            case '<', '>' -> c1 == c ? (charAt(pos + 2) == '=' ? 3 : 2) : c1 == '=' ? 2 : 1;
+            case '-' -> c1 == '>' || c1 == '-' || c1 == '=' ? 2 : 1;
+            case '+', '&', '|' -> c1 == c || c1 == '=' ? 2 : 1;
+            case '#' -> c1 == '#' ? 2 : 1;
+            case '=', '!', '*', '/', '%', '^' -> c1 == '=' ? 2 : 1;
+            default -> SINGLE_CHAR_PUNCTUATORS.indexOf(c) >= 0 ? 1 : 0;
+        };
+    }
+
+    private PpToken quoted(int start, char quote, boolean spaceBefore) {
+        pos++;
+        while (pos < text.length() && text.charAt(pos) != quote && text.charAt(pos) != '\n') {
+            if (text.charAt(pos) == '\\') pos++;
+            pos++;
+        }
+        if (charAt(pos) != quote) throw new IllegalArgumentException("missing terminating " + quote + " character");
+        pos++;
+        return new PpToken(quote == '"' ? STRING : CHAR, text.substring(start, pos), spaceBefore);
+    }
+}
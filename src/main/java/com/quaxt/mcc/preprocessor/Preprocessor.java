@@ -0,0 +1,822 @@
+package com.quaxt.mcc.preprocessor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.quaxt.mcc.preprocessor.PpToken.Kind.*;
+
+/**
+ * An in-process C preprocessor. It reads the source file and the files it
+ * includes, executes directives, expands macros and hands the resulting
+ * text to the lexer as a {@link Reader}, one output line at a time, so
+ * nothing is written to disk and no gcc process is started.
+ * <p>
+ * Macro expansion uses hide sets (Prosser's algorithm), which gives the
+ * rescanning behaviour the standard requires. Headers are tokenized once
+ * and kept in a cache shared by every Preprocessor in the JVM, and a
+ * header whose whole body is wrapped in an include guard is skipped
+ * without being read again when the guard macro is already defined.
+ */
+public class Preprocessor extends Reader {
+    private static final int MAX_INCLUDE_DEPTH = 200;
+
+    // only what gcc -undef would leave plus what describes the target, we
+    // don't claim to be gcc so __GNUC__ is not defined
+    private static final String PREDEFINED = """
+            #define __STDC__ 1
+            #define __STDC_VERSION__ 201710L
+            #define __STDC_HOSTED__ 1
+            #define __x86_64__ 1
+            #define __x86_64 1
+            #define __amd64__ 1
+            #define __amd64 1
+            #define __linux__ 1
+            #define __linux 1
+            #define __gnu_linux__ 1
+            #define __unix__ 1
+            #define __unix 1
+            #define __ELF__ 1
+            #define __LP64__ 1
+            #define _LP64 1
+            #define __CHAR_BIT__ 8
+            #define __SIZEOF_SHORT__ 2
+            #define __SIZEOF_INT__ 4
+            #define __SIZEOF_LONG__ 8
+            #define __SIZEOF_LONG_LONG__ 8
+            #define __SIZEOF_POINTER__ 8
+            #define __SIZEOF_DOUBLE__ 8
+            #define __SIZEOF_SIZE_T__ 8
+            #define __SCHAR_MAX__ 0x7f
+            #define __SHRT_MAX__ 0x7fff
+            #define __INT_MAX__ 0x7fffffff
+            #define __LONG_MAX__ 0x7fffffffffffffffL
+            #define __LONG_LONG_MAX__ 0x7fffffffffffffffLL
+            #define __SIZE_TYPE__ long unsigned int
+            #define __PTRDIFF_TYPE__ long int
+            #define __WCHAR_TYPE__ int
+            #define __ORDER_LITTLE_ENDIAN__ 1234
+            #define __ORDER_BIG_ENDIAN__ 4321
+            #define __BYTE_ORDER__ __ORDER_LITTLE_ENDIAN__
+            """;
+
+    private static final List<Path> SYSTEM_INCLUDE_DIRS = systemIncludeDirs();
+
+    private static final ConcurrentHashMap<Path, CachedFile> HEADER_CACHE = new ConcurrentHashMap<>();
+
+    private static final PpToken PLACEMARKER = new PpToken(OTHER, "", false);
+
+    /**
+     * A tokenized header. guard is the include guard macro if the whole
+     * file is inside #ifndef guard ... #endif, otherwise null. modified is
+     * the file's time stamp when it was read, so that a long-lived process
+     * notices headers that change between compilations.
+     */
+    private record CachedFile(List<SourceLine> lines, String guard, FileTime modified) {
+    }
+
+    private static final class Conditional {
+        final boolean parentActive;
+        boolean active;
+        // true once some branch of this #if has been taken
+        boolean taken;
+        boolean sawElse;
+
+        Conditional(boolean parentActive, boolean active) {
+            this.parentActive = parentActive;
+            this.active = active;
+            this.taken = active || !parentActive;
+        }
+    }
+
+    private static final class FileState {
+        final Path path;
+        // a cached header is read from lines, the main file from tokenizer
+        final List<SourceLine> lines;
+        final PpTokenizer tokenizer;
+        // index into SYSTEM_INCLUDE_DIRS of the directory this file was
+        // found in, -1 if it wasn't found through the search path
+        final int dirIndex;
+        final ArrayDeque<Conditional> conditionals = new ArrayDeque<>();
+        int index;
+        SourceLine lookahead;
+        String presumedName;
+        // added to physical line numbers by #line
+        int lineDelta;
+
+        FileState(Path path, List<SourceLine> lines, PpTokenizer tokenizer, int dirIndex) {
+            this.path = path;
+            this.lines = lines;
+            this.tokenizer = tokenizer;
+            this.dirIndex = dirIndex;
+            this.presumedName = path.toString();
+        }
+
+        boolean active() {
+            return conditionals.isEmpty() || conditionals.peek().active;
+        }
+
+        /**
+         * The next line without consuming it, null at the end of the file.
+         */
+        SourceLine peekLine() {
+            if (lines != null) return index < lines.size() ? lines.get(index) : null;
+            if (lookahead == null) lookahead = tokenizer.nextLine();
+            return lookahead;
+        }
+
+        SourceLine takeLine() {
+            SourceLine line = peekLine();
+            if (lines != null) index++;
+            else lookahead = null;
+            return line;
+        }
+    }
+
+    private final HashMap<String, Macro> macros = new HashMap<>();
+    private final Set<Path> pragmaOnce = new HashSet<>();
+    private final ArrayDeque<FileState> includeStack = new ArrayDeque<>();
+    private int currentLine;
+    private final StringBuilder out = new StringBuilder();
+    private int outPos;
+
+    public Preprocessor(Path file) throws IOException {
+        this(file, Files.readString(file));
+    }
+
+    public Preprocessor(Path file, String src) {
+        FileState builtin = new FileState(Path.of("<built-in>"), null, new PpTokenizer(PREDEFINED), -1);
+        includeStack.push(builtin);
+        SourceLine line;
+        while ((line = builtin.takeLine()) != null) directive(builtin, line);
+        includeStack.pop();
+        includeStack.push(new FileState(file, null, new PpTokenizer(src), -1));
+    }
+
+    private static List<Path> systemIncludeDirs() {
+        List<Path> dirs = new ArrayList<>();
+        Path gccDir = Path.of("/usr/lib/gcc/x86_64-linux-gnu");
+        if (Files.isDirectory(gccDir)) {
+            try (var versions = Files.list(gccDir)) {
+                versions.map(v -> v.resolve("include"))
+                        .filter(Files::isDirectory)
+                        .max(Comparator.comparing(Path::toString))
+                        .ifPresent(dirs::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        for (String d : new String[]{"/usr/local/include", "/usr/include/x86_64-linux-gnu", "/usr/include"}) {
+            Path p = Path.of(d);
+            if (Files.isDirectory(p)) dirs.add(p);
+        }
+        return List.copyOf(dirs);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) return 0;
+        while (outPos == out.length()) {
+            out.setLength(0);
+            outPos = 0;
+            if (!nextLine()) return -1;
+        }
+        int n = Math.min(len, out.length() - outPos);
+        out.getChars(outPos, outPos + n, cbuf, off);
+        outPos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        includeStack.clear();
+    }
+
+    private RuntimeException error(String message) {
+        FileState f = includeStack.peek();
+        String where = f == null ? "" : f.presumedName + ":" + (currentLine + f.lineDelta) + ": ";
+        return new IllegalArgumentException(where + message);
+    }
+
+    /**
+     * Process lines until one produces output, which is appended to out.
+     * Returns false at the end of the main file.
+     */
+    private boolean nextLine() {
+        while (!includeStack.isEmpty()) {
+            FileState f = includeStack.peek();
+            SourceLine line = f.takeLine();
+            if (line == null) {
+                if (!f.conditionals.isEmpty()) throw error("unterminated conditional directive");
+                includeStack.pop();
+                continue;
+            }
+            currentLine = line.lineNumber();
+            if (line.isDirective()) {
+                directive(f, line);
+            } else if (f.active()) {
+                if (!mayExpand(line.tokens())) {
+                    write(line.tokens());
+                    return true;
+                }
+                List<PpToken> expanded = expand(new ArrayDeque<>(line.tokens()), true);
+                if (!expanded.isEmpty()) {
+                    write(expanded);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether any token of a line could start a macro invocation. Most lines
+     * of most files don't use macros and can be written out as they are.
+     */
+    private boolean mayExpand(List<PpToken> tokens) {
+        for (PpToken t : tokens) {
+            if (t.kind() == IDENTIFIER && (macros.containsKey(t.text()) || t.text().startsWith("_"))) return true;
+        }
+        return false;
+    }
+
+    private void write(List<PpToken> tokens) {
+        PpToken prev = null;
+        for (PpToken t : tokens) {
+            if (prev != null && (t.spaceBefore() || wouldMerge(prev, t))) out.append(' ');
+            out.append(t.text());
+            prev = t;
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Whether writing b straight after a would lex as something other than
+     * a followed by b. Only matters for tokens that macro expansion made
+     * adjacent.
+     */
+    private static boolean wouldMerge(PpToken a, PpToken b) {
+        boolean aWord = a.kind() == IDENTIFIER || a.kind() == NUMBER;
+        boolean bWord = b.kind() == IDENTIFIER || b.kind() == NUMBER;
+        if (aWord && bWord) return true;
+        if (a.kind() == NUMBER && (b.text().startsWith(".") || b.is("+") || b.is("-"))) return true;
+        if (a.kind() == PUNCTUATOR && b.kind() == PUNCTUATOR) {
+            String joined = a.text() + b.text();
+            if (joined.contains("//") || joined.contains("/*")) return true;
+            return PpTokenizer.tokenizeFragment(joined).getFirst().text().length() != a.text().length();
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------- directives
+
+    private void directive(FileState f, SourceLine line) {
+        List<PpToken> tokens = line.tokens();
+        if (tokens.size() == 1) return; // null directive
+        PpToken nameToken = tokens.get(1);
+        String name = nameToken.text();
+        List<PpToken> rest = tokens.subList(2, tokens.size());
+        boolean active = f.active();
+        switch (name) {
+            case "if" -> f.conditionals.push(new Conditional(active, active && evaluate(rest)));
+            case "ifdef", "ifndef" -> {
+                boolean v = false;
+                if (active) {
+                    if (rest.isEmpty() || rest.getFirst().kind() != IDENTIFIER) {
+                        throw error("no macro name given in #" + name + " directive");
+                    }
+                    v = isDefined(rest.getFirst().text()) == name.equals("ifdef");
+                }
+                f.conditionals.push(new Conditional(active, active && v));
+            }
+            case "elif" -> {
+                Conditional c = f.conditionals.peek();
+                if (c == null) throw error("#elif without #if");
+                if (c.sawElse) throw error("#elif after #else");
+                if (c.taken) {
+                    c.active = false;
+                } else {
+                    c.active = evaluate(rest);
+                    c.taken = c.active;
+                }
+            }
+            case "else" -> {
+                Conditional c = f.conditionals.peek();
+                if (c == null) throw error("#else without #if");
+                if (c.sawElse) throw error("#else after #else");
+                c.sawElse = true;
+                c.active = !c.taken;
+                c.taken = true;
+            }
+            case "endif" -> {
+                if (f.conditionals.isEmpty()) throw error("#endif without #if");
+                f.conditionals.pop();
+            }
+            default -> {
+                if (active) activeDirective(f, nameToken, rest);
+            }
+        }
+    }
+
+    private void activeDirective(FileState f, PpToken nameToken, List<PpToken> rest) {
+        if (nameToken.kind() == NUMBER) {
+            // GNU line marker: # 33 "file.c" flags
+            lineControl(f, rest.isEmpty() ? List.of(nameToken) : List.of(nameToken, rest.getFirst()));
+            return;
+        }
+        String name = nameToken.text();
+        switch (name) {
+            case "define" -> define(rest);
+            case "undef" -> {
+                if (rest.isEmpty() || rest.getFirst().kind() != IDENTIFIER) {
+                    throw error("no macro name given in #undef directive");
+                }
+                macros.remove(rest.getFirst().text());
+            }
+            case "include" -> include(f, rest, false);
+            case "include_next" -> include(f, rest, true);
+            case "line" -> lineControl(f, expandIfNeeded(rest));
+            case "error" -> throw error("#error " + join(rest));
+            case "warning" -> System.err.println(f.presumedName + ":" + (currentLine + f.lineDelta) + ": warning: #warning " + join(rest));
+            case "pragma" -> {
+                if (!rest.isEmpty() && rest.getFirst().text().equals("once")) {
+                    pragmaOnce.add(f.path);
+                }
+                // other pragmas don't affect code generation, drop them
+            }
+            case "ident", "sccs", "assert", "unassert" -> {
+            }
+            default -> throw error("invalid preprocessing directive #" + name);
+        }
+    }
+
+    private static String join(List<PpToken> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (PpToken t : tokens) {
+            if (!sb.isEmpty() && t.spaceBefore()) sb.append(' ');
+            sb.append(t.text());
+        }
+        return sb.toString();
+    }
+
+    private List<PpToken> expandIfNeeded(List<PpToken> tokens) {
+        if (!tokens.isEmpty() && (tokens.getFirst().kind() == NUMBER || tokens.getFirst().kind() == STRING)) {
+            return tokens;
+        }
+        return expand(new ArrayDeque<>(tokens), false);
+    }
+
+    private void lineControl(FileState f, List<PpToken> args) {
+        if (args.isEmpty() || args.getFirst().kind() != NUMBER) {
+            throw error("#line directive requires a positive integer argument");
+        }
+        int line;
+        try {
+            line = Integer.parseInt(args.getFirst().text());
+        } catch (NumberFormatException e) {
+            throw error("\"" + args.getFirst().text() + "\" is not a valid line number");
+        }
+        // the line after the directive gets the number given
+        f.lineDelta = line - (currentLine + 1);
+        if (args.size() > 1) {
+            PpToken file = args.get(1);
+            if (file.kind() != STRING) throw error("invalid filename \"" + file.text() + "\"");
+            f.presumedName = file.text().substring(1, file.text().length() - 1);
+        }
+    }
+
+    private void define(List<PpToken> tokens) {
+        if (tokens.isEmpty() || tokens.getFirst().kind() != IDENTIFIER) {
+            throw error("macro names must be identifiers");
+        }
+        String name = tokens.getFirst().text();
+        if (name.equals("defined")) throw error("\"defined\" cannot be used as a macro name");
+        List<String> params = null;
+        boolean variadic = false;
+        int i = 1;
+        if (i < tokens.size() && tokens.get(i).is("(") && !tokens.get(i).spaceBefore()) {
+            params = new ArrayList<>();
+            i++;
+            while (true) {
+                if (i >= tokens.size()) throw error("missing ')' in macro parameter list");
+                PpToken t = tokens.get(i++);
+                if (t.is(")") && params.isEmpty()) break;
+                if (t.is("...")) {
+                    params.add("__VA_ARGS__");
+                    variadic = true;
+                } else if (t.kind() == IDENTIFIER) {
+                    if (params.contains(t.text())) throw error("duplicate macro parameter \"" + t.text() + "\"");
+                    params.add(t.text());
+                    if (i < tokens.size() && tokens.get(i).is("...")) {
+                        // GNU named variadic parameter
+                        variadic = true;
+                        i++;
+                    }
+                } else {
+                    throw error("expected parameter name, found \"" + t.text() + "\"");
+                }
+                if (i >= tokens.size()) throw error("missing ')' in macro parameter list");
+                PpToken sep = tokens.get(i++);
+                if (sep.is(")")) break;
+                if (variadic || !sep.is(",")) throw error("expected ',' or ')', found \"" + sep.text() + "\"");
+            }
+        }
+        List<PpToken> body = new ArrayList<>(tokens.subList(i, tokens.size()));
+        if (!body.isEmpty()) {
+            body.set(0, body.getFirst().withSpaceBefore(false));
+            if (body.getFirst().is("##") || body.getLast().is("##")) {
+                throw error("'##' cannot appear at either end of a macro expansion");
+            }
+        }
+        macros.put(name, new Macro(name, params == null ? null : List.copyOf(params), variadic, List.copyOf(body)));
+    }
+
+    private boolean isDefined(String name) {
+        return macros.containsKey(name) || name.equals("__LINE__") || name.equals("__FILE__")
+                || name.equals("__has_include") || name.equals("__has_include_next");
+    }
+
+    // ---------------------------------------------------------------- #include
+
+    private record HeaderName(String name, boolean quoted) {
+    }
+
+    private record Found(Path path, int dirIndex) {
+    }
+
+    private HeaderName headerName(List<PpToken> tokens) {
+        if (!tokens.isEmpty()) {
+            PpToken first = tokens.getFirst();
+            if (first.kind() == STRING) {
+                return new HeaderName(first.text().substring(1, first.text().length() - 1), true);
+            }
+            if (first.is("<")) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 1; i < tokens.size(); i++) {
+                    PpToken t = tokens.get(i);
+                    if (t.is(">")) return new HeaderName(sb.toString(), false);
+                    if (i > 1 && t.spaceBefore()) sb.append(' ');
+                    sb.append(t.text());
+                }
+            }
+        }
+        return null;
+    }
+
+    private Found find(FileState f, HeaderName header, boolean next) {
+        int start = 0;
+        if (next && f.dirIndex >= 0) {
+            start = f.dirIndex + 1;
+        } else if (header.quoted()) {
+            Path dir = f.path.toAbsolutePath().getParent();
+            Path p = dir == null ? Path.of(header.name()) : dir.resolve(header.name());
+            if (Files.isRegularFile(p)) return new Found(p.normalize(), -1);
+        }
+        for (int i = start; i < SYSTEM_INCLUDE_DIRS.size(); i++) {
+            Path p = SYSTEM_INCLUDE_DIRS.get(i).resolve(header.name());
+            if (Files.isRegularFile(p)) return new Found(p.normalize(), i);
+        }
+        return null;
+    }
+
+    private void include(FileState f, List<PpToken> tokens, boolean next) {
+        HeaderName header = headerName(tokens);
+        if (header == null) header = headerName(expand(new ArrayDeque<>(tokens), false));
+        if (header == null) throw error("#include expects \"FILENAME\" or <FILENAME>");
+        Found found = find(f, header, next);
+        if (found == null) throw error(header.name() + ": No such file or directory");
+        if (pragmaOnce.contains(found.path())) return;
+        CachedFile cached = HEADER_CACHE.compute(found.path(),
+                (path, old) -> old != null && old.modified().equals(lastModified(path)) ? old : load(path));
+        if (cached.guard() != null && macros.containsKey(cached.guard())) return;
+        if (includeStack.size() >= MAX_INCLUDE_DEPTH) throw error("#include nested too deeply");
+        includeStack.push(new FileState(found.path(), cached.lines(), null, found.dirIndex()));
+    }
+
+    private static CachedFile load(Path path) {
+        try {
+            FileTime modified = Files.getLastModifiedTime(path);
+            List<SourceLine> lines = PpTokenizer.tokenize(Files.readString(path));
+            return new CachedFile(lines, includeGuard(lines), modified);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * If the first directive of the file is #ifndef X and its #endif is the
+     * last line then X is the include guard.
+     */
+    private static String includeGuard(List<SourceLine> lines) {
+        if (lines.size() < 2) return null;
+        List<PpToken> first = lines.getFirst().tokens();
+        if (!lines.getFirst().isDirective() || first.size() != 3 || !first.get(1).text().equals("ifndef")) {
+            return null;
+        }
+        int depth = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            SourceLine line = lines.get(i);
+            if (!line.isDirective() || line.tokens().size() < 2) continue;
+            switch (line.tokens().get(1).text()) {
+                case "if", "ifdef", "ifndef" -> depth++;
+                case "endif" -> {
+                    depth--;
+                    if (depth == 0) return i == lines.size() - 1 ? first.get(2).text() : null;
+                }
+                case "else", "elif" -> {
+                    if (depth == 1) return null;
+                }
+                default -> {
+                }
+            }
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------- #if
+
+    private boolean evaluate(List<PpToken> tokens) {
+        List<PpToken> replaced = new ArrayList<>();
+        FileState f = includeStack.peek();
+        for (int i = 0; i < tokens.size(); i++) {
+            PpToken t = tokens.get(i);
+            if (t.kind() == IDENTIFIER && t.text().equals("defined")) {
+                boolean paren = i + 1 < tokens.size() && tokens.get(i + 1).is("(");
+                int nameIndex = paren ? i + 2 : i + 1;
+                if (nameIndex >= tokens.size() || tokens.get(nameIndex).kind() != IDENTIFIER) {
+                    throw error("operator \"defined\" requires an identifier");
+                }
+                if (paren && (nameIndex + 1 >= tokens.size() || !tokens.get(nameIndex + 1).is(")"))) {
+                    throw error("missing ')' after \"defined\"");
+                }
+                replaced.add(new PpToken(NUMBER, isDefined(tokens.get(nameIndex).text()) ? "1" : "0", t.spaceBefore()));
+                i = paren ? nameIndex + 1 : nameIndex;
+            } else if (t.kind() == IDENTIFIER && (t.text().equals("__has_include") || t.text().equals("__has_include_next"))) {
+                if (i + 1 >= tokens.size() || !tokens.get(i + 1).is("(")) {
+                    throw error("missing '(' after \"" + t.text() + "\"");
+                }
+                int close = i + 2;
+                while (close < tokens.size() && !tokens.get(close).is(")")) close++;
+                if (close >= tokens.size()) throw error("missing ')' after \"" + t.text() + "\"");
+                List<PpToken> arg = tokens.subList(i + 2, close);
+                HeaderName header = headerName(arg);
+                if (header == null) header = headerName(expand(new ArrayDeque<>(arg), false));
+                if (header == null) throw error("operator \"" + t.text() + "\" requires a header-name");
+                boolean found = find(f, header, t.text().equals("__has_include_next")) != null;
+                replaced.add(new PpToken(NUMBER, found ? "1" : "0", t.spaceBefore()));
+                i = close;
+            } else {
+                replaced.add(t);
+            }
+        }
+        return PpExpression.evaluate(expand(new ArrayDeque<>(replaced), false)) != 0;
+    }
+
+    // ---------------------------------------------------------------- expansion
+
+    /**
+     * Macro expand tokens. If moreLines is set, the arguments of a function
+     * like macro invocation may continue on the following lines of the
+     * current file.
+     */
+    private List<PpToken> expand(ArrayDeque<PpToken> in, boolean moreLines) {
+        List<PpToken> result = new ArrayList<>();
+        PpToken t;
+        while ((t = in.poll()) != null) {
+            if (t.kind() != IDENTIFIER || t.hideSet().contains(t.text())) {
+                result.add(t);
+                continue;
+            }
+            Macro m = macros.get(t.text());
+            if (m == null) {
+                switch (t.text()) {
+                    case "__LINE__" -> result.add(new PpToken(NUMBER,
+                            Integer.toString(currentLine + includeStack.peek().lineDelta), t.spaceBefore()));
+                    case "__FILE__" -> result.add(new PpToken(STRING,
+                            stringLiteral(includeStack.peek().presumedName), t.spaceBefore()));
+                    case "_Pragma" -> {
+                        if (peek(in, moreLines) != null && in.peek().is("(")) {
+                            // pragmas don't affect code generation, drop the operator
+                            readArguments(in, moreLines, t);
+                        } else {
+                            result.add(t);
+                        }
+                    }
+                    default -> result.add(t);
+                }
+                continue;
+            }
+            List<PpToken> body;
+            if (m.isFunctionLike()) {
+                PpToken next = peek(in, moreLines);
+                if (next == null || !next.is("(")) {
+                    result.add(t);
+                    continue;
+                }
+                in.poll();
+                ArgumentList args = readArguments(in, moreLines, t);
+                Set<String> hs = union(intersection(t.hideSet(), args.closeParen().hideSet()), m.name());
+                body = subst(m, arguments(m, args.args()), hs);
+            } else {
+                body = subst(m, List.of(), union(t.hideSet(), m.name()));
+            }
+            if (!body.isEmpty()) body.set(0, body.getFirst().withSpaceBefore(t.spaceBefore()));
+            for (int i = body.size() - 1; i >= 0; i--) in.addFirst(body.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * The next token of in without removing it, pulling another line from
+     * the current file into in if in is empty and moreLines is set.
+     */
+    private PpToken peek(ArrayDeque<PpToken> in, boolean moreLines) {
+        while (in.isEmpty() && moreLines) {
+            FileState f = includeStack.peek();
+            SourceLine next = f.peekLine();
+            if (next == null || next.isDirective()) return null;
+            List<PpToken> line = f.takeLine().tokens();
+            in.add(line.getFirst().withSpaceBefore(true));
+            in.addAll(line.subList(1, line.size()));
+        }
+        return in.peek();
+    }
+
+    private record ArgumentList(List<List<PpToken>> args, PpToken closeParen) {
+    }
+
+    /**
+     * Read the arguments of a macro invocation, the opening parenthesis
+     * has already been consumed.
+     */
+    private ArgumentList readArguments(ArrayDeque<PpToken> in, boolean moreLines, PpToken macroName) {
+        List<List<PpToken>> args = new ArrayList<>();
+        List<PpToken> arg = new ArrayList<>();
+        int depth = 0;
+        while (true) {
+            if (peek(in, moreLines) == null) {
+                throw error("unterminated argument list invoking macro \"" + macroName.text() + "\"");
+            }
+            PpToken t = in.poll();
+            if (depth == 0 && t.is(")")) {
+                args.add(arg);
+                return new ArgumentList(args, t);
+            }
+            if (depth == 0 && t.is(",")) {
+                args.add(arg);
+                arg = new ArrayList<>();
+                continue;
+            }
+            if (t.is("(")) depth++;
+            else if (t.is(")")) depth--;
+            arg.add(t);
+        }
+    }
+
+    /**
+     * Match the arguments read to the macro's parameters, folding the extra
+     * arguments of a variadic macro back into one.
+     */
+    private List<List<PpToken>> arguments(Macro m, List<List<PpToken>> args) {
+        int n = m.params().size();
+        if (n == 0 && args.size() == 1 && args.getFirst().isEmpty()) return List.of();
+        if (m.variadic()) {
+            if (args.size() == n - 1) {
+                args = new ArrayList<>(args);
+                args.add(new ArrayList<>());
+            } else if (args.size() > n) {
+                List<List<PpToken>> folded = new ArrayList<>(args.subList(0, n - 1));
+                List<PpToken> rest = new ArrayList<>();
+                for (int i = n - 1; i < args.size(); i++) {
+                    if (i > n - 1) rest.add(new PpToken(PUNCTUATOR, ",", false));
+                    rest.addAll(args.get(i));
+                }
+                folded.add(rest);
+                args = folded;
+            }
+        }
+        if (args.size() != n) {
+            throw error("macro \"" + m.name() + "\" passed " + args.size() + " arguments, but takes " + n);
+        }
+        return args;
+    }
+
+    private List<PpToken> subst(Macro m, List<List<PpToken>> args, Set<String> hs) {
+        List<PpToken> body = m.body();
+        List<PpToken> result = new ArrayList<>();
+        for (int i = 0; i < body.size(); i++) {
+            PpToken t = body.get(i);
+            int param = paramIndex(m, t);
+            boolean pasteNext = i + 1 < body.size() && body.get(i + 1).is("##");
+            if (m.isFunctionLike() && t.is("#") && i + 1 < body.size() && paramIndex(m, body.get(i + 1)) >= 0) {
+                List<PpToken> arg = args.get(paramIndex(m, body.get(++i)));
+                result.add(new PpToken(STRING, stringize(arg), t.spaceBefore()));
+            } else if (t.is(",") && pasteNext && i + 2 < body.size() && m.variadic()
+                    && paramIndex(m, body.get(i + 2)) == m.params().size() - 1) {
+                // GNU: , ## __VA_ARGS__ drops the comma when there are no
+                // variable arguments
+                List<PpToken> arg = args.getLast();
+                if (!arg.isEmpty()) {
+                    result.add(t);
+                    result.addAll(arg);
+                }
+                i += 2;
+            } else if (t.is("##")) {
+                PpToken next = body.get(++i);
+                int nextParam = paramIndex(m, next);
+                List<PpToken> right = nextParam < 0 ? List.of(next) : args.get(nextParam);
+                if (right.isEmpty()) right = List.of(PLACEMARKER);
+                PpToken left = result.removeLast();
+                result.add(paste(left, right.getFirst()));
+                result.addAll(right.subList(1, right.size()));
+            } else if (param >= 0) {
+                List<PpToken> arg = pasteNext ? args.get(param) : expand(new ArrayDeque<>(args.get(param)), false);
+                if (arg.isEmpty()) {
+                    if (pasteNext) result.add(PLACEMARKER);
+                } else {
+                    result.add(arg.getFirst().withSpaceBefore(t.spaceBefore()));
+                    result.addAll(arg.subList(1, arg.size()));
+                }
+            } else {
+                result.add(t);
+            }
+        }
+        List<PpToken> withHideSet = new ArrayList<>(result.size());
+        for (PpToken t : result) {
+            if (t != PLACEMARKER) withHideSet.add(t.withHideSet(union(t.hideSet(), hs)));
+        }
+        return withHideSet;
+    }
+
+    private static int paramIndex(Macro m, PpToken t) {
+        return m.isFunctionLike() && t.kind() == IDENTIFIER ? m.params().indexOf(t.text()) : -1;
+    }
+
+    private PpToken paste(PpToken left, PpToken right) {
+        if (left == PLACEMARKER) return right;
+        if (right == PLACEMARKER) return left;
+        List<PpToken> pasted = PpTokenizer.tokenizeFragment(left.text() + right.text());
+        if (pasted.size() != 1) {
+            throw error("pasting \"" + left.text() + "\" and \"" + right.text()
+                    + "\" does not give a valid preprocessing token");
+        }
+        return pasted.getFirst().withSpaceBefore(left.spaceBefore());
+    }
+
+    private static String stringize(List<PpToken> arg) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < arg.size(); i++) {
+            PpToken t = arg.get(i);
+            if (i > 0 && t.spaceBefore()) sb.append(' ');
+            if (t.kind() == STRING || t.kind() == CHAR) {
+                for (char c : t.text().toCharArray()) {
+                    if (c == '"' || c == '\\') sb.append('\\');
+                    sb.append(c);
+                }
+            } else {
+                sb.append(t.text());
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String stringLiteral(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static Set<String> union(Set<String> set, String name) {
+        if (set.contains(name)) return set;
+        if (set.isEmpty()) return Set.of(name);
+        HashSet<String> result = new HashSet<>(set);
+        result.add(name);
+        return result;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || a == b) return b;
+        if (b.isEmpty()) return a;
+        HashSet<String> result = new HashSet<>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    private static Set<String> intersection(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) return Set.of();
+        HashSet<String> result = new HashSet<>(a);
+        result.retainAll(b);
+        return result;
+    }
+}
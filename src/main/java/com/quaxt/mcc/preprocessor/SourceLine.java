@@ -0,0 +1,13 @@
+package com.quaxt.mcc.preprocessor;
+
+import java.util.List;
+
+/**
+ * A logical source line (after splicing and comment removal) split into
+ * preprocessing tokens. lineNumber is the physical line it starts on.
+ */
+public record SourceLine(int lineNumber, List<PpToken> tokens) {
+    public boolean isDirective() {
+        return !tokens.isEmpty() && tokens.getFirst().is("#");
+    }
+}
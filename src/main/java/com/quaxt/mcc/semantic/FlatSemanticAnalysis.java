@@ -0,0 +1,603 @@
+package com.quaxt.mcc.semantic;
+
+import com.quaxt.mcc.*;
+import com.quaxt.mcc.parser.FlatAst;
+import com.quaxt.mcc.parser.StorageClass;
+
+import java.util.List;
+
+import static com.quaxt.mcc.ArithmeticOperator.*;
+import static com.quaxt.mcc.IdentifierAttributes.LocalAttr.LOCAL_ATTR;
+import static com.quaxt.mcc.InitialValue.NoInitializer.NO_INITIALIZER;
+import static com.quaxt.mcc.InitialValue.Tentative.TENTATIVE;
+import static com.quaxt.mcc.parser.FlatAst.Kind.*;
+import static com.quaxt.mcc.parser.FlatAst.NONE;
+import static com.quaxt.mcc.parser.StorageClass.EXTERN;
+import static com.quaxt.mcc.parser.StorageClass.STATIC;
+import static com.quaxt.mcc.semantic.Primitive.*;
+
+/**
+ * Identifier resolution, type checking and loop labelling for a
+ * {@link FlatAst}, as three passes. They make the same temporaries and
+ * symbol table entries as {@link FusedSemanticAnalysis}, but write unique
+ * names, types and loop labels into the existing nodes instead of building
+ * a new tree.
+ */
+public class FlatSemanticAnalysis {
+
+    public static void resolveProgram(CompilationContext ctx, FlatAst ast) {
+        IdentifierMap identifierMap = new IdentifierMap();
+        for (int i = 0; i < ast.topLevelCount(); i++) {
+            int decl = ast.topLevel(i);
+            if (ast.kind(decl) == FUNCTION) {
+                resolveFunctionDeclaration(ctx, ast, decl, identifierMap);
+            } else {
+                String name = ast.nameOf(decl);
+                identifierMap.put(name, name, true);
+            }
+        }
+    }
+
+    private static void resolveFunctionDeclaration(CompilationContext ctx, FlatAst ast, int function, IdentifierMap identifierMap) {
+        String name = ast.nameOf(function);
+        if (identifierMap.get(name) instanceof IdentifierMap.Entry previousEntry) {
+            if (identifierMap.fromCurrentScope(previousEntry) && !previousEntry.hasLinkage()) {
+                throw new RuntimeException("Duplicate declaration: " + name);
+            }
+        }
+        identifierMap.put(name, name, true);
+        identifierMap.enterScope();
+        int paramCount = ast.edge(function, 2);
+        for (int i = 0; i < paramCount; i++) {
+            String param = ast.name(ast.edge(function, 3 + i));
+            if (identifierMap.get(param) instanceof IdentifierMap.Entry e && identifierMap.fromCurrentScope(e)) {
+                fail("Duplicate variable declaration");
+            }
+            String uniqueName = ctx.makeTemporary(param + ".");
+            identifierMap.put(param, uniqueName, false);
+            ast.setEdge(function, 3 + i, ast.nameId(uniqueName));
+        }
+        int body = ast.edge(function, 1);
+        if (body != NONE) resolveBlock(ctx, ast, body, identifierMap);
+        identifierMap.exitScope();
+    }
+
+    private static void resolveBlock(CompilationContext ctx, FlatAst ast, int block, IdentifierMap identifierMap) {
+        int n = ast.edge(block, 0);
+        for (int i = 1; i <= n; i++) {
+            int item = ast.edge(block, i);
+            switch (ast.kind(item)) {
+                case VAR_DECL -> resolveLocalVariableDeclaration(ctx, ast, item, identifierMap);
+                case FUNCTION -> resolveFunctionDeclaration(ctx, ast, item, identifierMap);
+                default -> resolveStatement(ctx, ast, item, identifierMap);
+            }
+        }
+    }
+
+    private static void resolveStatement(CompilationContext ctx, FlatAst ast, int statement, IdentifierMap identifierMap) {
+        if (statement == NONE) return;
+        switch (ast.kind(statement)) {
+            case RETURN -> resolveExp(ctx, ast, ast.edge(statement, 0), identifierMap);
+            case IF -> {
+                resolveExp(ctx, ast, ast.edge(statement, 0), identifierMap);
+                resolveStatement(ctx, ast, ast.edge(statement, 1), identifierMap);
+                resolveStatement(ctx, ast, ast.edge(statement, 2), identifierMap);
+            }
+            case BLOCK -> {
+                identifierMap.enterScope();
+                resolveBlock(ctx, ast, statement, identifierMap);
+                identifierMap.exitScope();
+            }
+            case NULL_STATEMENT, BREAK, CONTINUE -> {
+            }
+            case DO_WHILE -> {
+                resolveStatement(ctx, ast, ast.edge(statement, 0), identifierMap);
+                resolveExp(ctx, ast, ast.edge(statement, 1), identifierMap);
+            }
+            case FOR -> {
+                identifierMap.enterScope();
+                int init = ast.edge(statement, 0);
+                if (init != NONE && ast.kind(init) == VAR_DECL) {
+                    resolveLocalVariableDeclaration(ctx, ast, init, identifierMap);
+                } else {
+                    resolveExp(ctx, ast, init, identifierMap);
+                }
+                resolveExp(ctx, ast, ast.edge(statement, 1), identifierMap);
+                resolveExp(ctx, ast, ast.edge(statement, 2), identifierMap);
+                resolveStatement(ctx, ast, ast.edge(statement, 3), identifierMap);
+                identifierMap.exitScope();
+            }
+            case WHILE -> {
+                resolveExp(ctx, ast, ast.edge(statement, 0), identifierMap);
+                resolveStatement(ctx, ast, ast.edge(statement, 1), identifierMap);
+            }
+            default -> resolveExp(ctx, ast, statement, identifierMap);
+        }
+    }
+
+    private static void resolveLocalVariableDeclaration(CompilationContext ctx, FlatAst ast, int decl, IdentifierMap identifierMap) {
+        String name = ast.nameOf(decl);
+        StorageClass storageClass = ast.storageClass(decl);
+        if (identifierMap.get(name) instanceof IdentifierMap.Entry prevEntry) {
+            if (identifierMap.fromCurrentScope(prevEntry)) {
+                if (!(prevEntry.hasLinkage() && storageClass == EXTERN)) {
+                    fail("Conflicting local declaration");
+                }
+            }
+        }
+        if (storageClass == EXTERN) {
+            identifierMap.put(name, name, true);
+            return;
+        }
+        String uniqueName = ctx.makeTemporary(name + ".");
+        identifierMap.put(name, uniqueName, false);
+        ast.setData(decl, ast.nameId(uniqueName));
+        resolveExp(ctx, ast, ast.edge(decl, 1), identifierMap);
+    }
+
+    private static void resolveExp(CompilationContext ctx, FlatAst ast, int exp, IdentifierMap identifierMap) {
+        if (exp == NONE) return;
+        switch (ast.kind(exp)) {
+            case ASSIGNMENT -> {
+                if (ast.kind(ast.edge(exp, 0)) != IDENTIFIER) fail("Invalid lvalue");
+                resolveExp(ctx, ast, ast.edge(exp, 0), identifierMap);
+                resolveExp(ctx, ast, ast.edge(exp, 1), identifierMap);
+            }
+            case BINARY_OP -> {
+                resolveExp(ctx, ast, ast.edge(exp, 0), identifierMap);
+                resolveExp(ctx, ast, ast.edge(exp, 1), identifierMap);
+            }
+            case UNARY_OP, CAST -> resolveExp(ctx, ast, ast.edge(exp, 0), identifierMap);
+            case IDENTIFIER -> {
+                if (identifierMap.get(ast.nameOf(exp)) instanceof IdentifierMap.Entry e) {
+                    ast.setData(exp, ast.nameId(e.name()));
+                } else {
+                    fail("Undeclared variable:" + ast.nameOf(exp));
+                }
+            }
+            case CONDITIONAL -> {
+                resolveExp(ctx, ast, ast.edge(exp, 0), identifierMap);
+                resolveExp(ctx, ast, ast.edge(exp, 1), identifierMap);
+                resolveExp(ctx, ast, ast.edge(exp, 2), identifierMap);
+            }
+            case FUNCTION_CALL -> {
+                if (identifierMap.get(ast.nameOf(exp)) instanceof IdentifierMap.Entry newFunctionName) {
+                    ast.setData(exp, ast.nameId(newFunctionName.name()));
+                } else {
+                    fail("Undeclared function:" + ast.nameOf(exp));
+                }
+                int n = ast.edge(exp, 0);
+                for (int i = 1; i <= n; i++) resolveExp(ctx, ast, ast.edge(exp, i), identifierMap);
+            }
+            default -> {
+                // constants
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- type checking
+
+    public static void typeCheckProgram(CompilationContext ctx, FlatAst ast) {
+        TypeChecker typeChecker = new TypeChecker(ctx, ast);
+        for (int i = 0; i < ast.topLevelCount(); i++) {
+            int decl = ast.topLevel(i);
+            if (ast.kind(decl) == FUNCTION) {
+                typeChecker.typeCheckFunctionDeclaration(decl, false);
+            } else {
+                typeChecker.typeCheckFileScopeVariableDeclaration(decl);
+            }
+        }
+    }
+
+    private static InitialValue staticInit(FlatAst ast, int constant) {
+        long v = ast.constValue(constant);
+        return switch (ast.kind(constant)) {
+            case CONST_INT -> new IntInit((int) v);
+            case CONST_LONG -> new LongInit(v);
+            case CONST_UINT -> new UIntInit((int) v);
+            case CONST_ULONG -> new ULongInit(v);
+            case CONST_DOUBLE -> new DoubleInit(Double.longBitsToDouble(v));
+            default -> null;
+        };
+    }
+
+    /**
+     * Type checks expressions, returning the type it gave the node.
+     */
+    private static final class TypeChecker implements FlatAst.Visitor<Type> {
+        private final CompilationContext ctx;
+        private final FlatAst ast;
+        private int enclosingFunction;
+
+        TypeChecker(CompilationContext ctx, FlatAst ast) {
+            this.ctx = ctx;
+            this.ast = ast;
+        }
+
+        private void typeCheckFileScopeVariableDeclaration(int decl) {
+            String name = ast.nameOf(decl);
+            Type varType = ast.type(decl);
+            StorageClass storageClass = ast.storageClass(decl);
+            int init = ast.edge(decl, 1);
+            InitialValue initialValue;
+            if (init == NONE) {
+                initialValue = storageClass == EXTERN ? NO_INITIALIZER : TENTATIVE;
+            } else if (staticInit(ast, init) instanceof InitialValue i) {
+                initialValue = SemanticAnalysis.convertConst(i, varType);
+            } else {
+                throw new RuntimeException("Non constant initializer");
+            }
+            boolean global = storageClass != STATIC;
+            if (ctx.symbolTable().get(name) instanceof SymbolTableEntry oldDecl) {
+                if (oldDecl.type() != varType)
+                    fail("variable declared with inconsistent type");
+                if (storageClass == EXTERN)
+                    global = oldDecl.attrs().global();
+                else if (oldDecl.attrs().global() != global)
+                    fail("conflicting variable linkage");
+
+                if (oldDecl.attrs() instanceof StaticAttributes(
+                        InitialValue oldInit, boolean _)) {
+                    if (oldInit instanceof StaticInit oldInitialConstant) {
+                        if (initialValue instanceof StaticInit)
+                            fail("Conflicting file scope variable definitions");
+                        else initialValue = oldInitialConstant;
+                    } else if (!(initialValue instanceof StaticInit) && oldInit == TENTATIVE)
+                        initialValue = TENTATIVE;
+                }
+            }
+            ctx.symbolTable().put(name, new SymbolTableEntry(varType, new StaticAttributes(initialValue, global)));
+        }
+
+        private void typeCheckFunctionDeclaration(int decl, boolean blockScope) {
+            String name = ast.nameOf(decl);
+            StorageClass storageClass = ast.storageClass(decl);
+            FunType funType = ast.funType(decl);
+            int body = ast.edge(decl, 1);
+            if (blockScope && storageClass == STATIC) {
+                fail("invalid storage class for block scope function declaration ‘" + name + "’");
+            }
+            boolean defined = body != NONE;
+            boolean global = storageClass != STATIC;
+            SymbolTableEntry oldEntry = ctx.symbolTable().get(name);
+            boolean alreadyDefined = false;
+            if (oldEntry != null) {
+                if (oldEntry.type() instanceof FunType oldType) {
+                    alreadyDefined = oldEntry.attrs().defined();
+                    if (alreadyDefined && defined)
+                        fail("already defined: " + name);
+
+                    if (oldEntry.attrs().global() && storageClass == STATIC)
+                        fail("Static function declaration follows non-static");
+                    global = oldEntry.attrs().global();
+                    if (!funType.equals(oldType))
+                        fail("Incompatible function declarations for " + name);
+                } else {
+                    fail("Incompatible function declarations for " + name);
+                }
+            }
+            ctx.symbolTable().put(name, new SymbolTableEntry(funType, new FunAttributes(alreadyDefined || defined, global)));
+            if (body != NONE) {
+                int paramCount = ast.edge(decl, 2);
+                for (int i = 0; i < paramCount; i++) {
+                    ctx.symbolTable().put(ast.name(ast.edge(decl, 3 + i)), new SymbolTableEntry(funType.params().get(i), LOCAL_ATTR));
+                }
+                int outer = enclosingFunction;
+                enclosingFunction = decl;
+                typeCheckStatement(body);
+                enclosingFunction = outer;
+            }
+        }
+
+        private void typeCheckStatement(int statement) {
+            if (statement == NONE) return;
+            switch (ast.kind(statement)) {
+                case VAR_DECL -> typeCheckLocalVariableDeclaration(statement);
+                case FUNCTION -> {
+                    if (ast.edge(statement, 1) != NONE)
+                        throw new RuntimeException("nested function definition not allowed");
+                    typeCheckFunctionDeclaration(statement, true);
+                }
+                case BLOCK -> {
+                    int n = ast.edge(statement, 0);
+                    for (int i = 1; i <= n; i++) typeCheckStatement(ast.edge(statement, i));
+                }
+                case DO_WHILE -> {
+                    typeCheckStatement(ast.edge(statement, 0));
+                    typeCheckExpression(ast.edge(statement, 1));
+                }
+                case FOR -> {
+                    int init = ast.edge(statement, 0);
+                    if (init != NONE && ast.kind(init) == VAR_DECL) {
+                        typeCheckLocalVariableDeclaration(init);
+                    } else {
+                        typeCheckExpression(init);
+                    }
+                    typeCheckExpression(ast.edge(statement, 1));
+                    typeCheckExpression(ast.edge(statement, 2));
+                    typeCheckStatement(ast.edge(statement, 3));
+                }
+                case IF -> {
+                    typeCheckExpression(ast.edge(statement, 0));
+                    typeCheckStatement(ast.edge(statement, 1));
+                    typeCheckStatement(ast.edge(statement, 2));
+                }
+                case RETURN -> {
+                    Type returnType = ast.funType(enclosingFunction).ret();
+                    typeCheckExpression(ast.edge(statement, 0));
+                    convertTo(statement, 0, returnType);
+                }
+                case WHILE -> {
+                    typeCheckExpression(ast.edge(statement, 0));
+                    typeCheckStatement(ast.edge(statement, 1));
+                }
+                case NULL_STATEMENT, CONTINUE, BREAK -> {
+                }
+                default -> typeCheckExpression(statement);
+            }
+        }
+
+        private void typeCheckLocalVariableDeclaration(int decl) {
+            String name = ast.nameOf(decl);
+            Type varType = ast.type(decl);
+            StorageClass storageClass = ast.storageClass(decl);
+            int init = ast.edge(decl, 1);
+            if (storageClass == EXTERN) {
+                if (init != NONE)
+                    fail("Initializer on local extern variable declaration");
+                if (ctx.symbolTable().get(name) instanceof SymbolTableEntry(
+                        Type oldType, IdentifierAttributes _)) {
+                    if (oldType != varType)
+                        fail("inconsistent variable redefenition");
+                } else {
+                    ctx.symbolTable().put(name, new SymbolTableEntry(INT, new StaticAttributes(NO_INITIALIZER, true)));
+                }
+            } else if (storageClass == STATIC) {
+                InitialValue initialValue;
+                if (init == NONE) {
+                    initialValue = new IntInit(0);
+                } else if (staticInit(ast, init) instanceof InitialValue i) {
+                    initialValue = i;
+                } else {
+                    throw new RuntimeException("Non-constant initializer on local static variable");
+                }
+                initialValue = SemanticAnalysis.convertConst(initialValue, varType);
+                ctx.symbolTable().put(name, new SymbolTableEntry(INT, new StaticAttributes(initialValue, false)));
+                ast.setEdge(decl, 1, switch (initialValue) {
+                    case IntInit(int i) -> ast.addConstant(CONST_INT, INT, i);
+                    case LongInit(long l) -> ast.addConstant(CONST_LONG, LONG, l);
+                    case UIntInit(int i) -> ast.addConstant(CONST_UINT, UINT, i);
+                    case ULongInit(long l) -> ast.addConstant(CONST_ULONG, ULONG, l);
+                    default -> NONE;
+                });
+            } else {
+                ctx.symbolTable().put(name, new SymbolTableEntry(varType, LOCAL_ATTR));
+                if (init != NONE) {
+                    typeCheckExpression(init);
+                    convertTo(decl, 1, varType);
+                }
+            }
+        }
+
+        private Type typeCheckExpression(int exp) {
+            return exp == NONE ? null : ast.accept(exp, this);
+        }
+
+        /**
+         * Wrap edge i of node in a cast to t unless it already has type t.
+         */
+        private void convertTo(int node, int i, Type t) {
+            int e = ast.edge(node, i);
+            if (e == NONE || ast.type(e) == t) return;
+            ast.setEdge(node, i, ast.addCast(t, e));
+        }
+
+        private Type setType(int node, Type t) {
+            ast.setType(node, t);
+            return t;
+        }
+
+        @Override
+        public Type assignment(int node) {
+            Type leftType = typeCheckExpression(ast.edge(node, 0));
+            typeCheckExpression(ast.edge(node, 1));
+            convertTo(node, 1, leftType);
+            return setType(node, leftType);
+        }
+
+        @Override
+        public Type binaryOp(int node) {
+            BinaryOperator op = ast.binaryOperator(node);
+            Type t1 = typeCheckExpression(ast.edge(node, 0));
+            Type t2 = typeCheckExpression(ast.edge(node, 1));
+            if (op == AND || op == OR) {
+                return setType(node, INT);
+            }
+            if (op == REMAINDER && (t1 == DOUBLE || t2 == DOUBLE)) {
+                fail("invalid operands to binary % (have ‘" + t1 + "’ and ‘" + t2 + "’");
+            }
+            Type commonType = SemanticAnalysis.getCommonType(t1, t2);
+            convertTo(node, 0, commonType);
+            convertTo(node, 1, commonType);
+            return setType(node, switch (op) {
+                case SUB, ADD, IMUL, DIVIDE, REMAINDER -> commonType;
+                default -> INT;
+            });
+        }
+
+        @Override
+        public Type cast(int node) {
+            typeCheckExpression(ast.edge(node, 0));
+            return ast.type(node);
+        }
+
+        @Override
+        public Type conditional(int node) {
+            typeCheckExpression(ast.edge(node, 0));
+            Type t1 = typeCheckExpression(ast.edge(node, 1));
+            Type t2 = typeCheckExpression(ast.edge(node, 2));
+            Type commonType = SemanticAnalysis.getCommonType(t1, t2);
+            convertTo(node, 1, commonType);
+            convertTo(node, 2, commonType);
+            return setType(node, commonType);
+        }
+
+        @Override
+        public Type constant(int node) {
+            return ast.type(node);
+        }
+
+        @Override
+        public Type functionCall(int node) {
+            String name = ast.nameOf(node);
+            if (!(ctx.symbolTable().get(name).type() instanceof FunType(List<Type> params, Type ret))) {
+                fail("variable " + name + " used as function");
+                return null;
+            }
+            int argCount = ast.edge(node, 0);
+            if (params.size() != argCount)
+                fail("Function called with wrong number of arguments");
+            for (int i = 0; i < params.size(); i++) {
+                typeCheckExpression(ast.edge(node, 1 + i));
+                convertTo(node, 1 + i, params.get(i));
+            }
+            return setType(node, ret);
+        }
+
+        @Override
+        public Type identifier(int node) {
+            String name = ast.nameOf(node);
+            Type t = ctx.symbolTable().get(name).type();
+            if (t instanceof FunType)
+                fail("Function " + name + " used as a variable");
+            return setType(node, t);
+        }
+
+        @Override
+        public Type unaryOp(int node) {
+            UnaryOperator op = ast.unaryOperator(node);
+            Type innerType = typeCheckExpression(ast.edge(node, 0));
+            if (op == UnaryOperator.BITWISE_NOT && innerType == DOUBLE) {
+                fail("can't apply ~ to double");
+            }
+            return setType(node, op == UnaryOperator.NOT ? INT : innerType);
+        }
+
+        private Type notAnExpression(int node) {
+            throw new IllegalStateException("not an expression: " + ast.kind(node));
+        }
+
+        @Override
+        public Type function(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type varDecl(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type block(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type returnStatement(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type ifStatement(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type whileLoop(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type doWhile(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type forLoop(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type breakStatement(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type continueStatement(int node) {
+            return notAnExpression(node);
+        }
+
+        @Override
+        public Type nullStatement(int node) {
+            return notAnExpression(node);
+        }
+    }
+
+    // ---------------------------------------------------------------- loop labels
+
+    public static void loopLabelProgram(CompilationContext ctx, FlatAst ast) {
+        for (int i = 0; i < ast.topLevelCount(); i++) {
+            int decl = ast.topLevel(i);
+            if (ast.kind(decl) == FUNCTION) loopLabelStatement(ctx, ast, ast.edge(decl, 1), NONE);
+        }
+    }
+
+    private static void loopLabelStatement(CompilationContext ctx, FlatAst ast, int statement, int currentLabel) {
+        if (statement == NONE) return;
+        switch (ast.kind(statement)) {
+            case BLOCK -> {
+                int n = ast.edge(statement, 0);
+                for (int i = 1; i <= n; i++) loopLabelStatement(ctx, ast, ast.edge(statement, i), currentLabel);
+            }
+            case BREAK -> {
+                if (currentLabel == NONE) {
+                    fail("break statement outside of loop");
+                }
+                ast.setData(statement, currentLabel);
+            }
+            case CONTINUE -> {
+                if (currentLabel == NONE) {
+                    fail("continue statement outside of loop");
+                }
+                ast.setData(statement, currentLabel);
+            }
+            case DO_WHILE -> {
+                int newLabel = ast.nameId(ctx.makeTemporary("do"));
+                ast.setData(statement, newLabel);
+                loopLabelStatement(ctx, ast, ast.edge(statement, 0), newLabel);
+            }
+            case FOR -> {
+                int newLabel = ast.nameId(ctx.makeTemporary("for"));
+                ast.setData(statement, newLabel);
+                loopLabelStatement(ctx, ast, ast.edge(statement, 3), newLabel);
+            }
+            case WHILE -> {
+                int newLabel = ast.nameId(ctx.makeTemporary("while"));
+                ast.setData(statement, newLabel);
+                loopLabelStatement(ctx, ast, ast.edge(statement, 1), newLabel);
+            }
+            case IF -> {
+                loopLabelStatement(ctx, ast, ast.edge(statement, 1), currentLabel);
+                loopLabelStatement(ctx, ast, ast.edge(statement, 2), currentLabel);
+            }
+            default -> {
+                // declarations, expressions, return and null statements
+                // contain no loops
+            }
+        }
+    }
+
+    private static void fail(String s) {
+        throw new RuntimeException(s);
+    }
+}
@@ -0,0 +1,285 @@
+package com.quaxt.mcc.semantic;
+
+import com.quaxt.mcc.*;
+import com.quaxt.mcc.parser.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.quaxt.mcc.ArithmeticOperator.*;
+import static com.quaxt.mcc.IdentifierAttributes.LocalAttr.LOCAL_ATTR;
+import static com.quaxt.mcc.parser.StorageClass.EXTERN;
+import static com.quaxt.mcc.parser.StorageClass.STATIC;
+import static com.quaxt.mcc.semantic.Primitive.*;
+import static com.quaxt.mcc.semantic.SemanticAnalysis.*;
+
+/**
+ * Identifier resolution, type checking and loop labelling in one walk that
+ * allocates each node of the result once.
+ * <p>
+ * Every unique variable name is numbered before any loop label, as separate
+ * passes would number them and as {@link FlatSemanticAnalysis} does, so a
+ * cheap walk over the statements first counts both and reserves that range
+ * of temporaries.
+ */
+public class FusedSemanticAnalysis {
+    private final CompilationContext ctx;
+    private final SemanticAnalysis semanticAnalysis;
+    private final IdentifierMap identifierMap = new IdentifierMap();
+    private long nextVariable;
+    private long nextLoop;
+
+    private FusedSemanticAnalysis(CompilationContext ctx, long firstVariable, long firstLoop) {
+        this.ctx = ctx;
+        semanticAnalysis = new SemanticAnalysis(ctx);
+        nextVariable = firstVariable;
+        nextLoop = firstLoop;
+    }
+
+    public static Program analyzeProgram(CompilationContext ctx, Program program) {
+        ArrayList<Declaration> decls = program.declarations();
+        int variables = 0;
+        int loops = 0;
+        for (Declaration d : decls) {
+            if (d instanceof Function f) {
+                long counts = countFunction(f);
+                variables += (int) (counts >>> 32);
+                loops += (int) counts;
+            }
+        }
+        long first = ctx.reserveTemporaries(variables + loops);
+        FusedSemanticAnalysis analysis = new FusedSemanticAnalysis(ctx, first, first + variables);
+        for (int i = 0; i < decls.size(); i++) {
+            switch (decls.get(i)) {
+                case Function f -> decls.set(i, analysis.analyzeFunction(f, false));
+                case VarDecl varDecl -> {
+                    analysis.identifierMap.put(varDecl.name(), varDecl.name(), true);
+                    decls.set(i, analysis.semanticAnalysis.typeCheckFileScopeVariableDeclaration(varDecl));
+                }
+            }
+        }
+        return program;
+    }
+
+    // the number of unique variable names a function needs in the high word
+    // and of loop labels in the low word
+    private static long countFunction(Function function) {
+        return ((long) function.parameters().size() << 32) + countStatement(function.body());
+    }
+
+    private static long countStatement(BlockItem item) {
+        return switch (item) {
+            case null -> 0;
+            case VarDecl d -> d.storageClass() == EXTERN ? 0 : 1L << 32;
+            case Function f -> countFunction(f);
+            case Block block -> {
+                long counts = 0;
+                for (BlockItem i : block.blockItems()) counts += countStatement(i);
+                yield counts;
+            }
+            case If(Exp _, Statement ifTrue, Statement ifFalse) ->
+                    countStatement(ifTrue) + countStatement(ifFalse);
+            case DoWhile(Statement body, Exp _, String _) -> 1 + countStatement(body);
+            case While(Exp _, Statement body, String _) -> 1 + countStatement(body);
+            case For(ForInit init, Exp _, Exp _, Statement body, String _) ->
+                    1 + (init instanceof VarDecl d ? countStatement(d) : 0) + countStatement(body);
+            default -> 0;
+        };
+    }
+
+    private String variableName(String name) {
+        return name + "." + nextVariable++;
+    }
+
+    private String loopLabel(String prefix) {
+        return prefix + nextLoop++;
+    }
+
+    private Function analyzeFunction(Function function, boolean blockScope) {
+        String name = function.name();
+        if (identifierMap.get(name) instanceof IdentifierMap.Entry previousEntry) {
+            if (identifierMap.fromCurrentScope(previousEntry) && !previousEntry.hasLinkage()) {
+                throw new RuntimeException("Duplicate declaration: " + name);
+            }
+        }
+        identifierMap.put(name, name, true);
+        identifierMap.enterScope();
+        List<Type> paramTypes = function.funType().params();
+        List<Identifier> params = new ArrayList<>(function.parameters().size());
+        for (int i = 0; i < function.parameters().size(); i++) {
+            String param = function.parameters().get(i).name();
+            if (identifierMap.get(param) instanceof IdentifierMap.Entry e && identifierMap.fromCurrentScope(e)) {
+                fail("Duplicate variable declaration");
+            }
+            String uniqueName = variableName(param);
+            identifierMap.put(param, uniqueName, false);
+            params.add(new Identifier(uniqueName, paramTypes.get(i)));
+        }
+        if (blockScope && function.body() != null) {
+            throw new RuntimeException("nested function definition not allowed");
+        }
+        semanticAnalysis.declareFunction(function, blockScope);
+        Block body = function.body();
+        if (body != null) {
+            for (int i = 0; i < params.size(); i++) {
+                ctx.symbolTable().put(params.get(i).name(), new SymbolTableEntry(paramTypes.get(i), LOCAL_ATTR));
+            }
+            analyzeBlockItems(body, function.funType().ret(), null);
+        }
+        identifierMap.exitScope();
+        return new Function(name, params, body, function.funType(), function.storageClass());
+    }
+
+    private void analyzeBlockItems(Block block, Type returnType, String currentLabel) {
+        block.blockItems().replaceAll(blockItem -> switch (blockItem) {
+            case VarDecl declaration -> analyzeLocalVariableDeclaration(declaration);
+            case Function function -> analyzeFunction(function, true);
+            case Statement statement -> analyzeStatement(statement, returnType, currentLabel);
+        });
+    }
+
+    private Statement analyzeStatement(Statement statement, Type returnType, String currentLabel) {
+        return switch (statement) {
+            case null -> null;
+            case Exp exp -> analyzeExp(exp);
+            case Return(Exp exp) -> new Return(convertTo(analyzeExp(exp), returnType));
+            case If(Exp condition, Statement ifTrue, Statement ifFalse) ->
+                    new If(analyzeExp(condition), analyzeStatement(ifTrue, returnType, currentLabel), analyzeStatement(ifFalse, returnType, currentLabel));
+            case Block block -> {
+                identifierMap.enterScope();
+                analyzeBlockItems(block, returnType, currentLabel);
+                identifierMap.exitScope();
+                yield block;
+            }
+            case NullStatement nullStatement -> nullStatement;
+            case Break aBreak -> {
+                if (currentLabel == null) {
+                    fail("break statement outside of loop");
+                }
+                aBreak.label = currentLabel;
+                yield aBreak;
+            }
+            case Continue aContinue -> {
+                if (currentLabel == null) {
+                    fail("continue statement outside of loop");
+                }
+                aContinue.label = currentLabel;
+                yield aContinue;
+            }
+            case DoWhile(Statement body, Exp condition, String _) -> {
+                String label = loopLabel("do");
+                yield new DoWhile(analyzeStatement(body, returnType, label), analyzeExp(condition), label);
+            }
+            case For(ForInit init, Exp condition, Exp post, Statement body, String _) -> {
+                String label = loopLabel("for");
+                identifierMap.enterScope();
+                ForInit analyzedInit = switch (init) {
+                    case null -> null;
+                    case VarDecl declaration -> analyzeLocalVariableDeclaration(declaration);
+                    case Exp exp -> analyzeExp(exp);
+                };
+                For analyzed = new For(analyzedInit, analyzeExp(condition), analyzeExp(post), analyzeStatement(body, returnType, label), label);
+                identifierMap.exitScope();
+                yield analyzed;
+            }
+            case While(Exp condition, Statement body, String _) -> {
+                String label = loopLabel("while");
+                yield new While(analyzeExp(condition), analyzeStatement(body, returnType, label), label);
+            }
+        };
+    }
+
+    private VarDecl analyzeLocalVariableDeclaration(VarDecl decl) {
+        String name = decl.name();
+        if (identifierMap.get(name) instanceof IdentifierMap.Entry prevEntry) {
+            if (identifierMap.fromCurrentScope(prevEntry)) {
+                if (!(prevEntry.hasLinkage() && decl.storageClass() == EXTERN)) {
+                    fail("Conflicting local declaration");
+                }
+            }
+        }
+        if (decl.storageClass() == EXTERN) {
+            identifierMap.put(name, name, true);
+            return semanticAnalysis.typeCheckLocalVariableDeclaration(decl);
+        }
+        String uniqueName = variableName(name);
+        identifierMap.put(name, uniqueName, false);
+        if (decl.storageClass() == STATIC) {
+            // only a constant is allowed, which resolves to itself
+            return semanticAnalysis.typeCheckLocalVariableDeclaration(new VarDecl(uniqueName, resolveExp(decl.init(), identifierMap), decl.varType(), STATIC));
+        }
+        ctx.symbolTable().put(uniqueName, new SymbolTableEntry(decl.varType(), LOCAL_ATTR));
+        return new VarDecl(uniqueName, convertTo(analyzeExp(decl.init()), decl.varType()), decl.varType(), decl.storageClass());
+    }
+
+    private Exp analyzeExp(Exp exp) {
+        return switch (exp) {
+            case null -> null;
+            case Assignment(Exp left, Exp right, Type _) -> {
+                if (!(left instanceof Identifier)) fail("Invalid lvalue");
+                Exp typedLeft = analyzeExp(left);
+                Type leftType = typedLeft.type();
+                yield new Assignment(typedLeft, convertTo(analyzeExp(right), leftType), leftType);
+            }
+            case BinaryOp(BinaryOperator op, Exp e1, Exp e2, Type _) -> {
+                Exp typedE1 = analyzeExp(e1);
+                Exp typedE2 = analyzeExp(e2);
+                if (op == AND || op == OR) {
+                    yield new BinaryOp(op, typedE1, typedE2, INT);
+                }
+                Type t1 = typedE1.type();
+                Type t2 = typedE2.type();
+                if (op == REMAINDER && (t1 == DOUBLE || t2 == DOUBLE)) {
+                    fail("invalid operands to binary % (have ‘" + t1 + "’ and ‘" + t2 + "’");
+                }
+                Type commonType = getCommonType(t1, t2);
+                yield new BinaryOp(op, convertTo(typedE1, commonType), convertTo(typedE2, commonType), switch (op) {
+                    case SUB, ADD, IMUL, DIVIDE, REMAINDER -> commonType;
+                    default -> INT;
+                });
+            }
+            case Cast(Type type, Exp inner) -> new Cast(type, analyzeExp(inner));
+            case Conditional(Exp condition, Exp ifTrue, Exp ifFalse, Type _) -> {
+                Exp typedCondition = analyzeExp(condition);
+                Exp typedIfTrue = analyzeExp(ifTrue);
+                Exp typedIfFalse = analyzeExp(ifFalse);
+                Type commonType = getCommonType(typedIfTrue.type(), typedIfFalse.type());
+                yield new Conditional(typedCondition, convertTo(typedIfTrue, commonType), convertTo(typedIfFalse, commonType), commonType);
+            }
+            case Constant constant -> constant;
+            case FunctionCall(Identifier name, List<Exp> args, Type type) -> {
+                if (!(identifierMap.get(name.name()) instanceof IdentifierMap.Entry e)) {
+                    yield fail("Undeclared function:" + name);
+                }
+                yield switch (ctx.symbolTable().get(e.name()).type()) {
+                    case FunType(List<Type> params, Type ret) -> {
+                        if (params.size() != args.size())
+                            fail("Function called with wrong number of arguments");
+                        ArrayList<Exp> convertedArgs = new ArrayList<>(args.size());
+                        for (int i = 0; i < params.size(); i++) {
+                            convertedArgs.add(convertTo(analyzeExp(args.get(i)), params.get(i)));
+                        }
+                        yield new FunctionCall(new Identifier(e.name(), type), convertedArgs, ret);
+                    }
+                    default -> fail("variable " + e.name() + " used as function");
+                };
+            }
+            case Identifier(String name, Type _) -> {
+                if (!(identifierMap.get(name) instanceof IdentifierMap.Entry e)) {
+                    yield fail("Undeclared variable:" + exp);
+                }
+                Type t = ctx.symbolTable().get(e.name()).type();
+                if (t instanceof FunType)
+                    fail("Function " + e.name() + " used as a variable");
+                yield new Identifier(e.name(), t);
+            }
+            case UnaryOp(UnaryOperator op, Exp inner, Type _) -> {
+                Exp typedInner = analyzeExp(inner);
+                if (op == UnaryOperator.BITWISE_NOT && typedInner.type() == DOUBLE) {
+                    fail("can't apply ~ to double");
+                }
+                yield new UnaryOp(op, typedInner, op == UnaryOperator.NOT ? INT : typedInner.type());
+            }
+        };
+    }
+}
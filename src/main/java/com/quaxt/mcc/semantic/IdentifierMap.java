@@ -0,0 +1,54 @@
+package com.quaxt.mcc.semantic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The identifiers visible at a point during identifier resolution. Each put
+ * records the entry it shadows in an undo log, so entering a scope is free
+ * and leaving one costs only the declarations made in it.
+ */
+final class IdentifierMap {
+    record Entry(String name, int scope, boolean hasLinkage) {
+    }
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private final ArrayList<String> undoNames = new ArrayList<>();
+    private final ArrayList<Entry> undoEntries = new ArrayList<>();
+    // scopeStarts[i] is the size of the undo log when scope i + 1 was entered
+    private int[] scopeStarts = new int[16];
+    private int scope;
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    boolean fromCurrentScope(Entry e) {
+        return e.scope() == scope;
+    }
+
+    void put(String name, String uniqueName, boolean hasLinkage) {
+        Entry old = entries.put(name, new Entry(uniqueName, scope, hasLinkage));
+        // nothing encloses file scope, so it is never undone
+        if (scope > 0) {
+            undoNames.add(name);
+            undoEntries.add(old);
+        }
+    }
+
+    void enterScope() {
+        if (scope == scopeStarts.length) scopeStarts = Arrays.copyOf(scopeStarts, scope * 2);
+        scopeStarts[scope++] = undoNames.size();
+    }
+
+    void exitScope() {
+        int start = scopeStarts[--scope];
+        for (int i = undoNames.size() - 1; i >= start; i--) {
+            String name = undoNames.remove(i);
+            Entry old = undoEntries.remove(i);
+            if (old == null) entries.remove(name);
+            else entries.put(name, old);
+        }
+    }
+}
@@ -22,7 +22,7 @@ public sealed interface Type permits FunType, Primitive {
      * double uses same cmp codes as unsigned
      */
     default boolean isSignedOrNotDouble() {
-        return this == INT || this == LONG | this == DOUBLE;
+        return this == INT || this == LONG;
     }
 
     default boolean isSigned() {
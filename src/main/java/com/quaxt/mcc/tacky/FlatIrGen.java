@@ -0,0 +1,323 @@
+package com.quaxt.mcc.tacky;
+
+import com.quaxt.mcc.*;
+import com.quaxt.mcc.parser.ConstInt;
+import com.quaxt.mcc.parser.FlatAst;
+import com.quaxt.mcc.parser.Identifier;
+import com.quaxt.mcc.parser.StorageClass;
+import com.quaxt.mcc.semantic.FunType;
+import com.quaxt.mcc.semantic.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.quaxt.mcc.parser.FlatAst.Kind.*;
+import static com.quaxt.mcc.parser.FlatAst.NONE;
+import static com.quaxt.mcc.parser.StorageClass.EXTERN;
+import static com.quaxt.mcc.parser.StorageClass.STATIC;
+import static com.quaxt.mcc.semantic.Primitive.*;
+import static com.quaxt.mcc.tacky.IrGen.*;
+
+/**
+ * {@link IrGen} for a {@link FlatAst}. Produces the same TACKY, with the
+ * same temporaries and labels, as IrGen does for the equivalent record
+ * tree.
+ */
+public class FlatIrGen implements FlatAst.Visitor<ValIr> {
+    private final CompilationContext ctx;
+    private final FlatAst ast;
+    private List<InstructionIr> instructions;
+
+    private FlatIrGen(CompilationContext ctx, FlatAst ast) {
+        this.ctx = ctx;
+        this.ast = ast;
+    }
+
+    public static ProgramIr programIr(CompilationContext ctx, FlatAst ast) {
+        FlatIrGen irGen = new FlatIrGen(ctx, ast);
+        List<TopLevel> tackyDefs = new ArrayList<>();
+        for (int i = 0; i < ast.topLevelCount(); i++) {
+            int decl = ast.topLevel(i);
+            if (ast.kind(decl) == FUNCTION && ast.edge(decl, 1) != NONE)
+                tackyDefs.add(irGen.compileFunction(decl));
+        }
+        convertSymbolsToTacky(ctx, tackyDefs);
+        return new ProgramIr(tackyDefs);
+    }
+
+    private FunctionIr compileFunction(int function) {
+        instructions = new ArrayList<>();
+        compileStatement(ast.edge(function, 1));
+        String name = ast.nameOf(function);
+        FunType funType = ast.funType(function);
+        int paramCount = ast.edge(function, 2);
+        List<Identifier> params = new ArrayList<>(paramCount);
+        for (int i = 0; i < paramCount; i++) {
+            params.add(new Identifier(ast.name(ast.edge(function, 3 + i)), funType.params().get(i)));
+        }
+        FunctionIr f = new FunctionIr(name, ctx.symbolTable().get(name).attrs().global(), params, instructions);
+        instructions.add(new ReturnInstructionIr(new ConstInt(0)));
+        return f;
+    }
+
+    private void compileVarDecl(int decl) {
+        StorageClass storageClass = ast.storageClass(decl);
+        if (storageClass == STATIC || storageClass == EXTERN) return;
+        int init = ast.edge(decl, 1);
+        if (init != NONE) assign(ast.nameOf(decl), init);
+    }
+
+    private void compileStatement(int statement) {
+        if (statement == NONE) return;
+        switch (ast.kind(statement)) {
+            case VAR_DECL -> compileVarDecl(statement);
+            case FUNCTION -> {
+                // block scope function declarations have no body
+            }
+            case RETURN -> instructions.add(new ReturnInstructionIr(compileExp(ast.edge(statement, 0))));
+            case IF -> {
+                int ifFalse = ast.edge(statement, 2);
+                ValIr c = compileExp(ast.edge(statement, 0));
+                if (ifFalse != NONE) {
+                    LabelIr e2Label = ctx.newLabel("e2");
+                    instructions.add(new JumpIfZero(c, e2Label.label()));
+                    compileStatement(ast.edge(statement, 1));
+                    LabelIr endLabel = ctx.newLabel("end");
+                    instructions.add(new Jump(endLabel.label()));
+                    instructions.add(e2Label);
+                    compileStatement(ifFalse);
+                    instructions.add(endLabel);
+                } else {
+                    LabelIr endLabel = ctx.newLabel("end");
+                    instructions.add(new JumpIfZero(c, endLabel.label()));
+                    compileStatement(ast.edge(statement, 1));
+                    instructions.add(endLabel);
+                }
+            }
+            case NULL_STATEMENT -> {
+            }
+            case BLOCK -> {
+                int n = ast.edge(statement, 0);
+                for (int i = 1; i <= n; i++) compileStatement(ast.edge(statement, i));
+            }
+            case BREAK -> instructions.add(new Jump(breakLabel(ctx, ast.nameOf(statement))));
+            case CONTINUE -> instructions.add(new Jump(continueLabel(ctx, ast.nameOf(statement))));
+            case DO_WHILE -> {
+                String label = ast.nameOf(statement);
+                LabelIr start = ctx.newLabel("start");
+                instructions.add(start);
+                compileStatement(ast.edge(statement, 0));
+                instructions.add(new LabelIr(continueLabel(ctx, label)));
+                ValIr v = compileExp(ast.edge(statement, 1));
+                instructions.add(new JumpIfNotZero(v, start.label()));
+                instructions.add(new LabelIr(breakLabel(ctx, label)));
+            }
+            case FOR -> {
+                String label = ast.nameOf(statement);
+                int init = ast.edge(statement, 0);
+                if (init != NONE && ast.kind(init) == VAR_DECL) compileVarDecl(init);
+                else compileExp(init);
+                LabelIr start = new LabelIr(startLabel(ctx, label));
+                LabelIr continueLabel = new LabelIr(continueLabel(ctx, label));
+                LabelIr breakLabel = new LabelIr(breakLabel(ctx, label));
+                instructions.add(start);
+                int condition = ast.edge(statement, 1);
+                if (condition != NONE) {
+                    ValIr v = compileExp(condition);
+                    instructions.add(new JumpIfZero(v, breakLabel.label()));
+                }
+                compileStatement(ast.edge(statement, 3));
+                instructions.add(continueLabel);
+                compileExp(ast.edge(statement, 2));
+                instructions.add(new Jump(start.label()));
+                instructions.add(breakLabel);
+            }
+            case WHILE -> {
+                String label = ast.nameOf(statement);
+                LabelIr continueLabel = new LabelIr(continueLabel(ctx, label));
+                instructions.add(continueLabel);
+                ValIr v = compileExp(ast.edge(statement, 0));
+                LabelIr breakLabel = new LabelIr(breakLabel(ctx, label));
+                instructions.add(new JumpIfZero(v, breakLabel.label()));
+                compileStatement(ast.edge(statement, 1));
+                instructions.add(new Jump(continueLabel.label()));
+                instructions.add(breakLabel);
+            }
+            default -> compileExp(statement);
+        }
+    }
+
+    private ValIr compileExp(int exp) {
+        return exp == NONE ? null : ast.accept(exp, this);
+    }
+
+    private VarIr assign(String left, int right) {
+        ValIr result = compileExp(right);
+        VarIr v = variable(ctx, left);
+        instructions.add(new Copy(result, v));
+        return v;
+    }
+
+    @Override
+    public ValIr constant(int node) {
+        return ast.constant(node);
+    }
+
+    @Override
+    public ValIr conditional(int node) {
+        ValIr c = compileExp(ast.edge(node, 0));
+        LabelIr e2Label = ctx.newLabel("e2");
+        instructions.add(new JumpIfZero(c, e2Label.label()));
+        ValIr e1 = compileExp(ast.edge(node, 1));
+        VarIr result = makeTemporary(ctx, "result", ast.type(node));
+        instructions.add(new Copy(e1, result));
+        LabelIr endLabel = ctx.newLabel("end");
+        instructions.add(new Jump(endLabel.label()));
+        instructions.add(e2Label);
+        ValIr e2 = compileExp(ast.edge(node, 2));
+        instructions.add(new Copy(e2, result));
+        instructions.add(endLabel);
+        return result;
+    }
+
+    @Override
+    public ValIr unaryOp(int node) {
+        ValIr src = compileExp(ast.edge(node, 0));
+        VarIr dst = makeTemporary(ctx, "tmp.", ast.type(node));
+        instructions.add(new UnaryIr(ast.unaryOperator(node), src, dst));
+        return dst;
+    }
+
+    @Override
+    public ValIr binaryOp(int node) {
+        BinaryOperator op = ast.binaryOperator(node);
+        if (op == ArithmeticOperator.AND || op == ArithmeticOperator.OR) {
+            boolean and = op == ArithmeticOperator.AND;
+            VarIr result = makeTemporary(ctx, "tmp.", INT);
+            LabelIr shortCircuitLabel = ctx.newLabel(and ? "andFalse" : "true");
+            LabelIr endLabel = ctx.newLabel(and ? "andEnd" : "end");
+            ValIr v1 = compileExp(ast.edge(node, 0));
+            instructions.add(and ? new JumpIfZero(v1, shortCircuitLabel.label()) : new JumpIfNotZero(v1, shortCircuitLabel.label()));
+            ValIr v2 = compileExp(ast.edge(node, 1));
+            instructions.add(and ? new JumpIfZero(v2, shortCircuitLabel.label()) : new JumpIfNotZero(v2, shortCircuitLabel.label()));
+            instructions.add(new Copy(new ConstInt(and ? 1 : 0), result));
+            instructions.add(new Jump(endLabel.label()));
+            instructions.add(shortCircuitLabel);
+            instructions.add(new Copy(new ConstInt(and ? 0 : 1), result));
+            instructions.add(endLabel);
+            return result;
+        }
+        ValIr v1 = compileExp(ast.edge(node, 0));
+        ValIr v2 = compileExp(ast.edge(node, 1));
+        VarIr dstName = makeTemporary(ctx, "tmp.", ast.type(node));
+        instructions.add(new BinaryIr(op, v1, v2, dstName));
+        return dstName;
+    }
+
+    @Override
+    public ValIr assignment(int node) {
+        return assign(ast.nameOf(ast.edge(node, 0)), ast.edge(node, 1));
+    }
+
+    @Override
+    public ValIr identifier(int node) {
+        return variable(ctx, ast.nameOf(node));
+    }
+
+    @Override
+    public ValIr functionCall(int node) {
+        VarIr result = makeTemporary(ctx, "tmp.", ast.type(node));
+        int argCount = ast.edge(node, 0);
+        ArrayList<ValIr> argVals = new ArrayList<>(argCount);
+        for (int i = 1; i <= argCount; i++) {
+            argVals.add(compileExp(ast.edge(node, i)));
+        }
+        instructions.add(new FunCall(ctx.symbolTable().intern(ast.nameOf(node)), argVals, result));
+        return result;
+    }
+
+    @Override
+    public ValIr cast(int node) {
+        int inner = ast.edge(node, 0);
+        ValIr result = compileExp(inner);
+        Type t = ast.type(node);
+        Type innerType = ast.type(inner);
+        if (t == innerType) {
+            return result;
+        }
+        VarIr dst = makeTemporary(ctx, "dst", t);
+        if (t == DOUBLE) {
+            instructions.add(innerType.isSigned() ? new IntToDouble(result, dst) : new UIntToDouble(result, dst));
+        } else if (innerType == DOUBLE) {
+            instructions.add(t.isSigned() ? new DoubleToInt(result, dst) : new DoubleToUInt(result, dst));
+        } else if (t.size() == innerType.size()) {
+            instructions.add(new Copy(result, dst));
+        } else if (t.size() < innerType.size()) {
+            instructions.add(new TruncateIr(result, dst));
+        } else if (innerType.isSigned()) {
+            instructions.add(new SignExtendIr(result, dst));
+        } else {
+            instructions.add(new ZeroExtendIr(result, dst));
+        }
+        return dst;
+    }
+
+    private ValIr notAnExpression(int node) {
+        throw new IllegalStateException("Unexpected exp: " + ast.kind(node));
+    }
+
+    @Override
+    public ValIr function(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr varDecl(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr block(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr returnStatement(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr ifStatement(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr whileLoop(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr doWhile(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr forLoop(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr breakStatement(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr continueStatement(int node) {
+        return notAnExpression(node);
+    }
+
+    @Override
+    public ValIr nullStatement(int node) {
+        return notAnExpression(node);
+    }
+}
@@ -2,6 +2,6 @@ package com.quaxt.mcc.tacky;
 
 import java.util.ArrayList;
 
-public record FunCall(String name, ArrayList<ValIr> args,
+public record FunCall(int id, ArrayList<ValIr> args,
                       ValIr dst) implements InstructionIr {
 }
@@ -5,13 +5,9 @@ import com.quaxt.mcc.parser.*;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static com.quaxt.mcc.ArithmeticOperator.AND;
 import static com.quaxt.mcc.ArithmeticOperator.OR;
-import static com.quaxt.mcc.IdentifierAttributes.LocalAttr.LOCAL_ATTR;
-import static com.quaxt.mcc.Mcc.SYMBOL_TABLE;
 import static com.quaxt.mcc.parser.StorageClass.EXTERN;
 import static com.quaxt.mcc.parser.StorageClass.STATIC;
 import static com.quaxt.mcc.semantic.Primitive.*;
@@ -19,22 +15,30 @@ import static com.quaxt.mcc.semantic.Primitive.*;
 import com.quaxt.mcc.semantic.Type;
 
 public class IrGen {
-    public static ProgramIr programIr(Program program) {
+    private final CompilationContext ctx;
+
+    private IrGen(CompilationContext ctx) {
+        this.ctx = ctx;
+    }
+
+    public static ProgramIr programIr(CompilationContext ctx, Program program) {
+        IrGen irGen = new IrGen(ctx);
         List<TopLevel> tackyDefs = new ArrayList<>();
         for (Function function : program.functions()) {
             if (function.body() != null)
-                tackyDefs.add(compileFunction(function));
+                tackyDefs.add(irGen.compileFunction(function));
         }
-        convertSymbolsToTacky(tackyDefs);
+        convertSymbolsToTacky(ctx, tackyDefs);
         return new ProgramIr(tackyDefs);
     }
 
-    private static void convertSymbolsToTacky(List<TopLevel> tackyDefs) {
-        for (Map.Entry<String, SymbolTableEntry> e : SYMBOL_TABLE.entrySet()) {
-            String name = e.getKey();
-            SymbolTableEntry value = e.getValue();
-            if (value.attrs() instanceof StaticAttributes(InitialValue init,
+    static void convertSymbolsToTacky(CompilationContext ctx, List<TopLevel> tackyDefs) {
+        SymbolTable symbolTable = ctx.symbolTable();
+        for (int id = 0; id < symbolTable.size(); id++) {
+            SymbolTableEntry value = symbolTable.get(id);
+            if (value != null && value.attrs() instanceof StaticAttributes(InitialValue init,
                                                           boolean global)) {
+                String name = symbolTable.name(id);
                 if (init instanceof StaticInit staticInit) {
                     tackyDefs.add(new StaticVariable(name, global, value.type(), staticInit));
                 } else if (init instanceof InitialValue.Tentative) {
@@ -44,20 +48,20 @@ public class IrGen {
         }
     }
 
-    private static FunctionIr compileFunction(Function function) {
+    private FunctionIr compileFunction(Function function) {
         List<InstructionIr> instructions = new ArrayList<>();
         compileBlock(function.body(), instructions);
-        FunctionIr f = new FunctionIr(function.name(), SYMBOL_TABLE.get(function.name()).attrs().global(), function.parameters(), instructions);
+        FunctionIr f = new FunctionIr(function.name(), ctx.symbolTable().get(function.name()).attrs().global(), function.parameters(), instructions);
         ReturnInstructionIr ret = new ReturnInstructionIr(new ConstInt(0));
         instructions.add(ret);
         return f;
     }
 
-    private static void compileBlock(Block block, List<InstructionIr> instructions) {
+    private void compileBlock(Block block, List<InstructionIr> instructions) {
         compileBlockItems(block.blockItems(), instructions);
     }
 
-    private static void compileDeclaration(Declaration d, List<InstructionIr> instructions) {
+    private void compileDeclaration(Declaration d, List<InstructionIr> instructions) {
         switch (d) {
             case Function function -> {
                 if (function.body() != null) compileFunction(function);
@@ -74,7 +78,7 @@ public class IrGen {
         }
     }
 
-    private static void compileBlockItems(List<BlockItem> blockItems, List<InstructionIr> instructions) {
+    private void compileBlockItems(List<BlockItem> blockItems, List<InstructionIr> instructions) {
         for (BlockItem i : blockItems) {
             switch (i) {
 
@@ -86,28 +90,28 @@ public class IrGen {
         }
     }
 
-    private static void compileIfElse(Exp condition, Statement ifTrue, Statement ifFalse, List<InstructionIr> instructions) {
+    private void compileIfElse(Exp condition, Statement ifTrue, Statement ifFalse, List<InstructionIr> instructions) {
         ValIr c = compileExp(condition, instructions);
-        LabelIr e2Label = newLabel("e2");
+        LabelIr e2Label = ctx.newLabel("e2");
         instructions.add(new JumpIfZero(c, e2Label.label()));
         compileStatement(ifTrue, instructions);
-        LabelIr endLabel = newLabel("end");
+        LabelIr endLabel = ctx.newLabel("end");
         instructions.add(new Jump(endLabel.label()));
         instructions.add(e2Label);
         compileStatement(ifFalse, instructions);
         instructions.add(endLabel);
     }
 
-    private static void compileIf(Exp condition, Statement ifTrue, List<InstructionIr> instructions) {
+    private void compileIf(Exp condition, Statement ifTrue, List<InstructionIr> instructions) {
         ValIr c = compileExp(condition, instructions);
-        LabelIr endLabel = newLabel("end");
+        LabelIr endLabel = ctx.newLabel("end");
         instructions.add(new JumpIfZero(c, endLabel.label()));
         compileStatement(ifTrue, instructions);
         instructions.add(endLabel);
     }
 
 
-    private static void compileStatement(Statement i, List<InstructionIr> instructions) {
+    private void compileStatement(Statement i, List<InstructionIr> instructions) {
         switch (i) {
             case Return r -> {
                 ValIr retVal = compileExp(r.exp(), instructions);
@@ -130,21 +134,21 @@ public class IrGen {
             case Block b -> compileBlock(b, instructions);
 
             case Break aBreak -> {
-                instructions.add(new Jump(breakLabel(aBreak.label)));
+                instructions.add(new Jump(breakLabel(ctx, aBreak.label)));
             }
             case Continue aContinue -> {
-                instructions.add(new Jump(continueLabel(aContinue.label)));
+                instructions.add(new Jump(continueLabel(ctx, aContinue.label)));
 
             }
             case DoWhile(Statement body, Exp condition, String label) -> {
-                LabelIr start = newLabel("start");
+                LabelIr start = ctx.newLabel("start");
                 instructions.add(start);
                 compileStatement(body, instructions);
-                LabelIr continueLabel = new LabelIr(continueLabel(label));
+                LabelIr continueLabel = new LabelIr(continueLabel(ctx, label));
                 instructions.add(continueLabel);
                 ValIr v = compileExp(condition, instructions);
                 instructions.add(new JumpIfNotZero(v, start.label()));
-                LabelIr breakLabel = new LabelIr(breakLabel(label));
+                LabelIr breakLabel = new LabelIr(breakLabel(ctx, label));
                 instructions.add(breakLabel);
             }
             case For(ForInit init, Exp condition, Exp post, Statement body,
@@ -157,9 +161,9 @@ public class IrGen {
                     }
                 }
 
-                LabelIr start = new LabelIr(startLabel(label));
-                LabelIr continueLabel = new LabelIr(continueLabel(label));
-                LabelIr breakLabel = new LabelIr(breakLabel(label));
+                LabelIr start = new LabelIr(startLabel(ctx, label));
+                LabelIr continueLabel = new LabelIr(continueLabel(ctx, label));
+                LabelIr breakLabel = new LabelIr(breakLabel(ctx, label));
                 instructions.add(start);
                 if (condition != null) {
                     ValIr v = compileExp(condition, instructions);
@@ -172,10 +176,10 @@ public class IrGen {
                 instructions.add(breakLabel);
             }
             case While(Exp condition, Statement body, String label) -> {
-                LabelIr continueLabel = new LabelIr(continueLabel(label));
+                LabelIr continueLabel = new LabelIr(continueLabel(ctx, label));
                 instructions.add(continueLabel);
                 ValIr v = compileExp(condition, instructions);
-                LabelIr breakLabel = new LabelIr(breakLabel(label));
+                LabelIr breakLabel = new LabelIr(breakLabel(ctx, label));
                 instructions.add(new JumpIfZero(v, breakLabel.label()));
                 compileStatement(body, instructions);
                 instructions.add(new Jump(continueLabel.label()));
@@ -184,20 +188,20 @@ public class IrGen {
         }
     }
 
-    private static String startLabel(String label) {
-        return "start_" + label;
+    static int startLabel(CompilationContext ctx, String label) {
+        return ctx.loopLabel(label);
     }
 
-    private static String continueLabel(String label) {
-        return "continue_" + label;
+    static int continueLabel(CompilationContext ctx, String label) {
+        return ctx.loopLabel(label) + 1;
     }
 
-    private static String breakLabel(String label) {
-        return "break_" + label;
+    static int breakLabel(CompilationContext ctx, String label) {
+        return ctx.loopLabel(label) + 2;
     }
 
 
-    private static ValIr compileExp(Exp expr, List<InstructionIr> instructions) {
+    private ValIr compileExp(Exp expr, List<InstructionIr> instructions) {
         switch (expr) {
             case null:
                 return null;
@@ -214,12 +218,12 @@ public class IrGen {
             case Conditional(Exp condition, Exp ifTrue, Exp ifFalse,
                              Type type): {
                 ValIr c = compileExp(condition, instructions);
-                LabelIr e2Label = newLabel("e2");
+                LabelIr e2Label = ctx.newLabel("e2");
                 instructions.add(new JumpIfZero(c, e2Label.label()));
                 ValIr e1 = compileExp(ifTrue, instructions);
-                VarIr result = makeTemporary("result", type);
+                VarIr result = makeTemporary(ctx, "result", type);
                 instructions.add(new Copy(e1, result));
-                LabelIr endLabel = newLabel("end");
+                LabelIr endLabel = ctx.newLabel("end");
                 instructions.add(new Jump(endLabel.label()));
                 instructions.add(e2Label);
                 ValIr e2 = compileExp(ifFalse, instructions);
@@ -229,17 +233,17 @@ public class IrGen {
             }
             case UnaryOp(UnaryOperator op, Exp exp, Type type): {
                 ValIr src = compileExp(exp, instructions);
-                VarIr dst = makeTemporary("tmp.", type);
+                VarIr dst = makeTemporary(ctx, "tmp.", type);
                 instructions.add(new UnaryIr(op, src, dst));
                 return dst;
             }
             case BinaryOp(BinaryOperator op, Exp left, Exp right, Type type):
                 switch (op) {
                     case AND -> {
-                        VarIr result = makeTemporary("tmp.", INT);
+                        VarIr result = makeTemporary(ctx, "tmp.", INT);
 
-                        LabelIr falseLabel = newLabel("andFalse");
-                        LabelIr endLabel = newLabel("andEnd");
+                        LabelIr falseLabel = ctx.newLabel("andFalse");
+                        LabelIr endLabel = ctx.newLabel("andEnd");
                         ValIr v1 = compileExp(left, instructions);
                         instructions.add(new JumpIfZero(v1, falseLabel.label()));
 
@@ -255,10 +259,10 @@ public class IrGen {
                         return result;
                     }
                     case OR -> {
-                        VarIr result = makeTemporary("tmp.", INT);
+                        VarIr result = makeTemporary(ctx, "tmp.", INT);
 
-                        LabelIr trueLabel = newLabel("true");
-                        LabelIr endLabel = newLabel("end");
+                        LabelIr trueLabel = ctx.newLabel("true");
+                        LabelIr endLabel = ctx.newLabel("end");
                         ValIr v1 = compileExp(left, instructions);
                         instructions.add(new JumpIfNotZero(v1, trueLabel.label()));
 
@@ -276,7 +280,7 @@ public class IrGen {
                     default -> {
                         ValIr v1 = compileExp(left, instructions);
                         ValIr v2 = compileExp(right, instructions);
-                        VarIr dstName = makeTemporary("tmp.", expr.type());
+                        VarIr dstName = makeTemporary(ctx, "tmp.", expr.type());
                         instructions.add(new BinaryIr(op, v1, v2, dstName));
                         return dstName;
                     }
@@ -284,14 +288,14 @@ public class IrGen {
             case Assignment(Identifier left, Exp right, Type type):
                 return assign(left.name(), right, instructions);
             case Identifier(String name, Type type):
-                return new VarIr(name);
+                return variable(ctx, name);
             case FunctionCall(Identifier name, List<Exp> args, Type type): {
-                VarIr result = makeTemporary("tmp.", type);
+                VarIr result = makeTemporary(ctx, "tmp.", type);
                 ArrayList<ValIr> argVals = new ArrayList<>();
                 for (Exp e : args) {
                     argVals.add(compileExp(e, instructions));
                 }
-                instructions.add(new FunCall(name.name(), argVals, result));
+                instructions.add(new FunCall(ctx.symbolTable().intern(name.name()), argVals, result));
                 return result;
             }
             case Cast(Type t, Exp inner): {
@@ -300,7 +304,7 @@ public class IrGen {
                 if (t == inner.type()) {
                     return result;
                 }
-                VarIr dst = makeTemporary("dst", t);
+                VarIr dst = makeTemporary(ctx, "dst", t);
                 if (t == DOUBLE) {
                     instructions.add(innerType.isSigned() ? new IntToDouble(result, dst) : new UIntToDouble(result, dst));
                 } else if (innerType == DOUBLE) {
@@ -322,23 +326,21 @@ public class IrGen {
         }
     }
 
-    private static VarIr assign(String left, Exp right, List<InstructionIr> instructions) {
+    private VarIr assign(String left, Exp right, List<InstructionIr> instructions) {
         ValIr result = compileExp(right, instructions);
-        VarIr v = new VarIr(left);
+        VarIr v = variable(ctx, left);
         instructions.add(new Copy(result, v));
         return v;
     }
 
-    static AtomicLong labelCount = new AtomicLong(0L);
-
-    public static LabelIr newLabel(String prefix) {
-        return new LabelIr(".L" + prefix + labelCount.getAndIncrement());
+    static VarIr makeTemporary(CompilationContext ctx, String prefix, Type t) {
+        return new VarIr(ctx.newTemporary(prefix, t), t, false);
     }
 
-    private static VarIr makeTemporary(String prefix, Type t) {
-        String name = Mcc.makeTemporary(prefix);
-        SYMBOL_TABLE.put(name, new SymbolTableEntry(t, LOCAL_ATTR));
-        return new VarIr(name);
+    static VarIr variable(CompilationContext ctx, String name) {
+        int id = ctx.symbolTable().intern(name);
+        SymbolTableEntry e = ctx.symbolTable().get(id);
+        return new VarIr(id, e.type(), e.attrs() instanceof StaticAttributes);
     }
 
 }
@@ -2,5 +2,5 @@ package com.quaxt.mcc.tacky;
 
 import com.quaxt.mcc.asm.Instruction;
 
-public record Jump(String label) implements InstructionIr, Instruction {
+public record Jump(int label) implements InstructionIr, Instruction {
 }
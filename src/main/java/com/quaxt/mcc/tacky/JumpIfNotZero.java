@@ -1,4 +1,4 @@
 package com.quaxt.mcc.tacky;
 
-public record JumpIfNotZero(ValIr v, String label) implements InstructionIr {
+public record JumpIfNotZero(ValIr v, int label) implements InstructionIr {
 }
@@ -1,5 +1,5 @@
 package com.quaxt.mcc.tacky;
 
-public record JumpIfZero(ValIr v, String label) implements InstructionIr {
+public record JumpIfZero(ValIr v, int label) implements InstructionIr {
 
 }
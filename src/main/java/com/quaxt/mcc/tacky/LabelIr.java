@@ -1,4 +1,4 @@
 package com.quaxt.mcc.tacky;
 import com.quaxt.mcc.asm.Instruction;
-public record LabelIr(String label) implements InstructionIr, Instruction {
+public record LabelIr(int label) implements InstructionIr, Instruction {
 }
@@ -1,4 +1,11 @@
 package com.quaxt.mcc.tacky;
 
-public record VarIr(String identifier) implements ValIr {
+import com.quaxt.mcc.semantic.Type;
+
+/**
+ * A variable or temporary. Its type and whether it has static storage are
+ * copied from the symbol table when it is created, so later passes need
+ * not look it up.
+ */
+public record VarIr(int id, Type type, boolean isStatic) implements ValIr {
 }
@@ -0,0 +1,128 @@
+#!/usr/bin/env python3
+"""Writes a random C program to stdout, for comparing mcc against gcc.
+
+usage: tests/fuzz/gen.py SEED
+
+The program only depends on SEED. It stays within the subset of C mcc
+handles: no & or [], no double <, at most 6 integer and 8 double
+arguments and no unsigned to double conversions. Each assignment is
+followed by one reducing the variable modulo 100000, loops are bounded,
+and main returns a checksum of its variables.
+"""
+import itertools
+import random
+import sys
+
+r = random.Random(int(sys.argv[1]))
+INT_T = ['int', 'long', 'unsigned int', 'unsigned long']
+out = []
+def iexpr(vs, depth):
+    ints = [v for v, t in vs if t != 'double']
+    dbls = [v for v, t in vs if t == 'double']
+    c = r.randrange(13 if depth < 3 else 3)
+    if c == 0 or not ints: return str(r.randrange(-20, 100))
+    if c in (1, 2): return r.choice(ints)
+    if c == 3: return '(%s %s %s)' % (iexpr(vs, depth+1), r.choice('+-*'), iexpr(vs, depth+1))
+    if c == 4: return '(%s / (%s %% 7 + 8))' % (iexpr(vs, depth+1), iexpr(vs, depth+1))
+    if c == 5: return '(%s %% (%s %% 5 + 6))' % (iexpr(vs, depth+1), iexpr(vs, depth+1))
+    if c == 6: return '(%s %s %s)' % (iexpr(vs, depth+1), r.choice(['<', '>', '<=', '>=', '==', '!=']), iexpr(vs, depth+1))
+    if c == 7: return '(%s %s %s)' % (iexpr(vs, depth+1), r.choice(['&&', '||']), iexpr(vs, depth+1))
+    if c == 8: return '(%s ? %s : %s)' % (iexpr(vs, depth+1), iexpr(vs, depth+1), iexpr(vs, depth+1))
+    if c == 9 and dbls: return '(long) (%s)' % dexpr(vs, depth+1)
+    if c == 10 and funcs:
+        name, params, ret = r.choice(funcs)
+        if ret == 'double': return '(long) %s' % call(vs, depth, name, params)
+        return call(vs, depth, name, params)
+    if c == 12: return '%s(%s)' % (r.choice('!-~'), iexpr(vs, depth+1))
+    return '(%s) %s' % (r.choice(INT_T), r.choice(ints)) if c == 11 else r.choice(ints)
+def dexpr(vs, depth):
+    ints = [v for v, t in vs if t in ('int', 'long')]
+    dbls = [v for v, t in vs if t == 'double']
+    c = r.randrange(7 if depth < 3 else 2)
+    if c == 0 or not dbls: return '%d.5' % r.randrange(-5, 10)
+    if c == 1: return r.choice(dbls)
+    if c == 2: return '(%s %s %s)' % (dexpr(vs, depth+1), r.choice('+-'), dexpr(vs, depth+1))
+    if c == 3: return '(%s * 0.5)' % dexpr(vs, depth+1)
+    if c == 4 and ints: return '(double) (%s %% 100)' % r.choice(ints)
+    if c == 5: return '(%s / 4.0)' % dexpr(vs, depth+1)
+    if c == 6: return '-(%s)' % dexpr(vs, depth+1)
+    return r.choice(dbls)
+def call(vs, depth, name, params):
+    return '%s(%s)' % (name, ', '.join(dexpr(vs, depth+2) if t == 'double' else iexpr(vs, depth+2) for t in params))
+def clamp(v, t):
+    if t == 'double': return '%s = %s * 0.5 + 1.0;' % (v, v)
+    return '%s = %s %% 100000;' % (v, v)
+def stmts(vs, depth, n, lines, ind, loopvars):
+    for _ in range(n):
+        c = r.randrange(9 if depth < 3 else 5)
+        targets = [(v, t) for v, t in vs if v not in loopvars]
+        v, t = r.choice(targets)
+        if c <= 2 or c == 4:
+            e = dexpr(vs, 0) if t == 'double' else iexpr(vs, 0)
+            lines.append(ind + '%s = %s;' % (v, e))
+            lines.append(ind + clamp(v, t))
+        elif c == 3:
+            if t != 'double': lines.append(ind + '%s = %s + %s;' % (v, v, iexpr(vs, 1)))
+        elif c in (5, 6):
+            lines.append(ind + 'if (%s) {' % iexpr(vs, 1))
+            stmts(vs, depth+1, r.randrange(1, 4), lines, ind + '    ', loopvars)
+            if r.randrange(2):
+                lines.append(ind + '} else {')
+                stmts(vs, depth+1, r.randrange(1, 4), lines, ind + '    ', loopvars)
+            lines.append(ind + '}')
+        elif c == 7:
+            lv = 'i%d' % next(counter)
+            lines.append(ind + 'for (int %s = 0; %s < %d; %s = %s + 1) {' % (lv, lv, r.randrange(1, 12), lv, lv))
+            stmts(vs + [(lv, 'int')], depth+1, r.randrange(1, 5), lines, ind + '    ', loopvars + [lv])
+            if r.randrange(4) == 0: lines.append(ind + '    if (%s) continue;' % iexpr(vs, 2))
+            if r.randrange(4) == 0: lines.append(ind + '    if (%s) break;' % iexpr(vs, 2))
+            lines.append(ind + '}')
+        else:
+            lv = 'w%d' % next(counter)
+            lines.append(ind + 'int %s = %d;' % (lv, r.randrange(1, 9)))
+            lines.append(ind + 'do {')
+            stmts(vs + [(lv, 'int')], depth+1, r.randrange(1, 4), lines, ind + '    ', loopvars + [lv])
+            lines.append(ind + '    %s = %s - 1;' % (lv, lv))
+            lines.append(ind + '} while (%s > 0);' % lv)
+counter = itertools.count()
+funcs = []
+statics = []
+for k in range(r.randrange(0, 3)):
+    t = r.choice(['int', 'long', 'double'])
+    statics.append(('s%d' % k, t))
+    out.append('static %s s%d = %s;' % (t, k, '1.5' if t == 'double' else str(r.randrange(10))))
+for f in range(r.randrange(1, 5)):
+    ni = r.randrange(0, 7); nd = r.randrange(0, 4)
+    params = [r.choice(INT_T[:2]) for _ in range(ni)] + ['double'] * nd
+    r.shuffle(params)
+    ret = r.choice(['int', 'long', 'double'])
+    vs = [('p%d' % i, t) for i, t in enumerate(params)] + statics
+    lines = ['%s f%d(%s) {' % (ret, f, ', '.join('%s p%d' % (t, i) for i, t in enumerate(params)) or 'void')]
+    for k in range(r.randrange(1, 8)):
+        t = r.choice(INT_T + ['double'])
+        e = dexpr(vs, 1) if t == 'double' else iexpr(vs, 1)
+        lines.append('    %s v%d = %s;' % (t, k, e))
+        vs.append(('v%d' % k, t))
+    # only main writes the statics, since the order a caller reads one
+    # and a call writes it in the same expression is unspecified
+    stmts(vs, 1, r.randrange(2, 8), lines, '    ', [v for v, _ in statics])
+    lines.append('    return %s;' % (dexpr(vs, 1) if ret == 'double' else iexpr(vs, 1)))
+    lines.append('}')
+    out.extend(lines)
+    funcs.append(('f%d' % f, params, ret))
+vs = list(statics)
+lines = ['int main(void) {', '    long check = 0;']
+vs.append(('check', 'long'))
+for k in range(r.randrange(2, 8)):
+    t = r.choice(INT_T + ['double'])
+    lines.append('    %s m%d = %s;' % (t, k, dexpr(vs, 1) if t == 'double' else iexpr(vs, 1)))
+    vs.append(('m%d' % k, t))
+stmts(vs, 1, r.randrange(3, 10), lines, '    ', [])
+for v, t in vs:
+    if v != 'check':
+        lines.append('    check = check * 31 + %s;' % ('(long) %s' % v if t == 'double' else v))
+        lines.append('    check = check % 1000003;')
+lines.append('    return (int) ((check % 256 + 256) % 256);')
+lines.append('}')
+out.extend(lines)
+print('\n'.join(out))
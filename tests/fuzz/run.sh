@@ -0,0 +1,48 @@
+#!/bin/bash
+# Compiles the programs tests/fuzz/gen.py writes for a range of seeds with
+# gcc and with mcc, once for each set of mcc flags, and checks that they
+# exit with the same status. The programs that differ are kept in the
+# current directory as fuzz<seed>.c.
+#
+# usage: tests/fuzz/run.sh FROM TO ["flags" ...]
+#   e.g. tests/fuzz/run.sh 1 100 "" -fshare-stack-slots "-O2 -fshare-stack-slots"
+#   MCC is the compiler to test, by default the mcc script at the top of
+#   the tree (which needs mvn package).
+fuzz=$(cd "${BASH_SOURCE%/*}" && pwd)
+mcc=${MCC:-$fuzz/../../mcc}
+if [ $# -lt 2 ]; then
+    echo "usage: $0 FROM TO [\"flags\" ...]" >&2
+    exit 2
+fi
+from=$1
+to=$2
+shift 2
+[ $# = 0 ] && set -- ""
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+failed=0
+for seed in $(seq "$from" "$to"); do
+    python3 "$fuzz/gen.py" "$seed" > "$work/p.c"
+    gcc -w "$work/p.c" -o "$work/p.gcc" || { echo "seed $seed: gcc could not compile it"; continue; }
+    timeout 5 "$work/p.gcc" >/dev/null
+    expected=$?
+    # a loop that runs for too long is not worth waiting for
+    [ $expected = 124 ] && continue
+    for flags in "$@"; do
+        rm -f "$work/p"
+        # flags is split into words on purpose
+        if "$mcc" $flags "$work/p.c" >/dev/null 2>&1; then
+            timeout 5 "$work/p" >/dev/null
+            actual=$?
+        else
+            actual="no executable"
+        fi
+        if [ "$actual" != $expected ]; then
+            echo "FAIL seed $seed [$flags]: exit $actual, gcc gives $expected"
+            cp "$work/p.c" "fuzz$seed.c"
+            failed=1
+        fi
+    done
+done
+[ $failed = 0 ] && echo "seeds $from to $to passed"
+exit $failed
@@ -0,0 +1,40 @@
+#!/bin/bash
+# Checks that lexing and parsing take time linear in the size of the input.
+# Times mcc --parse on generated programs of 4000 to 32000 functions and
+# fails if doubling the input more than triples the time, which a parser
+# that is quadratic in the number of tokens does once the input is large.
+#
+# usage: tests/parse-scaling.sh
+#   MCC is the compiler to test, by default the mcc script at the top of
+#   the tree (which needs mvn package).
+tests=$(cd "${BASH_SOURCE%/*}" && pwd)
+mcc=${MCC:-$tests/../mcc}
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+# best of three runs, in milliseconds
+time_parse() {
+    local best=
+    for _ in 1 2 3; do
+        local start=$(date +%s%N)
+        "$mcc" --parse "$1" >/dev/null || return 1
+        local ms=$((($(date +%s%N) - start) / 1000000))
+        if [ -z "$best" ] || [ $ms -lt $best ]; then best=$ms; fi
+    done
+    echo $best
+}
+
+failed=0
+previous=
+for n in 4000 8000 16000 32000; do
+    "$tests"/../bench/gen.py functions $n > "$work/f$n.c"
+    ms=$(time_parse "$work/f$n.c") || { echo "FAIL: mcc could not parse $n functions"; exit 1; }
+    echo "$n functions: $ms ms"
+    if [ -n "$previous" ] && [ $ms -gt $((previous * 3)) ]; then
+        echo "FAIL: $n functions took more than three times as long as $((n / 2))"
+        failed=1
+    fi
+    previous=$ms
+done
+[ $failed = 0 ] && echo "parse time is linear"
+exit $failed
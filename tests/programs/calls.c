@@ -0,0 +1,59 @@
+int putchar(int c);
+static int counter = 0;
+int g = 5;
+static int bump(void) { counter = counter + 1; return counter; }
+long f10(int a, double b, int c, int d, double e, int f, int g2, int h, int i, long j) {
+    return a + (long)b + c + d + (long)e + f + g2 + h * 10 + i * 100 + j * 1000;
+}
+long many(long a, long b, long c, long d, long e, long f, long g1, long h, long i) {
+    return g1 * 100 + h * 10 + i;
+}
+double dsum(double a, double b, double c, double d, double e, double f, double g1, double h, double i, double j) {
+    return a + b * 2 + c * 3 + d * 4 + e * 5 + f * 6 + g1 * 7 + h * 8 + i * 9 + j * 10;
+}
+unsigned int udiv(unsigned int a, unsigned int b) { return a / b; }
+int fib(int n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+int loops(int n) {
+    int s = 0;
+    for (int i = 0; i < n; i = i + 1) {
+        if (i % 3 == 0) continue;
+        if (i > 50) break;
+        s = s + i;
+    }
+    int k = 0;
+    while (1) { k = k + 1; if (k == 7) break; }
+    do { s = s + k; k = k - 1; } while (k > 0);
+    return s;
+}
+int main(void) {
+    int check = 0;
+    if (f10(1, 2.5, 3, 4, 5.9, 6, 7, 8, 9, 10) != 1 + 2 + 3 + 4 + 5 + 6 + 7 + 80 + 900 + 10000) return 1;
+    if (many(1,2,3,4,5,6,7,8,9) != 789) return 2;
+    if (dsum(1,1,1,1,1,1,1,1,1,1) != 55.0) return 3;
+    if (udiv(4294967295u, 2u) != 2147483647u) return 4;
+    if (fib(15) != 610) return 5;
+    if (loops(100) != 0 + 1+2+4+5+7+8+10+11+13+14+16+17+19+20+22+23+25+26+28+29+31+32+34+35+37+38+40+41+43+44+46+47+49+50 + 28) return 6;
+    bump(); bump();
+    if (counter != 2) return 7;
+    int a = 3 > 2 ? 10 : 20;
+    if (a != 10) return 8;
+    if (-1.0 >= 1.0) return 9;
+    unsigned long ul = 18446744073709551615ul;
+    if ((int) 3.99 != 3) return 11;
+    long big = 2147483647;
+    big = big + 1;
+    if (big != 2147483648l) return 12;
+    int x = 2147483647;
+    x = x + 0;
+    if ((unsigned)x + 1u != 2147483648u) return 13;
+    if (g != 5) return 14;
+    double neg = -0.0;
+    if (1.0 / neg > 0) return 18;
+    unsigned long bigu = 9223372036854775810ul;
+    double dd = 9223372036854775810.0;
+    if ((unsigned long) dd != 9223372036854775808ul) return 19;
+    int i3 = 10;
+    i3 = -i3 % 3;
+    if (i3 != -1) return 20;
+    return 0;
+}
@@ -0,0 +1,28 @@
+int callee(int x) { return x * 2 + 1; }
+static int counter = 3;
+int touch(void) { counter = counter + 1; return counter; }
+int fib(int n) { if (n <= 1) return n; return fib(n - 1) + fib(n - 2); }
+int main(void) {
+    int a = 1;
+    int b = 2;
+    int c = 3;
+    int d = 4;
+    int e = 5;
+    int f = 6;
+    int g = 7;
+    int h = 8;
+    int t = 0;
+    int i = 0;
+    while (i < 20) {
+        t = t + callee(a) + callee(b) * c - d + e * touch() - f + g * h;
+        a = a + 1; h = h - 1;
+        if (t > 10000) t = t - 9999;
+        i = i + 1;
+        if (i == 15) continue;
+        if (t == -1) break;
+    }
+    int u = 0;
+    do { u = u + fib(i % 12); i = i - 3; } while (i > 0);
+    long big = 9223372036854775807 / (long) (u + 1);
+    return (t + u + counter + (int) (big % 97) + (a && h) + (b || 0) + !c) % 256;
+}
@@ -0,0 +1,27 @@
+static long counter = 5;
+int twice(int a);
+double half(double d) { return d / 2; }
+unsigned long mix(int a, long b, unsigned int c) { return a + b + c; }
+int main(void) {
+    int total = 0;
+    extern long counter;
+    static int calls = 3;
+    int twice(int q);
+    for (int i = 0; i < 10; i = i + 1) {
+        if (i == 3) continue;
+        int j = 0;
+        while (1) {
+            j = j + 1;
+            if (j > i) break;
+            do { total = total + 1; } while (total % 7 != 0 && j < 2);
+        }
+        for (;;) { break; }
+    }
+    long big = total * 100000L;
+    unsigned u = 7u;
+    double d = half(big) + (long) u;
+    total = total + (int) d % 50 + twice(calls) + (total > 3 ? 1 : 2);
+    total = total + mix(1, 2L, 3u) + counter + !total + ~total + -total;
+    return total % 256;
+}
+int twice(int a) { return a * 2; }
@@ -0,0 +1,11 @@
+int main(void) {
+    int i = 0;
+    int n = 0;
+    do {
+        i = i + 1;
+        if (i < 5) continue;
+        n = n + 100;
+        break;
+    } while (i < 3);
+    return n + i;
+}
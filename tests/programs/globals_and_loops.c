@@ -0,0 +1,46 @@
+int counter = 0;
+static long total;
+int bump(void) { counter = counter + 1; return counter; }
+long square(long x) { return x * x; }
+double avg(double a, double b, double c) { return (a + b + c) / 3.0; }
+int collatz(long n) {
+    int steps = 0;
+    while (n != 1) {
+        if (n % 2 == 0) n = n / 2;
+        else n = 3 * n + 1;
+        steps = steps + 1;
+    }
+    return steps;
+}
+int main(void) {
+    int acc = 0;
+    for (int i = 1; i < 200; i = i + 1) {
+        acc = acc + collatz(i);
+        if (acc > 100000) break;
+    }
+    for (int i = 0; i < 10; i = i + 1) {
+        int t = bump();
+        total = total + square(t);
+    }
+    int a = 5;
+    {
+        int a = 7;
+        acc = acc + a;
+        {
+            static int a = 11;
+            a = a + 1;
+            acc = acc + a;
+        }
+    }
+    acc = acc + a;
+    double d = avg(1.0, 2.0, 6.0);
+    int x = 0;
+    int y = (x = 3) + x;
+    long big = 2147483647;
+    big = big + 1;
+    int trunc = (int) big;
+    unsigned u = 7u;
+    unsigned long ulv = (unsigned long) u * 3ul;
+    int cond = acc > 10 && total < 1000 || counter == 10;
+    return (acc + (int) total + counter + (int) d + y + (trunc == -2147483647 - 1) + (int) ulv + cond) % 256;
+}
@@ -0,0 +1,13 @@
+int g;
+static int h2;
+int set(int x) { g = x; g = x + 1; return 0; }
+int peek(void) { return g + h2; }
+int main(void) {
+    int t = 5;
+    t = 6;
+    h2 = 100;
+    int r = peek();
+    h2 = 1;
+    set(7);
+    return r + g + h2;
+}
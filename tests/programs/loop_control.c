@@ -0,0 +1,12 @@
+int f(int n) {
+    int s = 0;
+    for (int i = 0; i < n; i = i + 1) {
+        if (i == 3) continue;
+        if (i == 7) break;
+        while (1) { s = s + i; break; }
+    }
+    return s;
+    s = 5;
+    return s;
+}
+int main(void) { if (0) return 9; return f(10) - 18; }
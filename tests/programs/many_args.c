@@ -0,0 +1,17 @@
+long f20(int a, double b, long c, int d, double e, int f, long g, double h, int i, int j,
+         double k, long l, int m, double n, int o, long p, double q, int r, double s, long t) {
+    return a + c * 3 + d * 5 + f * 7 + g * 11 + i * 13 + j * 17 + l * 19 + m * 23 + o * 29
+            + p * 31 + r * 37 + t * 41 + (long) (b + e * 2 + h * 3 + k * 4 + n * 5 + q * 6 + s * 7);
+}
+long last(long a, long b, long c, long d, long e, long f, long g, long h, long i) {
+    return g * 100 + h * 10 + i;
+}
+int main(void) {
+    long x = 1;
+    for (int i = 0; i < 3; i = i + 1) {
+        x = x + f20(i, 0.5, 2, 3, 1.5, 5, 6, 2.5, 8, 9, 3.5, 11, 12, 4.5, 14, 15, 5.5, 17, 6.5, x);
+        x = x % 100003;
+    }
+    if (last(1, 2, 3, 4, 5, 6, 7, 8, 9) != 789) return 1;
+    return (int) (x % 256);
+}
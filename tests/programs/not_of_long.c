@@ -0,0 +1,8 @@
+int main(void) {
+    long l = 0;
+    unsigned long u = l;
+    int a = u <= 15;
+    int b = ~l;
+    u = u + !l;
+    return (a * 31 + b) % 256 + (int) u;
+}
@@ -0,0 +1,32 @@
+/* #if arithmetic is unsigned where C's would be, and the operand that
+ * &&, || or ?: skips is not evaluated. */
+int main(void) {
+    int r = 0;
+#if ~0u > 0
+    r = r + 1;
+#endif
+#if 0xffffffffffffffff > 0
+    r = r + 2;
+#endif
+#if 1u - 2 > 0
+    r = r + 4;
+#endif
+#if -1 > 0u
+    r = r + 8;
+#endif
+#if -1 < 0 && (-1 >> 1) < 0 && (0xffffffffffffffff >> 63) == 1
+    r = r + 16;
+#endif
+#if (0 ? 1u : -1) > 0 && 7u / 2 == 3 && -7 / 2 == -3 && -7 % 2 == -1
+    r = r + 32;
+#endif
+#if 0 && 1 / 0
+    r = 0;
+#elif 1 || 1 / 0
+    r = r + 64;
+#endif
+#if (0 ? 1 / 0 : 2) == 2 && (1 ? 2 : 1 % 0) == 2
+    r = r + 128;
+#endif
+    return r;
+}
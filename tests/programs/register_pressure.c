@@ -0,0 +1,32 @@
+long mix(long a, long b, long c, long d, long e, long f) { return a * 3 + b * 5 - c + d * 7 - e + f * 11; }
+double dmix(double a, double b, double c, long n) { return a * b + c * n - a / b; }
+int divs(int a, int b) { int q = a / b; int r = a % b; unsigned int u = (unsigned int) a / 3u; return q * 100 + r * 10 + (int) (u % 7u); }
+int main(void) {
+    long s = 0;
+    long a = 1;
+    long b = 2;
+    long c = 3;
+    long d = 4;
+    long e = 5;
+    long f = 6;
+    long g = 7;
+    long h = 8;
+    long i = 9;
+    long j = 10;
+    long k = 11;
+    long l = 12;
+    for (int n = 0; n < 50; n = n + 1) {
+        a = a + b; b = b + c; c = c + d; d = d + e; e = e + f; f = f + g;
+        g = g + h; h = h + i; i = i + j; j = j + k; k = k + l; l = l + n;
+        s = s + mix(a, b, c, d, e, f) % 1000 + 0;
+        s = s + (a % 13) + (b % 17) + (c % 19) + (d % 23) + (e % 29) + (f % 31) + (g % 37) + (h % 41) + (i % 43) + (j % 47) + (k % 53) + (l % 59);
+    }
+    double x = 0.5;
+    double acc = 0.0;
+    for (int n = 0; n < 100; n = n + 1) {
+        acc = acc + dmix(x, x + 1.0, acc / 1000.0, n);
+        x = x * 1.01;
+    }
+    int dv = divs(1000, 7) + divs(-100, 9) + divs(77, 5);
+    return (int) ((s + (long) acc + dv) % 251);
+}
@@ -0,0 +1,17 @@
+int x = 3;
+int f(int x) { { int x = 10; x = x + 1; } return x * 2; }
+int main(void) {
+    int r = x;
+    {
+        int x = 5;
+        r = r + x;
+        {
+            extern int x;
+            r = r + x;
+            for (int x = 0; x < 3; x = x + 1) { int y = x; r = r + y; }
+        }
+        r = r + x;
+    }
+    for (int i = 0; i < 2; i = i + 1) { int x = i * 100; r = r + x; }
+    return r + f(4) + x;
+}
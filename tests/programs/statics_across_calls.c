@@ -0,0 +1,23 @@
+int g = 1;
+static long k = 5;
+int bump(void) { g = g + 10; k = k * 2; return g; }
+int count(void) { static int n = 0; n = n + 1; return n; }
+int main(void) {
+    int a = g;
+    g = 3;
+    int b = g;
+    int r = bump();
+    int c = g;
+    long d = k;
+    int x = a;
+    int y = x;
+    int i = 0;
+    while (i < 3) { y = x + i; x = y; i = i + 1; }
+    int z = count(); z = count();
+    unsigned u = 4000000000u;
+    int s = u;
+    unsigned v = s;
+    if (v / 2 != 2000000000u) return 99;
+    if (b != 3 || c != 13 || r != 13 || d != 10 || z != 2 || a != 1) return 98;
+    return y + x;
+}
@@ -0,0 +1,4 @@
+long big(long a, long b) { long c = a * 4294967296 + b; c = c - 9223372036854775807; if (c > 4294967299) c = c * 3; return c / 7 + c % 5; }
+unsigned long ub(unsigned long a) { return a / 3 + (a > 18446744073709551000ul); }
+double dd(double x, long u, long l) { double y = x * 2.0 - 1.0; unsigned long v = (unsigned long) y; long w = (long) x; return y + l + (double) w + (x < y); }
+int main(void) { long r = big(3, 4); return (int) (r + (long) ub(5) + dd(1.5, 7, 8)) ; }
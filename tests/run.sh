@@ -0,0 +1,42 @@
+#!/bin/bash
+# Compiles each program in tests/programs with gcc and with mcc, once for
+# each set of mcc flags, runs them and checks that they exit with the same
+# status.
+#
+# usage: tests/run.sh ["flags" ...]
+#   Each argument is one set of flags, e.g. tests/run.sh "" "-O2 -fomit-frame-pointer".
+#   MCC is the compiler to test, by default the mcc script at the top of
+#   the tree (which needs mvn package).
+tests=$(cd "${BASH_SOURCE%/*}" && pwd)
+mcc=${MCC:-$tests/../mcc}
+if [ $# = 0 ]; then
+    set -- "" -O -O1 -O2 -fshare-stack-slots "-O2 -fomit-frame-pointer" -maccumulate-outgoing-args \
+        -ffold-constants -feliminate-unreachable-code -fpropagate-copies -feliminate-dead-stores
+fi
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+failed=0
+for src in "$tests"/programs/*.c; do
+    name=$(basename "$src" .c)
+    cp "$src" "$work/$name.c"
+    gcc -w "$work/$name.c" -o "$work/$name.gcc" || { echo "FAIL $name: gcc could not compile it"; failed=1; continue; }
+    "$work/$name.gcc" >/dev/null
+    expected=$?
+    for flags in "$@"; do
+        rm -f "$work/$name"
+        # flags is split into words on purpose
+        if ! "$mcc" $flags "$work/$name.c" >/dev/null; then
+            echo "FAIL $name [$flags]: mcc could not compile it"
+            failed=1
+            continue
+        fi
+        "$work/$name" >/dev/null
+        actual=$?
+        if [ $actual != $expected ]; then
+            echo "FAIL $name [$flags]: exit $actual, gcc gives $expected"
+            failed=1
+        fi
+    done
+done
+[ $failed = 0 ] && echo "all tests passed"
+exit $failed